@@ -0,0 +1,41 @@
+import java.util.NavigableSet;
+
+/**
+ * Creates the B-trees that the benchmarks in the benchmark package measure.
+ * JMH only generates benchmarks in named packages, which can't
+ * refer to the B-tree's classes in the default package, so
+ * the benchmarks load this class by its name instead.
+ */
+public class BenchmarkSets {
+    /*
+        Returns a temporary B-tree (a B+tree if bPlusTree is
+        true) with the given degree and storage settings,
+        bulk-loaded with sortedKeys
+     */
+    public static NavigableSet<Integer> createBTree(int minNumberOfChildren, boolean bPlusTree,
+                                                    long cacheSizeInBytes, boolean memoryMapped, int[] sortedKeys) {
+        BTree bTree = BTree.createNewBTree(new BTreeOptions()
+                .minNumberOfChildren(minNumberOfChildren)
+                .bPlusTree(bPlusTree)
+                .cacheSizeInBytes(cacheSizeInBytes)
+                .memoryMapped(memoryMapped));
+        bTree.bulkLoad(sortedKeys);
+        return bTree;
+    }
+
+    /*
+        Returns a temporary concurrent B-tree (a B-link tree
+        if bLinkTree is true) with the given degree and cache
+        size, bulk-loaded with sortedKeys
+     */
+    public static NavigableSet<Integer> createConcurrentBTree(int minNumberOfChildren, boolean bLinkTree,
+                                                              long cacheSizeInBytes, int[] sortedKeys) {
+        BTree bTree = BTree.createNewBTree(new BTreeOptions()
+                .minNumberOfChildren(minNumberOfChildren)
+                .concurrent(true)
+                .bLinkTree(bLinkTree)
+                .cacheSizeInBytes(cacheSizeInBytes));
+        bTree.bulkLoad(sortedKeys);
+        return bTree;
+    }
+}
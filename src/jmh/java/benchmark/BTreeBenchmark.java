@@ -0,0 +1,282 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the B-tree's add, contains, remove, full
+ * iteration, subSet scans and addAll, with java.util.TreeSet
+ * as the baseline. Every set starts out holding the even keys
+ * 0, 2, ..., 2 * (size - 1), and the operations pick the keys
+ * they touch by their position in the set, following one of
+ * the KeyDistributions: contains and remove pick present
+ * (even) keys, add and addAll absent (odd) keys right after
+ * them, and subSet scans SCAN_LENGTH keys starting at them.
+ * add, remove and addAll change the set, so each of their
+ * measurements is a single batch of BATCH_SIZE operations on
+ * a freshly built set, and the score is the time per
+ * operation. The keys of a batch are distinct (the first
+ * BATCH_SIZE distinct positions that the distribution picks),
+ * so every add and remove of a batch really changes the set
+ * instead of taking the early exit for a key that a previous
+ * one already added or removed. The benchmarks are built by
+ * the benchmark profile:
+ *
+ *     mvn -P benchmark -DskipTests package
+ *     java -jar target/benchmarks.jar BTreeBenchmark
+ *
+ * The whole matrix of parameters takes a long time, so narrow
+ * it down with -p, e.g. to compare degrees and cache sizes:
+ *
+ *     java -jar target/benchmarks.jar BTreeBenchmark.contains -p implementation=BTree
+ *             -p minNumberOfChildren=16,64,256 -p cacheSizeInBytes=0,67108864
+ *
+ * (minNumberOfChildren and the storage settings don't apply
+ * to TreeSet, whose results repeat for each of their values)
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BTreeBenchmark {
+    /*
+        The number of operations in each batch of add, remove
+        and addAll. It's small enough next to the smallest size
+        that even the ZIPFIAN distribution picks that many
+        distinct positions among the first POSITION_COUNT
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /*
+        The number of keys that each subSet scan visits
+     */
+    static final int SCAN_LENGTH = 100;
+
+    /*
+        The number of key positions that each Workload draws
+        before it starts over. A power of two
+     */
+    static final int POSITION_COUNT = 1 << 16;
+
+    /*
+        The set being benchmarked, built once for the benchmarks
+        that don't change it. BTree and B+tree are temporary
+        B-trees (see BTree.createNewBTree) with the given degree
+        and storage settings, and are bulk-loaded (by the
+        BenchmarkSets class in the default package)
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"TreeSet", "BTree", "B+tree"})
+        public String implementation;
+
+        @Param({"8", "64", "256"})
+        public int minNumberOfChildren;
+
+        @Param({"10000", "1000000"})
+        public int size;
+
+        @Param({"67108864"})
+        public long cacheSizeInBytes;
+
+        @Param({"false"})
+        public boolean memoryMapped;
+
+        NavigableSet<Integer> set;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.set = this.createSet();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            Tree.close(this.set);
+        }
+
+        NavigableSet<Integer> createSet() {
+            int[] keys = new int[this.size];
+            for (int i = 0; i < this.size; i++)
+                keys[i] = 2 * i;
+            if (this.implementation.equals("TreeSet")) {
+                TreeSet<Integer> treeSet = new TreeSet<Integer>();
+                for (int key : keys)
+                    treeSet.add(key);
+                return treeSet;
+            }
+
+            try {
+                Method createBTree = Class.forName("BenchmarkSets").getMethod("createBTree",
+                        int.class, boolean.class, long.class, boolean.class, int[].class);
+                @SuppressWarnings("unchecked")
+                NavigableSet<Integer> bTree = (NavigableSet<Integer>) createBTree.invoke(null,
+                        this.minNumberOfChildren, this.implementation.equals("B+tree"),
+                        this.cacheSizeInBytes, this.memoryMapped, keys);
+                return bTree;
+            }
+            catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static void close(NavigableSet<Integer> set) throws Exception {
+            if (set instanceof AutoCloseable)
+                ((AutoCloseable) set).close();
+        }
+    }
+
+    /*
+        The positions (in [0, size)) of the keys that a
+        thread's operations touch, in the order it touches them
+     */
+    @State(Scope.Thread)
+    public static class Workload {
+        @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+        public KeyDistribution distribution;
+
+        int[] positions;
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(Tree tree) {
+            this.positions = this.distribution.positions(POSITION_COUNT, tree.size, 42);
+        }
+
+        int nextPosition() {
+            int position = this.positions[this.next];
+            this.next = (this.next + 1) & (POSITION_COUNT - 1);
+            return position;
+        }
+    }
+
+    /*
+        A freshly built set and the keys of the next batch of
+        changes to it: the absent keys that add and addAll add,
+        and the present keys that remove removes, at distinct
+        positions (boxed beforehand, so that boxing them isn't
+        measured)
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        NavigableSet<Integer> set;
+        Integer[] absentKeys = new Integer[BATCH_SIZE];
+        Integer[] presentKeys = new Integer[BATCH_SIZE];
+        List<Integer> absentKeyList;
+
+        @Setup(Level.Iteration)
+        public void setUp(Tree tree, Workload workload) {
+            this.set = tree.createSet();
+            boolean[] isUsed = new boolean[tree.size];
+            int count = 0;
+            for (int i = 0; i < POSITION_COUNT && count < BATCH_SIZE; i++) {
+                int position = workload.positions[i];
+                if (isUsed[position])
+                    continue;
+                isUsed[position] = true;
+                this.absentKeys[count] = 2 * position + 1;
+                this.presentKeys[count] = 2 * position;
+                count++;
+            }
+            if (count < BATCH_SIZE)
+                throw new IllegalStateException(workload.distribution + " picked only " + count
+                        + " distinct positions, not " + BATCH_SIZE);
+            this.absentKeyList = Arrays.asList(this.absentKeys);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            Tree.close(this.set);
+            this.set = null;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean contains(Tree tree, Workload workload) {
+        return tree.set.contains(2 * workload.nextPosition());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate(Tree tree) {
+        long sum = 0;
+        for (int key : tree.set)
+            sum += key;
+        return sum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long subSetScan(Tree tree, Workload workload) {
+        int from = 2 * workload.nextPosition();
+        long sum = 0;
+        for (int key : tree.set.subSet(from, from + 2 * SCAN_LENGTH))
+            sum += key;
+        return sum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int add(Batch batch) {
+        int added = 0;
+        for (Integer key : batch.absentKeys) {
+            if (batch.set.add(key))
+                added++;
+        }
+        return added;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int remove(Batch batch) {
+        int removed = 0;
+        for (Integer key : batch.presentKeys) {
+            if (batch.set.remove(key))
+                removed++;
+        }
+        return removed;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean addAll(Batch batch) {
+        return batch.set.addAll(batch.absentKeyList);
+    }
+}
@@ -0,0 +1,156 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.NavigableSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of a concurrent B-tree that many threads
+ * share. contains shows how the throughput of lookups scales
+ * with the number of threads: every thread looks up random
+ * keys of the same set, so with a cache that holds the whole
+ * B-tree every lookup is a cache hit, and with a small cache
+ * most of them read pages from the data file. mixed does the
+ * same with a mix of lookups, adds and removes, which shows
+ * how the latch crabbing scales. Run them with each number
+ * of threads to compare (the score is the total of all
+ * threads):
+ *
+ *     mvn -P benchmark -DskipTests package
+ *     java -jar target/benchmarks.jar "ConcurrentBenchmark.(contains|mixed)" -t 1
+ *     java -jar target/benchmarks.jar "ConcurrentBenchmark.(contains|mixed)" -t 4
+ *
+ * lookupWhileInserting samples the latency of the lookups of
+ * one thread while INSERTER_COUNT other threads insert keys
+ * and so split nodes all the time, which shows how long
+ * readers wait for splits (B-link trees never make them wait):
+ *
+ *     java -jar target/benchmarks.jar ConcurrentBenchmark.lookupWhileInserting
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentBenchmark {
+    /*
+        The number of threads that insert keys while
+        lookupWhileInserting samples the latency of lookups
+     */
+    static final int INSERTER_COUNT = 3;
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"false", "true"})
+        public boolean bLinkTree;
+
+        @Param({"1000000"})
+        public int size;
+
+        @Param({"1048576", "268435456"})
+        public long cacheSizeInBytes;
+
+        NavigableSet<Integer> set;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            int[] keys = new int[this.size];
+            for (int i = 0; i < this.size; i++)
+                keys[i] = 2 * i;
+
+            try {
+                Method createConcurrentBTree = Class.forName("BenchmarkSets").getMethod("createConcurrentBTree",
+                        int.class, boolean.class, long.class, int[].class);
+                @SuppressWarnings("unchecked")
+                NavigableSet<Integer> bTree = (NavigableSet<Integer>) createConcurrentBTree.invoke(null,
+                        64, this.bLinkTree, this.cacheSizeInBytes, keys);
+                this.set = bTree;
+            }
+            catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) this.set).close();
+        }
+    }
+
+    /*
+        The share of the operations of mixed that change the
+        B-tree, half of them adds and half of them removes
+     */
+    @State(Scope.Benchmark)
+    public static class WriteMix {
+        @Param({"20"})
+        public int percentWrites;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean contains(Tree tree) {
+        return tree.set.contains(2 * ThreadLocalRandom.current().nextInt(tree.size));
+    }
+
+    /*
+        Looks up, adds or removes a random key of the whole
+        range, so about as many keys are added as removed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean mixed(Tree tree, WriteMix mix) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int key = random.nextInt(2 * tree.size);
+        int choice = random.nextInt(100);
+        if (choice < mix.percentWrites / 2)
+            return tree.set.add(key);
+        else if (choice < mix.percentWrites)
+            return tree.set.remove(key);
+        else
+            return tree.set.contains(key);
+    }
+
+    @Benchmark
+    @Group("lookupWhileInserting")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookup(Tree tree) {
+        return tree.set.contains(ThreadLocalRandom.current().nextInt(2 * tree.size));
+    }
+
+    /*
+        Inserts odd keys, which the B-tree doesn't start out
+        with, so most of the inserts add a key
+     */
+    @Benchmark
+    @Group("lookupWhileInserting")
+    @GroupThreads(INSERTER_COUNT)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean insert(Tree tree) {
+        return tree.set.add(2 * ThreadLocalRandom.current().nextInt(tree.size) + 1);
+    }
+}
@@ -0,0 +1,80 @@
+package benchmark;
+
+import java.util.Random;
+
+/**
+ * The orders in which a benchmark touches the keys of a set
+ * (see BTreeBenchmark). Each distribution picks positions
+ * among the keys of the set: SEQUENTIAL walks them in
+ * ascending order, RANDOM picks them uniformly, and ZIPFIAN
+ * picks a few hot positions most of the time (like YCSB's
+ * scrambled Zipfian distribution, the hot positions are
+ * spread over the whole set rather than clustered together).
+ */
+public enum KeyDistribution {
+    SEQUENTIAL, RANDOM, ZIPFIAN;
+
+    /*
+        The skew of the Zipfian distribution (the one YCSB uses)
+     */
+    private static final double ZIPFIAN_CONSTANT = 0.99;
+
+    /*
+        Returns count positions in [0, range). SEQUENTIAL
+        starts at 0 and wraps around, RANDOM and ZIPFIAN
+        positions are drawn from a generator seeded with seed
+     */
+    int[] positions(int count, int range, long seed) {
+        int[] positions = new int[count];
+        Random random = new Random(seed);
+        switch (this) {
+            case SEQUENTIAL:
+                for (int i = 0; i < count; i++)
+                    positions[i] = i % range;
+                break;
+            case RANDOM:
+                for (int i = 0; i < count; i++)
+                    positions[i] = random.nextInt(range);
+                break;
+            case ZIPFIAN:
+                // Gray et al., "Quickly Generating Billion-Record Synthetic Databases"
+                double zetan = 0;
+                for (int i = 1; i <= range; i++)
+                    zetan += 1 / Math.pow(i, ZIPFIAN_CONSTANT);
+                double zeta2 = 1 + 1 / Math.pow(2, ZIPFIAN_CONSTANT);
+                double alpha = 1 / (1 - ZIPFIAN_CONSTANT);
+                double eta = (1 - Math.pow(2.0 / range, 1 - ZIPFIAN_CONSTANT)) / (1 - zeta2 / zetan);
+                int[] scramble = KeyDistribution.permutation(range, random);
+                for (int i = 0; i < count; i++) {
+                    double u = random.nextDouble();
+                    double uz = u * zetan;
+                    int rank;
+                    if (uz < 1)
+                        rank = 0;
+                    else if (uz < zeta2)
+                        rank = 1;
+                    else
+                        rank = (int) (range * Math.pow(eta * u - eta + 1, alpha));
+                    positions[i] = scramble[Math.min(rank, range - 1)];
+                }
+                break;
+        }
+        return positions;
+    }
+
+    /*
+        Returns the numbers in [0, size) in a random order
+     */
+    static int[] permutation(int size, Random random) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++)
+            permutation[i] = i;
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        return permutation;
+    }
+}
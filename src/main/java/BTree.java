@@ -1,9 +1,26 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Created by devinmorgan on 2/9/17.
  */
-public class BTree implements SortedSet<Integer>  {
+public class BTree implements NavigableSet<Integer>, AutoCloseable {
     /*
         Indicates the minimum number of child nodes that
         an internal node can have (excluding the root node).
@@ -13,39 +30,281 @@ public class BTree implements SortedSet<Integer>  {
      */
     private int minNumberOfChildren;
 
+    /*
+        The fraction of each node that bulkLoad fills
+     */
+    private final double bulkLoadFillFactor;
+
+    /*
+        The paged data file that all of the nodes of the
+        B-tree are stored in
+     */
+    final NodeStore store;
+
+    /*
+        The cache of live nodes in front of store. All
+        nodes are read through it rather than from disk
+     */
+    final BufferPool pool;
+
     /*
         The root node of the B-tree. It can change
         to be a different node during splits and merges
      */
-    Node root;
+    volatile Node root;
 
     /*
         Represents the total number of keys in the B-tree
         at any given time.
      */
-    private int elementsCount = 0;
+    private final AtomicInteger elementsCount = new AtomicInteger();
+
+    /*
+        The log that every change is written to before it is
+        made durable by a checkpoint, or null for a B-tree in
+        a temporary file (see BTree.create)
+     */
+    private final WriteAheadLog log;
+
+    /*
+        The name that the B-tree's MBean is registered under
+        (see registerMBean), or null if it isn't registered
+     */
+    private ObjectName mBeanName;
+
+    /*
+        The Bloom filter of the keys, or null if the options
+        don't enable it. It's only replaced during exclusive
+        operations (see resizeFilter), and the keys are added
+        to it and removed from it during the operations that
+        add and remove them (see addKey)
+     */
+    private volatile BloomFilter filter;
+
+    /*
+        The smallest and the largest key, if they are known,
+        so that first and last don't have to descend the B-tree.
+        A change keeps them up to date as long as it doesn't
+        remove one of them, which is then looked up again by the
+        next call to first or last (see firstOrLast). Only
+        B-trees that aren't concurrent keep them, since those
+        never run two operations at the same time
+     */
+    private int firstKey;
+    private int lastKey;
+    private boolean isFirstKeyKnown = false;
+    private boolean isLastKeyKnown = false;
 
     /*-------------------------------BTree Methods-------------------------------*/
 
     /*
-        Basic constructor for B-tree
+        Basic constructor for B-tree. The nodes are stored in
+        dataFile, or in a temporary file if dataFile is null.
+        If open is true, dataFile holds an existing B-tree whose
+        layout (the minimum number of children and the kind of
+        B-tree) is read from its superblock instead of options
      */
-    private BTree(int minNumberOfChildren) {
-        this.minNumberOfChildren = minNumberOfChildren;
+    private BTree(BTreeOptions options, File dataFile, boolean open) {
+        this.bulkLoadFillFactor = options.bulkLoadFillFactor;
+        File logFile = dataFile == null ? null : WriteAheadLog.fileFor(dataFile);
+
+        // create the data file that all of the nodes are stored in (or open it)
+        try {
+            if (open) {
+                if (! logFile.exists())
+                    throw new NoSuchFileException(logFile.getPath());
+                this.store = NodeStore.openStore(dataFile);
+            }
+            else {
+                if (options.bLinkTree && options.orderStatistics)
+                    throw new IllegalArgumentException("a B-link tree can't keep order statistics");
+                int pageSize = Node.pageSizeFor(options.minNumberOfChildren, options.orderStatistics);
+                boolean isBPlusTree = options.bPlusTree || options.bLinkTree;
+                if (dataFile == null)
+                    this.store = NodeStore.createTemporaryStore(pageSize, isBPlusTree, options.orderStatistics,
+                            options.bLinkTree, options.minNumberOfChildren);
+                else
+                    this.store = NodeStore.createStore(dataFile, pageSize, isBPlusTree, options.orderStatistics,
+                            options.bLinkTree, options.minNumberOfChildren);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (options.memoryMapped)
+            this.store.mapMemory();
+        this.minNumberOfChildren = this.store.minNumberOfChildren;
+        this.pool = new BufferPool(this.store, options.cacheSizeInBytes, options.writeBack || dataFile != null,
+                dataFile == null ? options.flushIntervalMillis : 0, options.concurrent || this.store.isBLinkTree,
+                options.instrumented ? new Instrumentation() : null);
+
+        try {
+            if (open) {
+                this.log = WriteAheadLog.open(logFile, options.durability, options.syncIntervalMillis);
+                boolean recovered = this.recover();
+                this.openFilter(options, recovered);
+                return;
+            }
 
-        // create an empty root node
-        this.root = Node.allocateNode(this.minNumberOfChildren, null);
-        this.root.isLeaf = true;
+            // create an empty root node
+            Node root = Node.allocateNode(this.pool, this.minNumberOfChildren);
+            root.isLeaf = true;
+            this.setRoot(root);
+
+            // write this new node to disk
+            Node.writeNodeToDisk(this.root);
+
+            if (dataFile == null)
+                this.log = null;
+            else {
+                this.pool.flush();
+                this.store.checkpoint(root.getPointer(), 0, options.durability != Durability.NONE);
+                this.log = WriteAheadLog.create(logFile, options.durability, options.syncIntervalMillis);
+                Files.deleteIfExists(BloomFilter.fileFor(dataFile).toPath());
+            }
+            if (options.bloomFilter)
+                this.filter = BloomFilter.create(0, options.bloomFilterCountersPerKey);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        // write this new node to disk
-        Node.writeNodeToDisk(this.root);
+    /*
+        Loads the Bloom filter that close saved, unless recovery
+        changed the B-tree since, or builds it from the keys.
+        The saved filter is deleted either way, because the
+        B-tree can change and crash before it's saved again
+     */
+    private void openFilter(BTreeOptions options, boolean recovered) throws IOException {
+        File filterFile = BloomFilter.fileFor(this.store.file);
+        if (options.bloomFilter) {
+            BloomFilter filter = recovered ? null : BloomFilter.load(filterFile, this.size());
+            if (filter == null)
+                filter = this.buildFilter(BloomFilter.create(this.size(), options.bloomFilterCountersPerKey));
+            this.filter = filter;
+        }
+        if (Files.deleteIfExists(filterFile.toPath()) && options.durability != Durability.NONE)
+            WriteAheadLog.syncDirectory(filterFile);
+    }
+
+    /*
+        Adds every key to filter, which must be empty, and returns it
+     */
+    private BloomFilter buildFilter(BloomFilter filter) {
+        this.pool.beginExclusiveOperation();
+        try {
+            this.forEachInt(filter::add);
+        }
+        finally {
+            this.pool.endOperation();
+        }
+        return filter;
+    }
+
+    /*
+        Replaces the Bloom filter with one that has room for
+        twice as many keys once the B-tree has more keys than
+        the filter was sized for
+     */
+    private void resizeFilter() {
+        this.pool.beginExclusiveOperation();
+        try {
+            BloomFilter filter = this.filter;
+            if (this.size() > filter.capacity)
+                this.filter = this.buildFilter(filter.resized(this.size()));
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    /*
+        Brings the B-tree back to the state it was in when the
+        last change was committed to its log: starts from the
+        last checkpoint, which only has to read the superblock
+        and the root, and replays the changes that were logged
+        after it. If there were any, it checkpoints, so that
+        they only need to be replayed once, and returns true
+     */
+    private boolean recover() throws IOException {
+        List<WriteAheadLog.Change> changes = new ArrayList<WriteAheadLog.Change>();
+        boolean recovered = this.log.recover(this.store, changes);
+        if (this.store.getRootPageId() == NodeStore.NO_PAGE)
+            throw new IOException(this.store.file + " was never completely created");
+        this.setRoot(this.pool.getNode(this.store.getRootPageId()));
+        this.elementsCount.set(this.store.getElementCount());
+
+        for (WriteAheadLog.Change change : changes) {
+            this.pool.beginOperation();
+            try {
+                if (change.type == WriteAheadLog.ADD)
+                    this.addKey(change.key);
+                else if (change.type == WriteAheadLog.REMOVE)
+                    this.removeKey(change.key);
+                else
+                    this.clearAllNodes();
+            }
+            finally {
+                this.pool.endOperation();
+            }
+        }
+        if (recovered)
+            this.checkpoint();
+        return recovered;
     }
 
     /*
         The public factory method for the B-tree class.
      */
     public static BTree createNewBTree() {
-        return BTree.createNewBTreeWithMinNumberOfChildren(1000);
+        return BTree.createNewBTree(new BTreeOptions());
+    }
+
+    /*
+        The public factory method for a B-tree with
+        non-default settings, such as the size of the cache.
+        Its nodes are stored in a temporary file that is
+        deleted when the JVM exits
+     */
+    public static BTree createNewBTree(BTreeOptions options) {
+        return new BTree(options, null, false);
+    }
+
+    /*
+        Creates a new, empty B-tree that is stored in file
+        (replacing whatever the file held before), and that
+        can be opened again after the JVM exits (see open).
+        The B-tree is durable: every change is written to a
+        write-ahead log next to file (with the suffix .wal)
+        before add or remove returns, and changed nodes are
+        written to file by checkpoints (see WriteAheadLog), so
+        write-back mode is implied and flushIntervalMillis
+        is ignored. close() should be called when the B-tree
+        isn't used anymore, but the changes are not lost if
+        the JVM exits before that
+     */
+    public static BTree create(Path file, BTreeOptions options) {
+        return new BTree(options, file.toFile(), false);
+    }
+
+    /*
+        Opens a B-tree that was created with create(file,
+        options). Only the superblock and the root are read,
+        plus the changes since the last checkpoint if the
+        B-tree wasn't closed. The minimum number of children
+        and the kind of B-tree are the ones it was created with
+     */
+    public static BTree open(Path file) {
+        return BTree.open(file, new BTreeOptions());
+    }
+
+    /*
+        Opens a B-tree with the other settings of options,
+        such as the size of the cache and whether it's concurrent
+     */
+    public static BTree open(Path file, BTreeOptions options) {
+        return new BTree(options, file.toFile(), true);
     }
 
     /*
@@ -55,7 +314,405 @@ public class BTree implements SortedSet<Integer>  {
         useful for testing)
      */
     static BTree createNewBTreeWithMinNumberOfChildren(int minNumberOfChildren) {
-        return new BTree(minNumberOfChildren);
+        return BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(minNumberOfChildren));
+    }
+
+    /*
+        Makes node the root of the B-tree. The root is
+        kept pinned in the cache for as long as it is the root
+     */
+    private void setRoot(Node node) {
+        if (this.root != null)
+            this.pool.unpin(this.root);
+        this.root = node;
+        this.pool.pin(node);
+    }
+
+    /*
+        Returns the root after latching it (see BufferPool.latch).
+        Another thread can replace the root while this one waits
+        for its latch, so the latch is taken again until the
+        latched node is still the root
+     */
+    private Node latchRoot(boolean exclusive) {
+        if (! this.pool.concurrent)
+            return this.root;
+
+        while (true) {
+            Node root = this.root;
+            this.pool.pinForOperation(root);
+            this.pool.latch(root, exclusive);
+            if (root == this.root)
+                return root;
+            this.pool.unlatch(root);
+        }
+    }
+
+    /*
+        Releases the latches on the nodes above node once an
+        insert or delete can't change them anymore. With order
+        statistics, every node on the path still has its count
+        changed at the end, so the whole path stays latched
+     */
+    private void unlatchAncestors(Node node) {
+        if (! this.store.hasChildCounts)
+            this.pool.unlatchAllExcept(node);
+    }
+
+    /*
+        Latches the child of node at index for reading (or
+        exclusively) and releases the latches above it. In a
+        B-link tree, node's latch is released before the child
+        is latched instead, so that nobody waits for a latch
+        while holding one on the way down. The child can then be
+        split in between, so the caller has to check whether
+        it has to follow the child's right-link (see moveRight)
+     */
+    private Node latchChild(Node node, int index, boolean exclusive) {
+        if (! this.store.isBLinkTree) {
+            Node child = node.getLatchedChild(index, exclusive);
+            this.pool.unlatchAllExcept(child);
+            return child;
+        }
+
+        Node child = this.pool.getNode(node.childPointers[index]);
+        this.pool.unlatch(node);
+        this.pool.latch(child, exclusive);
+        return child;
+    }
+
+    /*
+        Returns the node to the right of node in a B-link tree
+        after releasing node's latch and latching it for
+        reading (or exclusively). Nodes of a B-link tree are
+        never freed while it's in use, so the link stays valid
+     */
+    private Node latchRightLink(Node node, boolean exclusive) {
+        Node right = this.pool.getNode(node.rightLink);
+        this.pool.unlatch(node);
+        this.pool.latch(right, exclusive);
+        return right;
+    }
+
+    /*
+        Follows the right-links from node (which is latched)
+        to the node that key belongs to, if node was split
+        after the node that led to it was read. Returns the
+        node that key belongs to, which is latched instead
+     */
+    private Node moveRight(Node node, int key, boolean exclusive) {
+        while (node.isLeftOf(key))
+            node = this.latchRightLink(node, exclusive);
+        return node;
+    }
+
+    /*
+        Writes every node that has changes which haven't
+        been written to disk yet. This is only needed for
+        B-trees that were created in write-back mode. A
+        B-tree in a data file checkpoints instead, after which
+        its log only needs to record the changes that follow
+     */
+    public void flush() {
+        if (this.log != null) {
+            this.checkpoint();
+            return;
+        }
+
+        this.pool.beginExclusiveOperation();
+        try {
+            this.pool.flush();
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    /*
+        Like flush, but also forces the data file (and in
+        memory-mapped mode, its mapped pages) onto the disk,
+        so that the nodes survive a crash of the machine and
+        not only of the JVM. A checkpoint already does that
+     */
+    public void force() {
+        this.flush();
+        if (this.log == null || this.log.durability == Durability.NONE) {
+            try {
+                this.store.force();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+        Returns how many times the write-ahead log and the data
+        file have been synced onto the disk so far, and how long
+        that took. Temporary B-trees only sync in force
+     */
+    public SyncStats getSyncStats() {
+        long logSyncCount = this.log == null ? 0 : this.log.getSyncCount();
+        long logSyncNanos = this.log == null ? 0 : this.log.getSyncNanos();
+        long logSyncFailureCount = this.log == null ? 0 : this.log.getSyncFailureCount();
+        return new SyncStats(logSyncCount, logSyncNanos, logSyncFailureCount, this.store.getSyncCount(),
+                this.store.getSyncNanos());
+    }
+
+    /*
+        Writes every changed node to the data file through
+        the write-ahead log (see WriteAheadLog.checkpoint)
+     */
+    private void checkpoint() {
+        this.pool.beginExclusiveOperation();
+        try {
+            this.log.checkpoint(this.pool, this.root.getPointer(), this.elementsCount.get());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    /*
+        Checkpoints a B-tree in a data file once its log has
+        grown large or most of its cache holds changed nodes,
+        which can't be evicted until the next checkpoint
+     */
+    private void checkpointIfNeeded() {
+        if (this.log.isFull() || this.pool.isMostlyDirty()) {
+            this.pool.beginExclusiveOperation();
+            try {
+                // another thread may have checkpointed while this one waited
+                if (this.log.isFull() || this.pool.isMostlyDirty())
+                    this.checkpoint();
+            }
+            finally {
+                this.pool.endOperation();
+            }
+        }
+    }
+
+    /*
+        Makes change, which adds or removes key and returns
+        true if it did. In a B-tree with a data file the change
+        is logged as a record of the given type, and this only
+        returns once the record is on disk. The change is made
+        and logged while holding the lock of its key, so that
+        concurrent changes of a key are logged in the order
+        they were made. The wait for the disk happens after the
+        operation has ended, so the records of other threads
+        can be committed together with it
+     */
+    private boolean change(byte type, int key, BooleanSupplier change) {
+        if (this.log == null) {
+            this.pool.beginOperation();
+            try {
+                return change.getAsBoolean();
+            }
+            finally {
+                this.pool.endOperation();
+            }
+        }
+
+        boolean changed;
+        long lsn = 0;
+        Lock keyLock = this.log.lockFor(key);
+        keyLock.lock();
+        try {
+            this.pool.beginOperation();
+            try {
+                changed = change.getAsBoolean();
+                if (changed)
+                    lsn = this.log.append(type, key);
+            }
+            finally {
+                this.pool.endOperation();
+            }
+        }
+        finally {
+            keyLock.unlock();
+        }
+        if (changed)
+            this.commit(lsn);
+        return changed;
+    }
+
+    /*
+        Waits until the log record with the given LSN is on
+        disk, and then checkpoints if it's time to
+     */
+    private void commit(long lsn) {
+        try {
+            this.log.commit(lsn);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.checkpointIfNeeded();
+    }
+
+    /*
+        Checkpoints a B-tree in a data file and closes its
+        files. A B-tree in a temporary file is deleted. The
+        B-tree can't be used anymore afterwards
+     */
+    @Override
+    public void close() {
+        this.unregisterMBean();
+        this.pool.beginExclusiveOperation();
+        try {
+            try {
+                if (this.log != null) {
+                    this.log.checkpoint(this.pool, this.root.getPointer(), this.elementsCount.get());
+                    if (this.filter != null)
+                        this.filter.save(BloomFilter.fileFor(this.store.file), this.elementsCount.get(),
+                                this.log.durability != Durability.NONE);
+                }
+            }
+            finally {
+                // the files are closed even if the checkpoint fails, and the log is then recovered from
+                if (this.log != null)
+                    this.log.close();
+                this.pool.close();
+                this.store.close();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    /*
+        Returns a snapshot of the hit rate and eviction
+        counts of the cache of nodes
+     */
+    public CacheStats getCacheStats() {
+        return this.pool.getStats();
+    }
+
+    /*
+        Returns a snapshot of the counters and latencies of an
+        instrumented B-tree (see BTreeOptions.instrumented) and
+        of the height, number of nodes and fill factor of the
+        B-tree. Measuring the height reads the nodes on the path
+        from the root to the smallest key
+     */
+    public BTreeStats getStats() {
+        int nodeCount = this.getNodeCount();
+        return new BTreeStats(this.pool.instrumentation, this.getHeight(), nodeCount,
+                this.getAverageFillFactor(nodeCount));
+    }
+
+    /*
+        The parts of getStats, which BTreeMonitor also reads
+        one at a time. The height is the number of nodes on
+        the path from the root to the smallest key
+     */
+    int getHeight() {
+        int height = 1;
+        this.pool.beginOperation();
+        try {
+            Node node = this.latchRoot(false);
+            while (! node.isLeaf) {
+                Node child = node.getLatchedChild(0, false);
+                this.pool.unlatchAllExcept(child);
+                node = child;
+                height++;
+            }
+        }
+        finally {
+            this.pool.endOperation();
+        }
+        return height;
+    }
+
+    int getNodeCount() {
+        return this.store.getLivePageCount();
+    }
+
+    double getAverageFillFactor(int nodeCount) {
+        return (double) this.size() / ((long) nodeCount * (2 * this.minNumberOfChildren - 1));
+    }
+
+    /*
+        True if the options enable the Bloom filter (see BTreeOptions.bloomFilter)
+     */
+    boolean hasBloomFilter() {
+        return this.filter != null;
+    }
+
+    /*
+        Returns a snapshot of the size of the Bloom filter and
+        of how many lookups of absent keys it answered. Throws
+        an IllegalStateException if the options don't enable
+        the Bloom filter (see BTreeOptions.bloomFilter)
+     */
+    public BloomFilterStats getBloomFilterStats() {
+        BloomFilter filter = this.filter;
+        if (filter == null)
+            throw new IllegalStateException("the B-tree was not created with a Bloom filter");
+        return new BloomFilterStats(filter.capacity, filter.hashCount, filter.getMemoryBytes(),
+                filter.expectedFalsePositiveRate(this.size()), filter.definiteMissCount.sum(),
+                filter.falsePositiveCount.sum());
+    }
+
+    /*
+        Publishes the B-tree's statistics (see getStats) over
+        JMX, as an MBean named btree:type=BTree,name=<name> in
+        the platform MBean server, and returns its name. The
+        MBean is unregistered when the B-tree is closed
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        if (this.mBeanName != null)
+            throw new IllegalStateException("the MBean is already registered as " + this.mBeanName);
+        try {
+            ObjectName mBeanName = new ObjectName("btree:type=BTree,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new BTreeMonitor(this), mBeanName);
+            this.mBeanName = mBeanName;
+            return mBeanName;
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException("can't register the MBean " + name, e);
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (this.mBeanName == null)
+            return;
+        ObjectName mBeanName = this.mBeanName;
+        this.mBeanName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+        }
+        catch (InstanceNotFoundException e) {
+            // someone else already unregistered it through the MBean server, which is all that close wants
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("can't unregister the MBean " + mBeanName, e);
+        }
+    }
+
+    /*
+        Returns the time at which an operation starts, if the
+        B-tree is instrumented (see recordLatency)
+     */
+    private long startTiming() {
+        return this.pool.instrumentation == null ? 0 : System.nanoTime();
+    }
+
+    /*
+        Records the latency of an operation that started at
+        start (see startTiming), if the B-tree is instrumented
+     */
+    private void recordLatency(BTreeStats.Operation operation, long start) {
+        if (this.pool.instrumentation != null)
+            this.pool.instrumentation.recordLatency(operation, System.nanoTime() - start);
     }
 
     /*
@@ -64,17 +721,20 @@ public class BTree implements SortedSet<Integer>  {
         is found in the B-tree (i.e. it exists in
         the B-tree), then a NodeIndexPair containing
         the node and the key index, the index in the
-         node where key was found, is returned.
+         node where key was found, is returned. The keys
+        of the internal nodes of a B+tree are only copies,
+        so there the search always continues down to a leaf.
+        In a B-link tree, the search moves right on every
+        level where the node was split after its parent was read
      */
     NodeIndexPair search(Node root, int key) {
+        root = this.moveRight(root, key, false);
 
-        // get the index of the first key in root that is larger than key
-        int i = 0;
-        while (i < root.keys.size() && key > root.keys.get(i))
-            i++;
+        // binary search root's keys for key
+        int i = root.indexOfKey(key);
 
         // if key is actually one of root's keys, then we found it
-        if (i < root.keys.size() && key == root.keys.get(i))
+        if (i >= 0 && (root.isLeaf || ! this.store.isBPlusTree))
             return new NodeIndexPair(root, i);
 
         // if we didn't find the key and this node
@@ -85,8 +745,7 @@ public class BTree implements SortedSet<Integer>  {
         // if this node is not a leaf, recurse on
         // the subtree that would contain key
         else {
-            String pointer = root.childPointers.get(i);
-            Node child = Node.readNodeFromDisk(pointer);
+            Node child = this.latchChild(root, root.childIndexFor(key), false);
             return search(child, key);
         }
     }
@@ -97,48 +756,54 @@ public class BTree implements SortedSet<Integer>  {
         used during inserts to ensure that the each node
         always has between minNumberOfChildren - 1 and
         2*minNumberOfChildren -1 keys at any time (excluding
-        the root node)
+        the root node). A full leaf of a B+tree keeps its
+        median key: the key is moved to newSibling and a
+        copy of it is inserted into parent
      */
     private void splitChild(Node parent, int index, Node fullNode) {
+        if (this.pool.instrumentation != null)
+            this.pool.instrumentation.splitCount.increment();
+
         // create a new sibling to populate
-        Node newSibling = Node.allocateNode(minNumberOfChildren, parent.getPointer());
+        Node newSibling = Node.allocateNode(this.pool, minNumberOfChildren);
 
         // the newSibling is a leaf iff the oldSibling is a leaf
         newSibling.isLeaf = fullNode.isLeaf;
 
-        for (int j = minNumberOfChildren; j < 2* minNumberOfChildren - 1; j++) {
-            // remove the upper half of keys from
-            // fullNode and add them to newSibling
-            Integer val = fullNode.keys.remove(minNumberOfChildren);
-            newSibling.keys.add(val);
-
-            // remove the upper half of pointers from
-            // fullNode and add them to newSibling
-            String pointer = fullNode.childPointers.remove(minNumberOfChildren);
-            newSibling.childPointers.add(pointer);
+        if (fullNode.isBPlusLeaf()) {
+            // move the median and the upper half of keys to newSibling,
+            // which goes right after fullNode in the list of leaves
+            System.arraycopy(fullNode.keys, minNumberOfChildren - 1, newSibling.keys, 0, minNumberOfChildren);
+            newSibling.keyCount = minNumberOfChildren;
+            fullNode.keyCount = minNumberOfChildren - 1;
+            Node.linkLeafAfter(fullNode, newSibling);
+            parent.insertKeyWithRightChild(index, newSibling.keys[0], newSibling.getPointer());
+            parent.updateChildCount(index, fullNode);
+            parent.updateChildCount(index + 1, newSibling);
+
+            Node.writeNodeToDisk(newSibling);
+            Node.writeNodeToDisk(fullNode);
+            Node.writeNodeToDisk(parent);
+            return;
         }
 
-        // there is always 1 more pointer than key
-        if (fullNode.isLeaf)
-            newSibling.childPointers.add(null);
-        else
-            newSibling.childPointers.add(fullNode.childPointers.remove(minNumberOfChildren));
-
-        // insert the pointer to newSibling at index + 1 in parent's childPointers
-        parent.childPointers.add(index + 1, newSibling.getPointer());
-
-        // remove the median key value from oldSibling and insert it at index in parent's keys
-        parent.keys.add(index, fullNode.keys.remove(minNumberOfChildren - 1));
-
-        // set the parent pointer of the child nodes of newSibling
-        // to be newSibling and save these changes to disk
-        if (! newSibling.isLeaf) {
-            for (String pointer : newSibling.childPointers) {
-                Node child = Node.readNodeFromDisk(pointer);
-                child.parentPointer = newSibling.getPointer();
-                Node.writeNodeToDisk(child);
-            }
+        // move the upper half of keys and pointers from fullNode to newSibling
+        // (there is always 1 more pointer than key)
+        System.arraycopy(fullNode.keys, minNumberOfChildren, newSibling.keys, 0, minNumberOfChildren - 1);
+        if (! fullNode.isLeaf) {
+            System.arraycopy(fullNode.childPointers, minNumberOfChildren, newSibling.childPointers, 0, minNumberOfChildren);
+            if (fullNode.childCounts != null)
+                System.arraycopy(fullNode.childCounts, minNumberOfChildren, newSibling.childCounts, 0, minNumberOfChildren);
         }
+        newSibling.keyCount = minNumberOfChildren - 1;
+
+        // remove the median key value from oldSibling and insert it at index
+        // in parent's keys, with the pointer to newSibling to the right of it
+        int median = fullNode.keys[minNumberOfChildren - 1];
+        fullNode.keyCount = minNumberOfChildren - 1;
+        parent.insertKeyWithRightChild(index, median, newSibling.getPointer());
+        parent.updateChildCount(index, fullNode);
+        parent.updateChildCount(index + 1, newSibling);
 
         // write the changes made to newSibling, oldSibling, and parent to disk
         Node.writeNodeToDisk(newSibling);
@@ -154,168 +819,779 @@ public class BTree implements SortedSet<Integer>  {
         Node root = this.root;
 
         // split the tree's root if it is full
-        if (root.keys.size() == 2* this.minNumberOfChildren - 1) {
+        if (root.isFull()) {
 
             // initialize a new root for the B-tree
-            Node newRoot = Node.allocateNode(this.minNumberOfChildren, null);
+            Node newRoot = Node.allocateNode(this.pool, this.minNumberOfChildren);
             newRoot.isLeaf = false;
-            newRoot.childPointers.add(root.getPointer());
-            root.parentPointer = newRoot.getPointer();
+            newRoot.childPointers[0] = root.getPointer();
+            this.pool.latch(newRoot, true);
 
             // set newRoot as the new root and split the old root
-            this.root = newRoot;
+            this.setRoot(newRoot);
             this.splitChild(newRoot, 0, root);
 
             // continue the search in the non-full root
             this.insertNonFull(newRoot, key);
-            int jkk = 7;
         }
         else
             this.insertNonFull(root, key);
     }
 
+    /*
+        Inserts key into the B-tree unless it's already in it,
+        in which case nothing is changed and false is returned.
+        The path from the root to a leaf is first searched
+        without changing anything. If key isn't found, only the
+        full nodes at the bottom of the path need to be split,
+        as insertNonFull does on its way down from the deepest
+        node on the path that isn't full. The nodes on the path
+        stay pinned by the operation, so none of them is read
+        from disk twice. In a concurrent B-tree, the path is
+        latched exclusively, and the latches above a node that
+        isn't full are released, since a split below it can't
+        change them
+     */
+    private boolean insertIfAbsent(int key) {
+        Node node = this.latchRoot(true);
+        Node deepestNonFullNode = null;
+        while (true) {
+            // the keys of a B+tree's internal nodes are only copies
+            int i = node.indexOfKey(key);
+            if (i >= 0 && (node.isLeaf || ! this.store.isBPlusTree))
+                return false;
+
+            if (! node.isFull()) {
+                deepestNonFullNode = node;
+                this.unlatchAncestors(node);
+            }
+            if (node.isLeaf)
+                break;
+            node = node.getLatchedChild(node.childIndexFor(key), true);
+        }
+
+        // if every node on the path is full, the root has to be split too
+        if (deepestNonFullNode == null)
+            this.insert(key);
+        else {
+            this.countKeyAbove(deepestNonFullNode, key);
+            this.insertNonFull(deepestNonFullNode, key);
+        }
+        return true;
+    }
+
+    /*
+        Inserts key into its leaf if the leaf isn't full,
+        which only latches the leaf exclusively and the nodes
+        above it for reading, one at a time. Returns whether
+        key was inserted, or null if the leaf is full (or is
+        the root), in which case nothing has been changed and
+        insertIfAbsent has to latch the path exclusively
+     */
+    private Boolean insertIntoLeaf(int key) {
+        Node node = this.latchRoot(false);
+        if (node.isLeaf)
+            return null;
+
+        while (! node.isLeaf) {
+            // the keys of a B+tree's internal nodes are only copies
+            if (node.indexOfKey(key) >= 0 && ! this.store.isBPlusTree)
+                return false;
+
+            Node child = this.pool.getNode(node.childPointers[node.childIndexFor(key)]);
+            this.pool.latch(child, child.isLeaf);
+            this.pool.unlatchAllExcept(child);
+            node = child;
+        }
+
+        int i = node.indexOfKey(key);
+        if (i >= 0)
+            return false;
+        if (node.isFull())
+            return null;
+
+        node.insertKey(-i - 1, key);
+        Node.writeNodeToDisk(node);
+        this.elementsCount.incrementAndGet();
+        return true;
+    }
+
+    /*
+        Adds the key that is about to be inserted below node to
+        the counts of the nodes on the path from the root down
+        to node (if the B-tree keeps order statistics). The
+        nodes on the path are still pinned by the operation
+     */
+    private void countKeyAbove(Node node, int key) {
+        if (! this.store.hasChildCounts)
+            return;
+
+        for (Node ancestor = this.root; ancestor != node; ) {
+            int i = ancestor.childIndexFor(key);
+            ancestor.childCounts[i]++;
+            Node.writeNodeToDisk(ancestor);
+            ancestor = this.pool.getNode(ancestor.childPointers[i]);
+        }
+    }
+
     /*
         Inserts a key into the B-tree according to CLRS
         Chapter 18, B-Trees, on page 496
      */
     private void insertNonFull(Node node, int key) {
-        if (node.isLeaf) {
-            // to insert the key at the correct index in node.keys
-            node.keys.add(key);
-            Collections.sort(node.keys);
+        // find the index at which the key should be inserted
+        int i = node.childIndexFor(key);
 
-            // ensure that the leaf node has the correct number of pointers
-            node.childPointers.clear();
-            for (int i = 0; i < node.keys.size() + 1; i++)
-                node.childPointers.add(null);
+        if (node.isLeaf) {
+            // shift the larger keys over to insert the key at the correct index
+            node.insertKey(i, key);
 
             // save the updated leaf node
             Node.writeNodeToDisk(node);
 
             // increment the elements count
-            this.elementsCount++;
+            this.elementsCount.incrementAndGet();
         }
         else {
-            // find the index at which the key should be inserted
-            int i = node.keys.size() - 1;
-            while (i >= 0 && key < node.keys.get(i))
-                i--;
-            i++;
-
             // split the eligible next node if it is full
-            Node nextNode = Node.readNodeFromDisk(node.childPointers.get(i));
-            if (nextNode.keys.size() == 2* minNumberOfChildren - 1) {
+            Node nextNode = this.pool.getNode(node.childPointers[i]);
+            if (nextNode.isFull()) {
                 splitChild(node, i, nextNode);
 
                 // check to see if i is still the appropriate index
                 // after node gets modified from split()
-                if (key > node.keys.get(i)) {
-                    nextNode = Node.readNodeFromDisk(node.childPointers.get(i+1));
+                if (key >= node.keys[i]) {
+                    i++;
+                    nextNode = this.pool.getNode(node.childPointers[i]);
                 }
             }
 
+            // the key is going to be in nextNode's subtree
+            if (node.childCounts != null) {
+                node.childCounts[i]++;
+                Node.writeNodeToDisk(node);
+            }
+
             // continue the insertion; we only insert keys into leaves
             insertNonFull(nextNode, key);
         }
     }
 
     /*
-        Deletes a key from the B-tree according to CLRS
-        Chapter 18, B-Tress, on Pages 499-502
+        Deletes a key from the B-tree according to CLRS
+        Chapter 18, B-Tress, on Pages 499-502
+     */
+    private boolean delete(Node node, int key) {
+        if (this.store.isBPlusTree)
+            return this.deleteFromBPlusTree(node, key);
+
+        int i = node.indexOfKey(key);
+
+        // case 0
+        if (node.isLeaf && i < 0)
+            return false;
+
+        // case 1
+        else if (node.isLeaf) {
+
+            // remove the key
+            node.removeKey(i);
+
+            // write the changes to node on disk
+            Node.writeNodeToDisk(node);
+            this.elementsCount.decrementAndGet();
+            return true;
+        }
+
+        // case 2
+        else if (i >= 0) {
+
+            // case a
+            Node precedingChild = node.getLatchedChild(i, true);
+            if (precedingChild.keyCount >= minNumberOfChildren) {
+
+                // replace key with next smallest key from precedingChild
+                // and then delete that key from precedingChild's subtree
+                int nextSmallestKey = precedingChild.getLargestKeyInSubtree();
+                node.keys[i] = nextSmallestKey;
+                Node.writeNodeToDisk(node);
+                return this.deleteFromChild(node, i, precedingChild, nextSmallestKey);
+            }
+
+            // case b
+            Node succeedingChild = node.getLatchedChild(i + 1, true);
+            if (succeedingChild.keyCount >= minNumberOfChildren) {
+
+                // replace key with next largest key from succeedingChild
+                // and then delete that key from succeedingChild's subtree
+                int nextLargestKey = succeedingChild.getSmallestKeyInSubtree();
+                node.keys[i] = nextLargestKey;
+                Node.writeNodeToDisk(node);
+                return this.deleteFromChild(node, i + 1, succeedingChild, nextLargestKey);
+            }
+
+            // case c
+            // merge key and succeedingChild into precedingChild
+            Node containingKeyNode = Node.merge(precedingChild, succeedingChild, node, i);
+
+            // if the node was the root and is now empty, set
+            // the B-tree's new root to be containingKeyNode
+            if (this.root == node && node.keyCount == 0) {
+                this.setRoot(containingKeyNode);
+                this.unlatchAncestors(containingKeyNode);
+                return this.delete(containingKeyNode, key);
+            }
+
+            // delete key from newly merged precedingChild
+            return this.deleteFromChild(node, i, containingKeyNode, key);
+        }
+
+        // case 3
+        else {
+
+            // determine the index of the child node that
+            // would contain key, if it exits in the B-tree
+            i = -i - 1;
+
+            // case a | case b
+            Node containingKeyNode = node.getLatchedChild(i, true);
+            if (containingKeyNode.keyCount == minNumberOfChildren - 1) {
+                Node child = containingKeyNode;
+                containingKeyNode = containingKeyNode.grabElementFromOrMergeWithSiblingNode(node, i);
+
+                // if the node was the root and is now empty, set
+                // the B-tree's new root to be containingKeyNode
+                if (this.root == node && node.keyCount == 0) {
+                    this.setRoot(containingKeyNode);
+                    this.unlatchAncestors(containingKeyNode);
+                    return this.delete(containingKeyNode, key);
+                }
+
+                // the child was merged into its left sibling
+                if (containingKeyNode != child)
+                    i--;
+            }
+
+            // recursively delete key
+            return this.deleteFromChild(node, i, containingKeyNode, key);
+        }
+    }
+
+    /*
+        Deletes a key from a B+tree. Every key is in a leaf,
+        so only cases 1 and 3 of delete apply: on the way
+        down, each child that only has the minimum number of
+        keys either grabs a key from a sibling or gets merged
+        with one. The copies of key that are left in internal
+        nodes still separate their children correctly, so
+        they are kept
+     */
+    private boolean deleteFromBPlusTree(Node node, int key) {
+        if (node.isLeaf) {
+            int i = node.indexOfKey(key);
+            if (i < 0)
+                return false;
+
+            node.removeKey(i);
+            Node.writeNodeToDisk(node);
+            this.elementsCount.decrementAndGet();
+            return true;
+        }
+
+        int i = node.childIndexFor(key);
+        Node containingKeyNode = node.getLatchedChild(i, true);
+        if (containingKeyNode.keyCount == minNumberOfChildren - 1) {
+            Node child = containingKeyNode;
+            containingKeyNode = containingKeyNode.grabElementFromOrMergeWithSiblingNode(node, i);
+
+            // if the node was the root and is now empty, set
+            // the B-tree's new root to be containingKeyNode
+            if (this.root == node && node.keyCount == 0) {
+                this.setRoot(containingKeyNode);
+                this.unlatchAncestors(containingKeyNode);
+                return this.deleteFromBPlusTree(containingKeyNode, key);
+            }
+
+            // the child was merged into its left sibling
+            if (containingKeyNode != child)
+                i--;
+        }
+        return this.deleteFromChild(node, i, containingKeyNode, key);
+    }
+
+    /*
+        Deletes key from the subtree of child, which is the
+        child of node at index, and takes it out of node's
+        count of that subtree if it was deleted (if the B-tree
+        keeps order statistics). Child has at least the minimum
+        number of keys plus one by now, so deleting a key below
+        it can't change node, whose latch is released
+     */
+    private boolean deleteFromChild(Node node, int index, Node child, int key) {
+        this.unlatchAncestors(child);
+        boolean deleted = this.delete(child, key);
+        if (deleted && node.childCounts != null) {
+            node.childCounts[index]--;
+            Node.writeNodeToDisk(node);
+        }
+        return deleted;
+    }
+
+    /*
+        Deletes key from its leaf if the leaf has more than the
+        minimum number of keys, which only latches the leaf
+        exclusively and the nodes above it for reading, one at
+        a time. Returns whether key was deleted, or null if the
+        leaf would underflow, the leaf is the root or key is in
+        an internal node, in which case nothing has been changed
+        and delete has to latch the path exclusively
+     */
+    private Boolean deleteFromLeaf(int key) {
+        Node node = this.latchRoot(false);
+        if (node.isLeaf)
+            return null;
+
+        while (! node.isLeaf) {
+            // the keys of a B+tree's internal nodes are only copies
+            if (node.indexOfKey(key) >= 0 && ! this.store.isBPlusTree)
+                return null;
+
+            Node child = this.pool.getNode(node.childPointers[node.childIndexFor(key)]);
+            this.pool.latch(child, child.isLeaf);
+            this.pool.unlatchAllExcept(child);
+            node = child;
+        }
+
+        int i = node.indexOfKey(key);
+        if (i < 0)
+            return false;
+        if (node.keyCount == minNumberOfChildren - 1)
+            return null;
+
+        node.removeKey(i);
+        Node.writeNodeToDisk(node);
+        this.elementsCount.decrementAndGet();
+        return true;
+    }
+
+    /*
+        Returns the leaf that key belongs to in a B-link tree,
+        latched exclusively. The nodes above it are only
+        latched for reading, one at a time, and are pushed onto
+        path (unless it's null) for adding the nodes that splits
+        create to them
+     */
+    private Node latchBLinkLeaf(int key, NodePath path) {
+        Node node = this.latchRoot(false);
+        if (node.isLeaf) {
+            this.pool.unlatch(node);
+            this.pool.latch(node, true);
+        }
+
+        while (true) {
+            node = this.moveRight(node, key, node.isLeaf);
+            if (node.isLeaf)
+                return node;
+            if (path != null)
+                path.push(node, 0);
+
+            // only the leaf is latched exclusively
+            Node child = this.pool.getNode(node.childPointers[node.childIndexFor(key)]);
+            this.pool.unlatch(node);
+            this.pool.latch(child, child.isLeaf);
+            node = child;
+        }
+    }
+
+    /*
+        Inserts key into a B-link tree unless it's already in
+        it (see BTreeOptions.bLinkTree). Full nodes are split
+        on the way back up rather than on the way down, like
+        Lehman and Yao do it: the upper half of the node is
+        moved to a new node that's linked to its right, which
+        readers can reach through the right-link as soon as the
+        node is unlatched, and only then is the new node added
+        to the parent. So a split never latches more than one
+        node at a time
+     */
+    private boolean insertIntoBLinkTree(int key) {
+        NodePath path = new NodePath();
+        Node node = this.latchBLinkLeaf(key, path);
+        int i = node.indexOfKey(key);
+        if (i >= 0)
+            return false;
+        this.elementsCount.incrementAndGet();
+
+        if (! node.isFull()) {
+            node.insertKey(-i - 1, key);
+            Node.writeNodeToDisk(node);
+            return true;
+        }
+
+        Node newSibling = this.splitBLinkNode(node);
+        Node target = key < node.highKey ? node : newSibling;
+        target.insertKey(-target.indexOfKey(key) - 1, key);
+        Node.writeNodeToDisk(newSibling);
+        Node.writeNodeToDisk(node);
+        this.addToParent(node, newSibling, path);
+        return true;
+    }
+
+    /*
+        Moves the upper half of the keys (and child pointers)
+        of node, which is full and latched exclusively, to a new
+        node right after it, and makes the first moved key (or,
+        for internal nodes, the median key, which is removed)
+        node's high key. The new node isn't written yet, and
+        nobody can reach it until node is unlatched
+     */
+    private Node splitBLinkNode(Node node) {
+        if (this.pool.instrumentation != null)
+            this.pool.instrumentation.splitCount.increment();
+
+        Node newSibling = Node.allocateNode(this.pool, this.minNumberOfChildren);
+        newSibling.isLeaf = node.isLeaf;
+
+        int separator;
+        if (node.isLeaf) {
+            System.arraycopy(node.keys, minNumberOfChildren - 1, newSibling.keys, 0, minNumberOfChildren);
+            newSibling.keyCount = minNumberOfChildren;
+            separator = newSibling.keys[0];
+            Node.linkLeafAfter(node, newSibling);
+        }
+        else {
+            System.arraycopy(node.keys, minNumberOfChildren, newSibling.keys, 0, minNumberOfChildren - 1);
+            System.arraycopy(node.childPointers, minNumberOfChildren, newSibling.childPointers, 0, minNumberOfChildren);
+            newSibling.keyCount = minNumberOfChildren - 1;
+            separator = node.keys[minNumberOfChildren - 1];
+        }
+        node.keyCount = minNumberOfChildren - 1;
+
+        newSibling.rightLink = node.rightLink;
+        newSibling.highKey = node.highKey;
+        node.rightLink = newSibling.getPointer();
+        node.highKey = separator;
+        return newSibling;
+    }
+
+    /*
+        Adds newSibling, which node (latched exclusively) has
+        just been split into, to the parent of node: the node
+        on the level above that node's high key belongs to. The
+        parent is latched after node is unlatched, so it can
+        have been split in the meantime too (see moveRight). If
+        it's full, it's split in the same way and its new
+        sibling is added to the level above it, and so on. If
+        node is the root, a new root is created above it
+        instead. The parents are taken from path, which has the
+        nodes that were passed on the way down, unless the root
+        has been split since, in which case they're found again
+     */
+    private void addToParent(Node node, Node newSibling, NodePath path) {
+        for (int level = 1; ; level++) {
+            int separator = node.highKey;
+
+            // node can't stop being the root while it's latched
+            if (node == this.root) {
+                Node newRoot = Node.allocateNode(this.pool, this.minNumberOfChildren);
+                newRoot.isLeaf = false;
+                newRoot.keys[0] = separator;
+                newRoot.keyCount = 1;
+                newRoot.childPointers[0] = node.getPointer();
+                newRoot.childPointers[1] = newSibling.getPointer();
+                Node.writeNodeToDisk(newRoot);
+                this.setRoot(newRoot);
+                return;
+            }
+            this.pool.unlatch(node);
+
+            Node parent = path.isEmpty() ? this.findBLinkNode(separator, level) : path.pop();
+            this.pool.latch(parent, true);
+            parent = this.moveRight(parent, separator, true);
+            if (! parent.isFull()) {
+                parent.insertKeyWithRightChild(-parent.indexOfKey(separator) - 1, separator, newSibling.getPointer());
+                Node.writeNodeToDisk(parent);
+                return;
+            }
+
+            Node newParentSibling = this.splitBLinkNode(parent);
+            Node target = separator < parent.highKey ? parent : newParentSibling;
+            target.insertKeyWithRightChild(-target.indexOfKey(separator) - 1, separator, newSibling.getPointer());
+            Node.writeNodeToDisk(newParentSibling);
+            Node.writeNodeToDisk(parent);
+            node = parent;
+            newSibling = newParentSibling;
+        }
+    }
+
+    /*
+        Returns the node on the given level of a B-link tree
+        (counting up from the leaves, which are level 0) whose
+        subtree key belongs to, without latching it. A node's
+        level never changes, because B-link trees only grow
+     */
+    private Node findBLinkNode(int key, int level) {
+        NodePath path = new NodePath();
+        Node leaf = this.latchBLinkLeaf(key, path);
+        this.pool.unlatch(leaf);
+        return path.getNode(path.size() - level);
+    }
+
+    /*
+        Deletes key from its leaf in a B-link tree, which is
+        the only node that gets latched exclusively. Nodes are
+        never merged, so a leaf can be left with less than the
+        minimum number of keys, or none at all
      */
-    private boolean delete(Node node, int key) {
-        // case 0
-        if (node.isLeaf && ! node.keys.contains(new Integer(key)))
+    private boolean deleteFromBLinkTree(int key) {
+        Node node = this.latchBLinkLeaf(key, null);
+        int i = node.indexOfKey(key);
+        if (i < 0)
             return false;
 
-        // case 1
-        else if (node.isLeaf && node.keys.contains(new Integer(key))) {
-
-            // remove the key and null pointer
-            node.keys.remove(new Integer(key));
-            node.childPointers.remove(null);
-
-            // write the changes to node on disk
-            Node.writeNodeToDisk(node);
-            this.elementsCount--;
-            return true;
-        }
+        node.removeKey(i);
+        Node.writeNodeToDisk(node);
+        this.elementsCount.decrementAndGet();
+        return true;
+    }
 
-        // case 2
-        else if (! node.isLeaf && node.keys.contains(new Integer(key))) {
-            int i = node.keys.size() - 1;
-            while (i >= 0 && key != node.keys.get(i))
-                i--;
+    /*
+        Returns the key closest to key that is greater than
+        it (if above is true) or less than it, or key itself
+        if it is in the B-tree and inclusive is true. Returns
+        null if there is no such key (see readKeys)
+     */
+    private Integer nearestKey(int key, boolean above, boolean inclusive) {
+        int[] nearestKey = new int[1];
+        return this.readKeys(key, inclusive, ! above, nearestKey) == 0 ? null : nearestKey[0];
+    }
 
-            // case a
-            Node precedingChild = Node.readNodeFromDisk(node.childPointers.get(i));
-            if (precedingChild.keys.size() >= minNumberOfChildren) {
+    /*
+        Copies the keys that come right after key in ascending
+        order (or, if descending is true, in descending order)
+        to buffer, starting with key itself if it is in the
+        B-tree and inclusive is true. The keys are all copied
+        from the same node, so they can be fewer than fit in
+        buffer even if there are more keys after them. Returns
+        the number of keys that were copied, which is only 0
+        if no key comes after key. Only the path from the root
+        to a single leaf is read (and latched for reading one
+        node at a time), except in a B+tree if no key of the
+        leaf comes after key. The leaf links aren't followed
+        then, so that readers never wait for a latch on a node
+        to the left of one they hold (which writers do), but
+        the path to the next leaf is read from the root again.
+        Readers of a B-link tree only ever hold one latch, so
+        there the right-links are followed instead (and leaves
+        that were split on the way down are caught up with)
+     */
+    int readKeys(int key, boolean inclusive, boolean descending, int[] buffer) {
+        this.pool.beginOperation();
+        try {
+            while (true) {
+                Node node = this.latchRoot(false);
+
+                // the closest key after key in the nodes above the leaf,
+                // which is where a B-tree continues after the leaf, and
+                // the closest key of a B+tree's internal nodes, which
+                // separates the leaf from the leaf that comes after it
+                Integer candidate = null;
+                while (true) {
+                    // a node of a B-link tree that was split after its parent
+                    // was read only has the keys below its high key (which is
+                    // enough when looking for the keys below key = highKey)
+                    while (node.isLeftOf(key) && ! (descending && ! inclusive && key == node.highKey)) {
+                        if (descending)
+                            candidate = node.highKey;
+                        node = this.latchRightLink(node, false);
+                    }
+                    if (node.isLeaf)
+                        break;
+
+                    int i = node.indexOfKey(key);
+                    int childIndex;
+                    if (this.store.isBPlusTree) {
+                        // the keys of a B+tree's internal nodes are only copies
+                        // (of keys that may have been deleted since), so they
+                        // are only used to find the leaf
+                        childIndex = descending && ! inclusive && i >= 0 ? i : node.childIndexFor(key);
+                        if (! descending && childIndex < node.keyCount)
+                            candidate = node.keys[childIndex];
+                        else if (descending && childIndex > 0)
+                            candidate = node.keys[childIndex - 1];
+                    }
+                    else {
+                        if (i >= 0 && inclusive) {
+                            buffer[0] = key;
+                            return 1;
+                        }
+
+                        // the index of the first key that is greater than key
+                        // and of the first one that isn't less than key
+                        int greaterIndex = i >= 0 ? i + 1 : -i - 1;
+                        int notLessIndex = i >= 0 ? i : -i - 1;
+                        if (! descending && greaterIndex < node.keyCount)
+                            candidate = node.keys[greaterIndex];
+                        else if (descending && notLessIndex > 0)
+                            candidate = node.keys[notLessIndex - 1];
+                        childIndex = descending ? notLessIndex : greaterIndex;
+                    }
+
+                    node = this.latchChild(node, childIndex, false);
+                }
 
-                // replace key with next smallest key from precedingChild
-                int nextLargestKey = precedingChild.removeLargestKeyFromSubtree();
-                node.keys.set(i, nextLargestKey);
+                int count = 0;
+                while (true) {
+                    int i = node.indexOfKey(key);
+                    if (! descending) {
+                        for (int j = i >= 0 ? (inclusive ? i : i + 1) : -i - 1; j < node.keyCount && count < buffer.length; j++)
+                            buffer[count++] = node.keys[j];
+                    }
+                    else {
+                        for (int j = i >= 0 ? (inclusive ? i : i - 1) : -i - 2; j >= 0 && count < buffer.length; j--)
+                            buffer[count++] = node.keys[j];
+                    }
+
+                    // the keys after the leaf of a B-link tree are in the
+                    // leaves to its right (which can be empty)
+                    if (count > 0 || descending || node.rightLink == NodeStore.NO_PAGE)
+                        break;
+                    node = this.latchRightLink(node, false);
+                }
+                if (count > 0)
+                    return count;
+                if (candidate == null || (this.store.isBLinkTree && ! descending))
+                    return 0;
+                if (! this.store.isBPlusTree) {
+                    buffer[0] = candidate;
+                    return 1;
+                }
 
-                // save the changes to node and preceding child to disk----------------------------
-                Node.writeNodeToDisk(precedingChild);
-                this.elementsCount--;
-                return true;
+                // the keys after key in a B+tree are in the leaf that
+                // starts at candidate (or ends right before it)
+                this.pool.unlatchAllExcept(null);
+                key = candidate;
+                inclusive = ! descending;
             }
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
 
-            // case b
-            Node succeedingChild = Node.readNodeFromDisk(node.childPointers.get(i+1));
-            if (succeedingChild.keys.size() >= minNumberOfChildren) {
+    /*
+        Removes and returns the smallest (or largest) key in a
+        single descent along the left-most (or right-most) path
+        of the B-tree, which makes sure that every node on the
+        path has more than the minimum number of keys on the way
+        down (like delete). Returns null if the B-tree is empty
+     */
+    private Integer deleteFirstOrLast(boolean first) {
+        Node node = this.latchRoot(true);
+        if (node.keyCount == 0)
+            return null;
 
-                // replace key with next largest key from succeedingChild
-                int nextSmallestKey = succeedingChild.removeSmallestKeyFromSubtree();
-                node.keys.set(i, nextSmallestKey);
+        while (! node.isLeaf) {
+            int i = first ? 0 : node.keyCount;
+            Node child = node.getLatchedChild(i, true);
+            if (child.keyCount == minNumberOfChildren - 1) {
+                child = child.grabElementFromOrMergeWithSiblingNode(node, i);
 
-                // write the changes to succeedingChild on disk
-                Node.writeNodeToDisk(succeedingChild);
-                this.elementsCount--;
-                return true;
+                // if the node was the root and is now empty, set
+                // the B-tree's new root to be child
+                if (this.root == node && node.keyCount == 0)
+                    this.setRoot(child);
             }
 
-            // case c
-            // remove key and pointer to succeedingChild from node
-            node.keys.remove(i);
-            node.childPointers.remove(i+1);
-
-            // merge succeedingChild and key into precedingChild
-            Node containingKeyNode = Node.merge(precedingChild, key, succeedingChild, node);
-
-            // if the node was the root and is now empty, set
-            // the B-tree's new root to be containingKeyNode
-            if (this.root == node && node.keys.isEmpty())
-                this.root = containingKeyNode;
-
-            // delete key from newly merged precedingChild
-            return this.delete(containingKeyNode, key);
+            // the key is going to be removed from child's subtree
+            // (which is still the first or last child of node)
+            if (this.root != child && node.childCounts != null) {
+                node.childCounts[first ? 0 : node.keyCount]--;
+                Node.writeNodeToDisk(node);
+            }
+            this.unlatchAncestors(child);
+            node = child;
         }
 
-        // case 3
-        else {
+        int key = node.removeKey(first ? 0 : node.keyCount - 1);
+        Node.writeNodeToDisk(node);
+        this.elementsCount.decrementAndGet();
+        return key;
+    }
 
-            // determine the index of the child node that
-            // would contain key, if it exits in the B-tree
-            int i = node.keys.size() - 1;
-            while (i >= 0 && key < node.keys.get(i))
-                i--;
-            i++;
+    /*
+        Removes and returns the smallest (or largest) key of a
+        B-link tree, whose nodes aren't merged on the way down
+        like deleteFirstOrLast does. The key is found first and
+        then deleted, which is tried again with the next key
+        if another thread deleted it in between
+     */
+    private Integer pollBLinkTree(boolean first) {
+        while (true) {
+            Integer key = first ? this.nearestKey(Integer.MIN_VALUE, true, true) : this.nearestKey(Integer.MAX_VALUE, false, true);
+
+            // the leaf that the key was read from is still latched for reading
+            this.pool.unlatchAllExcept(null);
+            if (key == null || this.deleteFromBLinkTree(key))
+                return key;
+            this.pool.unlatchAllExcept(null);
+        }
+    }
 
-            // case a | case b
-            Node containingKeyNode = Node.readNodeFromDisk(node.childPointers.get(i));
-            if (containingKeyNode.keys.size() == minNumberOfChildren - 1) {
-                containingKeyNode = containingKeyNode.grabElementFromOrMergeWithSiblingNode(node, i);
+    /*
+        Loads sortedKeys, which must be in strictly ascending
+        order, into the B-tree, which must be empty. The nodes
+        are built bottom-up and written once each (see
+        BulkLoader), which is much faster than adding the keys
+        one at a time and fills the nodes up to the fill factor
+        of the B-tree's options instead of leaving them half full
+     */
+    public void bulkLoad(int[] sortedKeys) {
+        this.bulkLoad(Arrays.stream(sortedKeys).iterator());
+    }
 
-                // if the node was the root and is now empty, set
-                // the B-tree's new root to be containingKeyNode
-                if (this.root == node && node.keys.isEmpty())
-                    this.root = containingKeyNode;
+    public void bulkLoad(PrimitiveIterator.OfInt sortedKeys) {
+        long start = this.startTiming();
+        this.pool.beginExclusiveOperation();
+        try {
+            if (! this.isEmpty())
+                throw new IllegalStateException("bulkLoad requires an empty B-tree");
+
+            BulkLoader loader = new BulkLoader(this.pool, this.minNumberOfChildren, this.bulkLoadFillFactor);
+            Node newRoot;
+            try {
+                while (sortedKeys.hasNext())
+                    loader.add(sortedKeys.nextInt());
+                newRoot = loader.finish();
+            }
+            catch (RuntimeException e) {
+                // leave the B-tree empty if the keys weren't sorted or a node couldn't be written
+                try {
+                    loader.discard();
+                }
+                catch (RuntimeException discardFailure) {
+                    e.addSuppressed(discardFailure);
+                }
+                throw e;
             }
 
-            // recursively delete key
-            return delete(containingKeyNode, key);
+            // replace the empty root with the root of the loaded nodes
+            Node oldRoot = this.root;
+            this.setRoot(newRoot);
+            this.elementsCount.set(loader.getKeyCount());
+            Node.freeNodeOnDisk(oldRoot);
+            this.isFirstKeyKnown = this.isLastKeyKnown = false;
+            if (this.filter != null)
+                this.filter = this.buildFilter(this.filter.resized(loader.getKeyCount()));
+
+            // the keys aren't logged one by one, the loaded nodes are checkpointed instead
+            if (this.log != null)
+                this.checkpoint();
+        }
+        finally {
+            this.pool.endOperation();
         }
+        this.recordLatency(BTreeStats.Operation.BULK_LOAD, start);
     }
 
     /*
@@ -326,26 +1602,183 @@ public class BTree implements SortedSet<Integer>  {
     Node getSmallestNode() {
         Node node = this.root;
         while (! node.isLeaf)
-            node = Node.readNodeFromDisk(node.childPointers.get(0));
+            node = this.pool.getNode(node.childPointers[0]);
         return node;
     }
 
+    /*-------------------------------Order Statistics-------------------------------*/
+
+    /*
+        Returns the number of keys in the B-tree that are less
+        than key. Like select and countRange, this needs a
+        B-tree that was created with order statistics enabled
+        (see BTreeOptions.orderStatistics), and only reads the
+        path from the root to a single leaf
+     */
+    public int rank(int key) {
+        this.checkOrderStatistics();
+        long start = this.startTiming();
+        int rank = this.countKeysBelow(key, false);
+        this.recordLatency(BTreeStats.Operation.RANK, start);
+        return rank;
+    }
+
+    /*
+        Returns the key at index in ascending order, i.e. the
+        key that has index keys less than it. Throws an
+        IndexOutOfBoundsException if index is not between 0
+        and size() - 1
+     */
+    public int select(int index) {
+        this.checkOrderStatistics();
+        long start = this.startTiming();
+        this.pool.beginOperation();
+        try {
+            Node node = this.latchRoot(false);
+            int size = node.subtreeCount();
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+
+            while (! node.isLeaf) {
+                // skip the subtrees (and, except in a B+tree, the
+                // keys) that come before the key at index
+                int i = 0;
+                while (index >= node.childCounts[i]) {
+                    index -= node.childCounts[i];
+                    if (! this.store.isBPlusTree) {
+                        if (index == 0)
+                            return node.keys[i];
+                        index--;
+                    }
+                    i++;
+                }
+                Node child = node.getLatchedChild(i, false);
+                this.pool.unlatchAllExcept(child);
+                node = child;
+            }
+            return node.keys[index];
+        }
+        finally {
+            this.pool.endOperation();
+            this.recordLatency(BTreeStats.Operation.SELECT, start);
+        }
+    }
+
+    /*
+        Returns the number of keys in the B-tree that are
+        greater than or equal to from and less than to.
+        Throws an IllegalArgumentException if from > to
+     */
+    public int countRange(int from, int to) {
+        this.checkOrderStatistics();
+        if (from > to)
+            throw new IllegalArgumentException("from > to");
+        long start = this.startTiming();
+        int count = this.countKeysBelow(to, false) - this.countKeysBelow(from, false);
+        this.recordLatency(BTreeStats.Operation.COUNT_RANGE, start);
+        return count;
+    }
+
+    /*
+        Returns the number of keys that are less than key
+        (or equal to it, if inclusive is true) by adding up
+        the counts of the subtrees to the left of the path
+        from the root to key
+     */
+    int countKeysBelow(int key, boolean inclusive) {
+        this.pool.beginOperation();
+        try {
+            return this.countKeysBelow(this.latchRoot(false), key, inclusive);
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    private int countKeysBelow(Node node, int key, boolean inclusive) {
+        int count = 0;
+        while (true) {
+            int i = node.indexOfKey(key);
+
+            // the keys of a B+tree's internal nodes are only copies
+            if (! node.isLeaf && this.store.isBPlusTree) {
+                int childIndex = node.childIndexFor(key);
+                for (int j = 0; j < childIndex; j++)
+                    count += node.childCounts[j];
+                Node child = node.getLatchedChild(childIndex, false);
+                this.pool.unlatchAllExcept(child);
+                node = child;
+                continue;
+            }
+
+            // every key (and subtree) before the first key that
+            // isn't less than key is less than key
+            int notLessIndex = i >= 0 ? i : -i - 1;
+            count += notLessIndex;
+            if (! node.isLeaf) {
+                for (int j = 0; j < notLessIndex; j++)
+                    count += node.childCounts[j];
+            }
+
+            if (i >= 0) {
+                // the subtree right before key is less than key too
+                if (! node.isLeaf)
+                    count += node.childCounts[i];
+                return inclusive ? count + 1 : count;
+            }
+            if (node.isLeaf)
+                return count;
+            Node child = node.getLatchedChild(notLessIndex, false);
+            this.pool.unlatchAllExcept(child);
+            node = child;
+        }
+    }
+
     /*
-        Does an in-order traversal of the B-Tree starting
-        at the first key with value greater than or equal
-        to from and continuing until finding a value greater
-        than or equal to until
+        Returns a key strictly between low and high (either of
+        which can be null for no bound) that splits the keys in
+        between roughly in half, for BTreeSpliterator. It's the
+        middle one of the keys in the range of the node closest
+        to the root that has any, or null if there's no such node
      */
-    private BTree walkOverTree(Integer from, Integer until) {
-        BTree sortedSubset = BTree.createNewBTreeWithMinNumberOfChildren(this.minNumberOfChildren);
-        BTreeIterator iterator = new BTreeIterator(this, from);
-        while (iterator.hasNext()) {
-            Integer i = iterator.next();
-            if (i >= until)
-                return sortedSubset;
-            sortedSubset.add(i);
+    Integer splitKeyBetween(Integer low, Integer high) {
+        this.pool.beginOperation();
+        try {
+            Node node = this.latchRoot(false);
+            while (true) {
+                // the keys of node that are strictly inside the range
+                int first = 0;
+                if (low != null) {
+                    int i = node.indexOfKey(low);
+                    first = i >= 0 ? i + 1 : -i - 1;
+                }
+                int last = node.keyCount - 1;
+                if (high != null) {
+                    int i = node.indexOfKey(high);
+                    last = (i >= 0 ? i : -i - 1) - 1;
+                }
+
+                if (first <= last)
+                    return node.keys[(first + last + 1) / 2];
+                if (node.isLeaf)
+                    return null;
+
+                // the whole range is inside the subtree of a single child
+                node = this.latchChild(node, first, false);
+            }
         }
-        return sortedSubset;
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    boolean hasOrderStatistics() {
+        return this.store.hasChildCounts;
+    }
+
+    private void checkOrderStatistics() {
+        if (! this.store.hasChildCounts)
+            throw new IllegalStateException("the B-tree was not created with order statistics enabled");
     }
 
     /*-------------------------------SortedSet Methods----------------------------*/
@@ -355,13 +1788,72 @@ public class BTree implements SortedSet<Integer>  {
         value if the key does not already exist in
         the tree. Returns true if the integer was
         successfully inserted into the B-tree and
-        false otherwise
+        false otherwise. Only a single path from the
+        root to a leaf is read (see insertIfAbsent). A
+        concurrent B-tree first tries to only latch the
+        leaf exclusively (see insertIntoLeaf), which is all
+        that a B-link tree ever latches exclusively
      */
     public boolean add(Integer integer) {
-        if (this.contains(integer))
-            return false;
-        this.insert(integer);
-        return true;
+        int key = integer;
+        long start = this.startTiming();
+        boolean added = this.change(WriteAheadLog.ADD, key, () -> this.addKey(key));
+        if (added && this.filter != null && this.size() > this.filter.capacity)
+            this.resizeFilter();
+        this.recordLatency(BTreeStats.Operation.ADD, start);
+        return added;
+    }
+
+    private boolean addKey(int key) {
+        // the key goes into the Bloom filter first, so that
+        // contains can't miss it once it's in a node
+        BloomFilter filter = this.filter;
+        if (filter != null)
+            filter.add(key);
+        boolean added = this.addKeyToNodes(key);
+        if (filter != null && ! added)
+            filter.remove(key);
+        if (added && ! this.pool.concurrent)
+            this.updateFirstAndLastKeys(key);
+        return added;
+    }
+
+    /*
+        Keeps the known first and last keys up to date once
+        key has been added
+     */
+    private void updateFirstAndLastKeys(int key) {
+        if (this.size() == 1) {
+            this.firstKey = this.lastKey = key;
+            this.isFirstKeyKnown = this.isLastKeyKnown = true;
+        }
+        if (key < this.firstKey)
+            this.firstKey = key;
+        if (key > this.lastKey)
+            this.lastKey = key;
+    }
+
+    /*
+        Forgets the first or the last key if key, which
+        has been removed, was one of them
+     */
+    private void forgetFirstOrLastKey(int key) {
+        if (key == this.firstKey)
+            this.isFirstKeyKnown = false;
+        if (key == this.lastKey)
+            this.isLastKeyKnown = false;
+    }
+
+    private boolean addKeyToNodes(int key) {
+        if (this.store.isBLinkTree)
+            return this.insertIntoBLinkTree(key);
+        if (this.pool.concurrent && ! this.store.hasChildCounts) {
+            Boolean added = this.insertIntoLeaf(key);
+            this.pool.unlatchAllExcept(null);
+            if (added != null)
+                return added;
+        }
+        return this.insertIfAbsent(key);
     }
 
     /*
@@ -371,12 +1863,32 @@ public class BTree implements SortedSet<Integer>  {
         the B-tree
      */
     public boolean addAll(Collection<? extends Integer> c)  {
-        boolean hasBeenModified = false;
-        for (Object o : c) {
-            if (o instanceof Integer)
-                hasBeenModified = this.add((Integer) o) || hasBeenModified;
+        long start = this.startTiming();
+        try {
+            // the elements of a naturally ordered SortedSet can be bulk loaded
+            if (c instanceof SortedSet && ((SortedSet<?>) c).comparator() == null) {
+                this.pool.beginExclusiveOperation();
+                try {
+                    if (this.isEmpty()) {
+                        this.bulkLoad(c.stream().mapToInt(Integer::intValue).iterator());
+                        return ! c.isEmpty();
+                    }
+                }
+                finally {
+                    this.pool.endOperation();
+                }
+            }
+
+            boolean hasBeenModified = false;
+            for (Object o : c) {
+                if (o instanceof Integer)
+                    hasBeenModified = this.add((Integer) o) || hasBeenModified;
+            }
+            return hasBeenModified;
+        }
+        finally {
+            this.recordLatency(BTreeStats.Operation.ADD_ALL, start);
         }
-        return hasBeenModified;
     }
 
     /*
@@ -387,21 +1899,50 @@ public class BTree implements SortedSet<Integer>  {
      */
     public boolean remove(Object o) {
         if (o instanceof Integer) {
-            Integer i = (Integer) o;
-            return this.delete(this.root, i);
+            int key = (Integer) o;
+            long start = this.startTiming();
+            boolean removed = this.change(WriteAheadLog.REMOVE, key, () -> this.removeKey(key));
+            this.recordLatency(BTreeStats.Operation.REMOVE, start);
+            return removed;
         }
         return false;
     }
 
+    private boolean removeKey(int key) {
+        boolean removed = this.removeKeyFromNodes(key);
+        BloomFilter filter = this.filter;
+        if (filter != null && removed)
+            filter.remove(key);
+        if (removed && ! this.pool.concurrent)
+            this.forgetFirstOrLastKey(key);
+        return removed;
+    }
+
+    private boolean removeKeyFromNodes(int key) {
+        if (this.store.isBLinkTree)
+            return this.deleteFromBLinkTree(key);
+
+        // a concurrent B-tree first tries to only latch the leaf exclusively
+        if (this.pool.concurrent && ! this.store.hasChildCounts) {
+            Boolean deleted = this.deleteFromLeaf(key);
+            this.pool.unlatchAllExcept(null);
+            if (deleted != null)
+                return deleted;
+        }
+        return this.delete(this.latchRoot(true), key);
+    }
+
     /*
         Removes all of the objects in the collection that
         are Integers and that exist within the B-tree. Returns
         true if at least one value was removed and false otherwise.
      */
     public boolean removeAll(Collection<?> c) {
+        long start = this.startTiming();
         boolean hasBeenModified = false;
         for (Object o : c)
             hasBeenModified = this.remove(o) || hasBeenModified;
+        this.recordLatency(BTreeStats.Operation.REMOVE_ALL, start);
         return hasBeenModified;
     }
 
@@ -412,7 +1953,24 @@ public class BTree implements SortedSet<Integer>  {
     public boolean contains(Object o) {
         if (o instanceof Integer) {
             Integer i = (Integer) o;
-            return this.search(this.root, i) != null;
+            long start = this.startTiming();
+            this.pool.beginOperation();
+            try {
+                // most absent keys are turned away by the Bloom filter
+                BloomFilter filter = this.filter;
+                if (filter != null && ! filter.mightContain(i)) {
+                    filter.definiteMissCount.increment();
+                    return false;
+                }
+                boolean found = this.search(this.latchRoot(false), i) != null;
+                if (filter != null && ! found)
+                    filter.falsePositiveCount.increment();
+                return found;
+            }
+            finally {
+                this.pool.endOperation();
+                this.recordLatency(BTreeStats.Operation.CONTAINS, start);
+            }
         }
         return false;
     }
@@ -435,7 +1993,7 @@ public class BTree implements SortedSet<Integer>  {
         stored in the B-tree
      */
     public int size() {
-        return this.elementsCount;
+        return this.elementsCount.get();
     }
 
     /*
@@ -443,7 +2001,7 @@ public class BTree implements SortedSet<Integer>  {
         false if there is at least one key in the B-tree
      */
     public boolean isEmpty() {
-        return this.root.keys.isEmpty();
+        return this.elementsCount.get() == 0;
     }
 
     /*
@@ -452,14 +2010,34 @@ public class BTree implements SortedSet<Integer>  {
         mutated to become an empty B-tree again.
      */
     public void clear() {
-        // delete all data for each node in the root's subtree
-        Node.deleteSubtree(this.root);
+        long start = this.startTiming();
+        long lsn = 0;
+        this.pool.beginExclusiveOperation();
+        try {
+            this.clearAllNodes();
+            if (this.log != null)
+                lsn = this.log.append(WriteAheadLog.CLEAR, 0);
+        }
+        finally {
+            this.pool.endOperation();
+        }
+        if (this.log != null)
+            this.commit(lsn);
+        this.recordLatency(BTreeStats.Operation.CLEAR, start);
+    }
+
+    private void clearAllNodes() {
+        // free every page at once instead of visiting each node
+        Node.deleteAllNodes(this.pool);
 
         // initialize an empty root node for the B-tree
-        Node newRoot = Node.allocateNode(minNumberOfChildren, null);
+        Node newRoot = Node.allocateNode(this.pool, minNumberOfChildren);
         newRoot.isLeaf = true;
-        this.root = newRoot;
-        this.elementsCount = 0;
+        this.setRoot(newRoot);
+        this.elementsCount.set(0);
+        this.isFirstKeyKnown = this.isLastKeyKnown = false;
+        if (this.filter != null)
+            this.filter = this.filter.resized(0);
 
         // write this new node to disk
         Node.writeNodeToDisk(newRoot);
@@ -471,15 +2049,14 @@ public class BTree implements SortedSet<Integer>  {
         throws a NoSuchElementException.
      */
     public Integer first() throws NoSuchElementException {
+        long start = this.startTiming();
+        Integer first = this.firstOrLast(true);
+        this.recordLatency(BTreeStats.Operation.FIRST, start);
+
         // handle the empty B-tree case
-        if (this.elementsCount == 0)
+        if (first == null)
             throw new NoSuchElementException();
-
-        // for all trees with >= 1 elements
-        Node node = this.root;
-        while (! node.isLeaf)
-            node = Node.readNodeFromDisk(node.childPointers.get(0));
-        return node.keys.get(0);
+        return first;
     }
 
     /*
@@ -488,15 +2065,46 @@ public class BTree implements SortedSet<Integer>  {
         throws a NoSuchElementException
      */
     public Integer last() throws NoSuchElementException {
+        long start = this.startTiming();
+        Integer last = this.firstOrLast(false);
+        this.recordLatency(BTreeStats.Operation.LAST, start);
+
         // handle the empty B-tree case
-        if (this.elementsCount == 0)
+        if (last == null)
             throw new NoSuchElementException();
+        return last;
+    }
 
-        // for all trees with >=1 elements
-        Node node = this.root;
-        while (! node.isLeaf)
-            node = Node.readNodeFromDisk(node.childPointers.get(node.keys.size()));
-        return node.keys.get(node.keys.size() - 1);
+    /*
+        Returns the smallest (or the largest) key, or null if
+        the B-tree is empty. Unless the B-tree is concurrent,
+        the key is only looked up if it isn't known already
+     */
+    private Integer firstOrLast(boolean first) {
+        if (this.pool.concurrent)
+            return first ? this.nearestKey(Integer.MIN_VALUE, true, true) : this.nearestKey(Integer.MAX_VALUE, false, true);
+
+        this.pool.beginOperation();
+        try {
+            if (first && ! this.isFirstKeyKnown) {
+                Integer key = this.nearestKey(Integer.MIN_VALUE, true, true);
+                if (key == null)
+                    return null;
+                this.firstKey = key;
+                this.isFirstKeyKnown = true;
+            }
+            else if (! first && ! this.isLastKeyKnown) {
+                Integer key = this.nearestKey(Integer.MAX_VALUE, false, true);
+                if (key == null)
+                    return null;
+                this.lastKey = key;
+                this.isLastKeyKnown = true;
+            }
+            return first ? this.firstKey : this.lastKey;
+        }
+        finally {
+            this.pool.endOperation();
+        }
     }
 
     /*
@@ -508,43 +2116,219 @@ public class BTree implements SortedSet<Integer>  {
     }
 
     /*
-        Returns a new SortedSet that contains all of the
-        keys strictly less than the value toElement in
-        the current B-tree
+        Returns an iterator over the keys of the B-tree in
+        ascending order that returns them as ints, so that
+        they don't have to be boxed into Integers
+     */
+    public PrimitiveIterator.OfInt intIterator() {
+        return new BTreeIterator(this);
+    }
+
+    /*
+        Returns a spliterator over the keys of the B-tree in
+        ascending order, which splits the keys at the boundaries
+        between the children of the nodes so that the streams of
+        the B-tree (including parallelStream) can be run in
+        parallel (see BTreeSpliterator)
+     */
+    public Spliterator.OfInt spliterator() {
+        return new BTreeSpliterator(this);
+    }
+
+    /*
+        Returns a sequential stream of the keys of the
+        B-tree in ascending order, without boxing them.
+        Call parallel() on it to scan the keys in parallel
+     */
+    public IntStream intStream() {
+        return StreamSupport.intStream(this.spliterator(), false);
+    }
+
+    /*
+        Calls action with every key of the B-tree in ascending
+        order. The keys are read straight from the key arrays
+        of the nodes (of the leaves, in a B+tree), which is
+        faster than going through an iterator
+     */
+    public void forEachInt(IntConsumer action) {
+        Objects.requireNonNull(action);
+
+        // the nodes of a concurrent B-tree can only be read while latched
+        if (this.pool.concurrent) {
+            this.intIterator().forEachRemaining(action);
+            return;
+        }
+        if (! this.store.isBPlusTree) {
+            this.forEachIntInSubtree(this.root, action);
+            return;
+        }
+
+        Node leaf = this.getSmallestNode();
+        while (true) {
+            for (int i = 0; i < leaf.keyCount; i++)
+                action.accept(leaf.keys[i]);
+            if (leaf.nextLeaf == NodeStore.NO_PAGE)
+                return;
+            leaf = this.pool.getNode(leaf.nextLeaf);
+        }
+    }
+
+    private void forEachIntInSubtree(Node node, IntConsumer action) {
+        for (int i = 0; i < node.keyCount; i++) {
+            if (! node.isLeaf)
+                this.forEachIntInSubtree(this.pool.getNode(node.childPointers[i]), action);
+            action.accept(node.keys[i]);
+        }
+        if (! node.isLeaf)
+            this.forEachIntInSubtree(this.pool.getNode(node.childPointers[node.keyCount]), action);
+    }
+
+    /*
+        Returns an iterator that traverses the entire
+        B-tree in sorted descending order
+     */
+    public Iterator<Integer> descendingIterator() {
+        return new BTreeIterator(this, true, null, true, null, true);
+    }
+
+    /*
+        Returns a live view of the B-tree's keys in descending order
+     */
+    public NavigableSet<Integer> descendingSet() {
+        return new BTreeSubSet(this, null, true, null, true, true);
+    }
+
+    /*
+        Return the key closest to e that is less than it
+        (lower), less than or equal to it (floor), greater
+        than or equal to it (ceiling), or greater than it
+        (higher), or null if there is no such key. Each one
+        only reads a single path from the root to a leaf
+     */
+    public Integer lower(Integer e) {
+        long start = this.startTiming();
+        Integer lower = this.nearestKey(e, false, false);
+        this.recordLatency(BTreeStats.Operation.LOWER, start);
+        return lower;
+    }
+
+    public Integer floor(Integer e) {
+        long start = this.startTiming();
+        Integer floor = this.nearestKey(e, false, true);
+        this.recordLatency(BTreeStats.Operation.FLOOR, start);
+        return floor;
+    }
+
+    public Integer ceiling(Integer e) {
+        long start = this.startTiming();
+        Integer ceiling = this.nearestKey(e, true, true);
+        this.recordLatency(BTreeStats.Operation.CEILING, start);
+        return ceiling;
+    }
+
+    public Integer higher(Integer e) {
+        long start = this.startTiming();
+        Integer higher = this.nearestKey(e, true, false);
+        this.recordLatency(BTreeStats.Operation.HIGHER, start);
+        return higher;
+    }
+
+    /*
+        Removes and returns the smallest (pollFirst) or the
+        largest (pollLast) key of the B-tree, or returns null
+        if it is empty. The key is found and removed during
+        the same descent from the root (except in a B-link
+        tree, see pollBLinkTree)
+     */
+    public Integer pollFirst() {
+        long start = this.startTiming();
+        Integer first = this.poll(true);
+        this.recordLatency(BTreeStats.Operation.POLL_FIRST, start);
+        return first;
+    }
+
+    public Integer pollLast() {
+        long start = this.startTiming();
+        Integer last = this.poll(false);
+        this.recordLatency(BTreeStats.Operation.POLL_LAST, start);
+        return last;
+    }
+
+    private Integer poll(boolean first) {
+        if (this.log != null)
+            return this.pollLogged(first);
+        this.pool.beginOperation();
+        try {
+            Integer key = this.store.isBLinkTree ? this.pollBLinkTree(first) : this.deleteFirstOrLast(first);
+            BloomFilter filter = this.filter;
+            if (filter != null && key != null)
+                filter.remove(key);
+            if (key != null && ! this.pool.concurrent)
+                this.forgetFirstOrLastKey(key);
+            return key;
+        }
+        finally {
+            this.pool.endOperation();
+        }
+    }
+
+    /*
+        Removes the first or last key of a B-tree in a data
+        file. The key is found first, so that it's removed and
+        logged under its key's lock (see change). If another
+        thread removes it in between, the next key is tried.
+        Only the poll's latency is recorded, not that of
+        finding and removing the key
+     */
+    private Integer pollLogged(boolean first) {
+        while (true) {
+            Integer key = this.firstOrLast(first);
+            if (key == null || this.change(WriteAheadLog.REMOVE, key, () -> this.removeKey(key)))
+                return key;
+        }
+    }
+
+    /*
+        Returns a live view of the keys strictly less than
+        the value toElement in the current B-tree (see
+        BTreeSubSet). Taking the view doesn't copy any keys
      */
     public SortedSet<Integer> headSet(Integer toElement) {
-        Integer smallestElement = this.first();
-        if (toElement < smallestElement)
-            return BTree.createNewBTreeWithMinNumberOfChildren(this.minNumberOfChildren);
-        else
-            return walkOverTree(smallestElement, toElement);
+        return this.headSet(toElement, false);
     }
 
     /*
-        Returns a new SortedSet that contains all of the
-        keys greater than or equal to the value
-        fromElement in the current B-tree
+        Returns a live view of the keys greater than or
+        equal to the value fromElement in the current B-tree
      */
     public SortedSet<Integer> tailSet(Integer fromElement) {
-        Integer largestElement = this.last();
-        if (fromElement > largestElement)
-            return BTree.createNewBTreeWithMinNumberOfChildren(this.minNumberOfChildren);
-        else
-            return walkOverTree(fromElement, largestElement + 1);
+        return this.tailSet(fromElement, true);
     }
 
     /*
-        Returns a new SortedSet that contains all of the
-        keys strictly greater than the value FromElement
-        and less than or equal to the value toElement
+        Returns a live view of the keys greater than or equal
+        to the value fromElement and strictly less than the
+        value toElement. Throws an IllegalArgumentException
+        if fromElement is greater than toElement
      */
     public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
-        // fromElement must be less than toElement
-        if (fromElement > toElement) {
-            return BTree.createNewBTreeWithMinNumberOfChildren(this.minNumberOfChildren);
-        }
+        return this.subSet(fromElement, true, toElement, false);
+    }
+
+    /*
+        The same views, but each bound can be inclusive or not
+     */
+    public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+        return new BTreeSubSet(this, null, true, Objects.requireNonNull(toElement), inclusive, false);
+    }
 
-        return walkOverTree(fromElement, toElement);
+    public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+        return new BTreeSubSet(this, Objects.requireNonNull(fromElement), inclusive, null, true, false);
+    }
+
+    public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement, boolean toInclusive) {
+        return new BTreeSubSet(this, Objects.requireNonNull(fromElement), fromInclusive,
+                Objects.requireNonNull(toElement), toInclusive, false);
     }
 
     /*
@@ -555,50 +2339,106 @@ public class BTree implements SortedSet<Integer>  {
         current B-tree
      */
     public boolean retainAll(Collection<?> c) {
-        ArrayList<Integer> integers = new ArrayList<Integer>();
-        for (Object o : c) {
-            if (this.contains(o))
-                integers.add((Integer) o);
+        long start = this.startTiming();
+        try {
+            // rebuilding a concurrent B-tree would lose the keys
+            // that other threads add in the meantime
+            if (this.pool.concurrent) {
+                boolean hasBeenModified = false;
+                for (Iterator<Integer> iterator = this.iterator(); iterator.hasNext(); ) {
+                    if (! c.contains(iterator.next())) {
+                        iterator.remove();
+                        hasBeenModified = true;
+                    }
+                }
+                return hasBeenModified;
+            }
+
+            // the keys to keep come out of the iterator sorted
+            int[] keptKeys = new int[this.size()];
+            int keptCount = 0;
+            for (Integer key : this) {
+                if (c.contains(key))
+                    keptKeys[keptCount++] = key;
+            }
+
+            // since retainAll can only reduce the size of B-tree,
+            // then if B-tree's size never changes, then no
+            // elements were removed
+            if (keptCount == this.size())
+                return false;
+
+            // a B-tree in a data file checkpoints at the end of bulkLoad,
+            // so the keys are never seen cleared after a crash
+            this.pool.beginExclusiveOperation();
+            try {
+                this.clearAllNodes();
+                this.bulkLoad(Arrays.copyOf(keptKeys, keptCount));
+            }
+            finally {
+                this.pool.endOperation();
+            }
+            return true;
+        }
+        finally {
+            this.recordLatency(BTreeStats.Operation.RETAIN_ALL, start);
+        }
+    }
+
+    /*
+        Returns an array with every key of the B-tree in
+        ascending order, without boxing them like toArray().
+        A concurrent B-tree can grow or shrink while it is
+        scanned, so its array grows with the keys that are
+        found and is trimmed to them at the end
+     */
+    public int[] toIntArray() {
+        if (! this.pool.concurrent) {
+            int[] array = new int[this.size()];
+            int[] index = {0};
+            this.forEachInt(key -> array[index[0]++] = key);
+            return array;
         }
-        this.clear();
-        this.addAll(integers);
 
-        // since retainAll can only reduce the size of B-tree,
-        // then if B-tree's size never changes, then no
-        // elements were removed
-        return this.size() == integers.size();
+        int[] array = new int[this.size()];
+        int count = 0;
+        for (PrimitiveIterator.OfInt keys = this.intIterator(); keys.hasNext(); ) {
+            if (count == array.length)
+                array = Arrays.copyOf(array, Math.max(16, 2 * count));
+            array[count++] = keys.nextInt();
+        }
+        return count == array.length ? array : Arrays.copyOf(array, count);
     }
 
     /*
         See the Java Documentation for public
-        Object[] toArray() for the Set<E> interface
+        Object[] toArray() for the Set<E> interface. Like
+        toIntArray, it doesn't trust size() to stay the same
      */
     public Object[] toArray() {
         Object[] array = new Object[this.size()];
-        int index = 0;
-        for (Integer integer : this)
-            array[index++] = integer;
-        return array;
+        int count = 0;
+        for (Integer key : this) {
+            if (count == array.length)
+                array = Arrays.copyOf(array, Math.max(16, 2 * count));
+            array[count++] = key;
+        }
+        return count == array.length ? array : Arrays.copyOf(array, count);
     }
 
     /*
         See the Java Documentation for public
         <T> T[] toArray(T[] a) for the Set<E> interface
      */
+    @SuppressWarnings("unchecked")
     public <T> T[] toArray(T[] a) {
-        if (a.length >= this.size()) {
-            int index = 0;
-            for (Integer integer : this)
-                a[index++] = (T) integer;
-            return a;
-        }
-        else {
-            T[] biggerArray = (T[]) (new Object[this.size()]);
-            int index = 0;
-            for (Integer integer : this)
-                biggerArray[index++] = (T) integer;
-            return biggerArray;
-        }
+        Object[] keys = this.toArray();
+        if (a.length < keys.length)
+            return (T[]) Arrays.copyOf(keys, keys.length, a.getClass());
+        System.arraycopy(keys, 0, a, 0, keys.length);
+        if (a.length > keys.length)
+            a[keys.length] = null;
+        return a;
     }
 
     /*
@@ -623,13 +2463,34 @@ public class BTree implements SortedSet<Integer>  {
 
         // recurse on all of the children of the node
         if (! node.isLeaf) {
-            for (String pointer : node.childPointers) {
-                Node child = Node.readNodeFromDisk(pointer);
+            for (int i = 0; i <= node.keyCount; i++) {
+                Node child = this.pool.getNode(node.childPointers[i]);
                 buildToString(child, level+1, stringObject);
             }
         }
     }
 
+    /*
+        Writes every node of the B-tree to out in the
+        human readable text format (see Node.dumpNode),
+        in pre-order and preceded by the node's page id.
+        This is only meant for debugging (and, like toString,
+        doesn't latch the nodes of a concurrent B-tree)
+     */
+    void dumpNodes(Writer out) throws IOException {
+        dumpSubtree(this.root, out);
+        out.flush();
+    }
+
+    private void dumpSubtree(Node node, Writer out) throws IOException {
+        out.write("page " + node.getPointer() + "\n");
+        out.write(Node.dumpNode(node));
+        if (! node.isLeaf) {
+            for (int i = 0; i <= node.keyCount; i++)
+                dumpSubtree(this.pool.getNode(node.childPointers[i]), out);
+        }
+    }
+
     @Override
     public String toString() {
         // build up the toString content for each level of the tree
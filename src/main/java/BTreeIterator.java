@@ -1,12 +1,10 @@
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.PrimitiveIterator;
 
 /**
  * Created by devinmorgan on 2/12/17.
  */
-class BTreeIterator implements Iterator<Integer> {
+class BTreeIterator implements PrimitiveIterator.OfInt {
 
     /*
         The B-tree that this Iterator will iterate
@@ -15,16 +13,53 @@ class BTreeIterator implements Iterator<Integer> {
     private final BTree bTree;
 
     /*
-        The node that contains the key that would
-        be returned by next()
+        True if the keys are returned in descending order
      */
-    private Node currentNode;
+    private final boolean descending;
 
     /*
-        The index of the key in the current node
-        that would be returned by next()
+        The path from the root to the node that contains
+        the key that would be returned by next(). When
+        iterating in ascending order, the index of every
+        entry is the index of the next key to return from
+        that entry's node: for an internal node that is the
+        key right after the child subtree that the path
+        continues into. When iterating in descending order,
+        the index is one more than that, i.e. the number of
+        the node's keys that are left to return. The path
+        is empty once every key has been returned. In a
+        B+tree every key is in a leaf and the leaves are
+        linked, so the path only ever holds the leaf that
+        contains the next key
      */
-    private int currentChildIndex;
+    private final NodePath path = new NodePath();
+
+    /*
+        The nodes of a concurrent B-tree can only be read while
+        they are latched, so for those the iterator doesn't keep
+        a path. Instead, it reads a copy of the next few keys
+        (up to a leaf's worth) at a time (see BTree.readKeys)
+        and continues after the last of them once they have all
+        been returned. The batch is null for other B-trees
+     */
+    private final int[] batch;
+    private int batchCount = 0;
+    private int batchIndex = 0;
+
+    /*
+        The iteration stops at the first key that is past
+        stopKey (or equal to it, unless stopInclusive is
+        true), unless stopKey is null
+     */
+    private final Integer stopKey;
+    private final boolean stopInclusive;
+
+    /*
+        The key that was returned by the last call to next(),
+        which is the key that remove() removes
+     */
+    private int lastReturned;
+    private boolean canRemove = false;
 
     /*
         Creates an iterator that starts at the
@@ -32,9 +67,7 @@ class BTreeIterator implements Iterator<Integer> {
         through the B-tree in ascending order
      */
     BTreeIterator(BTree bTree) {
-        this.bTree = bTree;
-        this.currentNode = bTree.getSmallestNode();
-        this.currentChildIndex = 0;
+        this(bTree, false, null, true, null, true);
     }
 
     /*
@@ -42,143 +75,189 @@ class BTreeIterator implements Iterator<Integer> {
         first key value that is greater than or
         equal to the value startingFrom. If
         startingFrom is bigger than the largest
-        key in the B-tree, then this will throw
-        a NoSuchElementException
+        key in the B-tree, then the iterator has
+        no elements
+     */
+    BTreeIterator(BTree bTree, Integer startingFrom) {
+        this(bTree, false, startingFrom, true, null, true);
+    }
+
+    /*
+        Creates an iterator that goes through the B-tree in
+        ascending (or descending) order, from startKey to
+        stopKey. Each bound can be inclusive or exclusive, or
+        null, in which case the iteration starts at the first
+        key or ends after the last one
      */
-    BTreeIterator(BTree bTree, Integer startingFrom) throws NoSuchElementException {
+    BTreeIterator(BTree bTree, boolean descending,
+                  Integer startKey, boolean startInclusive,
+                  Integer stopKey, boolean stopInclusive) {
         this.bTree = bTree;
+        this.descending = descending;
+        this.stopKey = stopKey;
+        this.stopInclusive = stopInclusive;
+        if (bTree.pool.concurrent) {
+            this.batch = new int[bTree.root.keys.length];
+            if (startKey != null)
+                this.readBatch(startKey, startInclusive);
+            else
+                this.readBatch(descending ? Integer.MAX_VALUE : Integer.MIN_VALUE, true);
+            return;
+        }
 
-        if (this.bTree.size() == 0)
-            throw new NoSuchElementException();
+        this.batch = null;
+        if (startKey != null)
+            this.seek(startKey, startInclusive);
+        else {
+            this.pushFirstKeyInSubtree(bTree.root);
+            this.skipExhaustedNodes();
+        }
+    }
 
-        // check to see if startingFrom is greater than the largest value in the B-tree
-        if (startingFrom > bTree.last()) {
-            this.currentNode = null;
-            this.currentChildIndex = -1;
+    /*
+        Points the iterator at the first key that comes after
+        key in the order of the iteration (or is equal to it,
+        if inclusive is true) by descending from the root
+     */
+    private void seek(int key, boolean inclusive) {
+        this.path.clear();
+        Node node = this.bTree.root;
+        if (this.bTree.store.isBPlusTree) {
+            while (! node.isLeaf)
+                node = node.pool.getNode(node.childPointers[node.childIndexFor(key)]);
+            int i = node.indexOfKey(key);
+            if (i < 0)
+                this.path.push(node, -i - 1);
+            else if (this.descending)
+                this.path.push(node, inclusive ? i + 1 : i);
+            else
+                this.path.push(node, inclusive ? i : i + 1);
+            this.skipExhaustedNodes();
             return;
         }
 
-        Node node = bTree.root;
-        int minValidStartingKey = Integer.MIN_VALUE;
-        while (! node.isLeaf) {
-            for (int i = 0; i < node.keys.size(); i++) {
-
-                // found a larger value, recurse on corresponding node
-                if (node.keys.get(i) > startingFrom) {
-                    minValidStartingKey = node.keys.get(i);
-                    node = Node.readNodeFromDisk(node.childPointers.get(i));
-                    continue;
-                }
-
-                // found the exact value, we're done!
-                else if (node.keys.get(i) == startingFrom) {
-                    this.currentNode = node;
-                    this.currentChildIndex = i;
-                    return;
-                }
+        while (true) {
+            int i = node.indexOfKey(key);
+
+            // found the exact value, we're done!
+            if (i >= 0) {
+                this.path.push(node, this.descending ? i + 1 : i);
+                if (! inclusive)
+                    this.advance();
+                break;
             }
 
-            // all values are less than startingFrom, explore the largest child node
-            node = Node.readNodeFromDisk(node.childPointers.get(node.keys.size()));
+            // otherwise the next key is the one next to the
+            // child subtree that would contain key, unless
+            // that subtree has a key that comes first
+            this.path.push(node, -i - 1);
+            if (node.isLeaf)
+                break;
+            node = node.pool.getNode(node.childPointers[-i - 1]);
         }
+        this.skipExhaustedNodes();
+    }
 
-        // explore the keys of the leaf to find first value >= startingFrom
-        for (int i = 0; i < node.keys.size(); i++) {
-            if (node.keys.get(i) >= startingFrom) {
-                this.currentNode = node;
-                this.currentChildIndex = i;
+    /*
+        Pushes the path from node down to the left-most (or,
+        when descending, the right-most) leaf of node's
+        subtree, starting at the first key of each node in
+        the order of the iteration (only the leaf, in a B+tree)
+     */
+    private void pushFirstKeyInSubtree(Node node) {
+        while (true) {
+            if (node.isLeaf || ! node.pool.store.isBPlusTree)
+                this.path.push(node, this.descending ? node.keyCount : 0);
+            if (node.isLeaf)
                 return;
-            }
+            node = node.pool.getNode(node.childPointers[this.descending ? node.keyCount : 0]);
         }
+    }
 
-        // couldn't find a viable key in the leaf so go with the best viable one we found so far
-        NodeIndexPair nodeIndexPair = this.bTree.search(this.bTree.root, minValidStartingKey);
-        this.currentNode = nodeIndexPair.getNode();
-        this.currentChildIndex = nodeIndexPair.getIndex();
+    /*
+        Returns the key that the path currently points at
+     */
+    private int currentKey() {
+        int i = this.path.peekIndex();
+        return this.path.peekNode().keys[this.descending ? i - 1 : i];
     }
 
     /*
-        Advances the iterator to point to the next
-        key in the parent node of the current node
+        Moves past the key that the path currently points at
      */
-    private void moveToNextKeyInParent() {
-        // load the current node's parent
-        Node parent = Node.readNodeFromDisk(this.currentNode.parentPointer);
+    private void advance() {
+        Node node = this.path.peekNode();
+        int i = this.path.peekIndex();
+        this.path.setIndex(this.descending ? i - 1 : i + 1);
+
+        // after a key in an internal node comes the subtree next to it
+        if (! node.isLeaf)
+            this.pushFirstKeyInSubtree(node.pool.getNode(node.childPointers[this.descending ? i - 1 : i + 1]));
+    }
 
-        // find the index of the pointer, to the current
-        // node, in the parent's childPointers
-        int childIndex = 0;
-        while (! parent.childPointers.get(childIndex).equals(this.currentNode.getPointer()))
-            childIndex++;
-        this.currentNode = parent;
+    /*
+        Pops the nodes whose keys have all been returned, so
+        that the path points at the next key (or is empty).
+        A leaf of a B+tree is replaced by the leaf next to it
+     */
+    private void skipExhaustedNodes() {
+        while (! this.path.isEmpty() && this.isExhausted(this.path.peekNode(), this.path.peekIndex())) {
+            Node node = this.path.pop();
+            int nextLeaf = this.descending ? node.prevLeaf : node.nextLeaf;
+            if (node.isBPlusLeaf() && nextLeaf != NodeStore.NO_PAGE) {
+                Node leaf = node.pool.getNode(nextLeaf);
+                this.path.push(leaf, this.descending ? leaf.keyCount : 0);
+            }
+        }
+    }
 
-        // determine whether or not should keep iterating
-        // through the parent's children or whether we
-        // should explore the next parent
-        if (childIndex == parent.keys.size() && parent.parentPointer != null)
-            this.moveToNextKeyInParent();
-        else
-            this.currentChildIndex = childIndex;
+    private boolean isExhausted(Node node, int index) {
+        return this.descending ? index <= 0 : index >= node.keyCount;
     }
 
     /*
-        Advances the iterator to point to the next
-        key in the next child node of the current
-        node (assumes the current node is not a leaf node)
+        Replaces the batch with the keys that come right after
+        key in the order of the iteration (see batch)
      */
-    private void moveToSmallestKeyInSubtree() {
-        // start looking in the child's subtree
-        Node child = Node.readNodeFromDisk(this.currentNode.childPointers.get(this.currentChildIndex + 1));
-
-        // find the left most node in child's subtree
-        while (! child.isLeaf)
-            child = Node.readNodeFromDisk(child.childPointers.get(0));
-        this.currentNode = child;
+    private void readBatch(int key, boolean inclusive) {
+        this.batchCount = this.bTree.readKeys(key, inclusive, this.descending, this.batch);
+        this.batchIndex = 0;
+    }
 
-        // go to the beginning of this node
-        this.currentChildIndex = 0;
+    /*
+        Returns true if there is a next key in the batch, after
+        reading the next batch if every key of this one has been
+        returned (which the last batch has none of)
+     */
+    private boolean hasNextInBatch() {
+        if (this.batchIndex == this.batchCount && this.batchCount > 0)
+            this.readBatch(this.batch[this.batchCount - 1], false);
+        return this.batchIndex < this.batchCount;
     }
 
     /*
         Advances the iterator to the next key in the
         B-tree in ascending order. Throws a NoSuchElementException
-        if the iteration does not contain anymore elements
+        if the iteration does not contain anymore elements.
+        Unlike next(), the key is not boxed into an Integer
      */
-    public Integer next() throws NoSuchElementException {
+    public int nextInt() throws NoSuchElementException {
         // check that there is a next element
         if (! this.hasNext())
             throw new NoSuchElementException();
 
-        // if we have not explored all of the keys in a leaf node
-        if (this.currentChildIndex < this.currentNode.keys.size() && this.currentNode.isLeaf) {
-            return this.currentNode.keys.get(this.currentChildIndex++);
-        }
-
-        // if we have explored all of the keys in a leaf node
-        if (this.currentChildIndex == this.currentNode.keys.size() && this.currentNode.isLeaf) {
-            this.moveToNextKeyInParent();
-            return this.currentNode.keys.get(this.currentChildIndex);
-        }
-
-        // if we have not explored all of the keys in a non-leaf node
-        if (this.currentChildIndex < this.currentNode.keys.size() && ! this.currentNode.isLeaf) {
-            this.moveToSmallestKeyInSubtree();
-            return this.currentNode.keys.get(this.currentChildIndex++);
-        }
-
-        // if we explored all of the keys but not all of the children in a non-leaf node
-        if (this.currentChildIndex == this.currentNode.keys.size() && ! this.currentNode.isLeaf) {
-            this.moveToSmallestKeyInSubtree();
-            return this.currentNode.keys.get(this.currentChildIndex);
-        }
-
-        // if we explored all of the keys and all of the children in a non-leaf node
-        if (this.currentChildIndex > this.currentNode.keys.size() && ! this.currentNode.isLeaf) {
-            this.moveToNextKeyInParent();
-            return this.currentNode.keys.get(this.currentChildIndex);
+        int key;
+        if (this.batch != null)
+            key = this.batch[this.batchIndex++];
+        else {
+            key = this.currentKey();
+            this.advance();
+            this.skipExhaustedNodes();
         }
 
-        throw new RuntimeException("something went wrong!");
+        this.lastReturned = key;
+        this.canRemove = true;
+        return key;
     }
 
     /*
@@ -188,58 +267,33 @@ class BTreeIterator implements Iterator<Integer> {
         Returns false otherwise
      */
     public boolean hasNext() {
-        if (this.bTree.size() == 0)
+        if (this.batch != null ? ! this.hasNextInBatch() : this.path.isEmpty())
             return false;
-        if (this.currentNode.equals(this.bTree.root)) {
-            if (this.bTree.root.isLeaf) {
-                return this.currentChildIndex < this.bTree.root.keys.size();
-            }
-            else {
-                return this.currentChildIndex < this.bTree.root.keys.size();
-            }
-        }
-        else if (this.currentNode.isLeaf) {
-            if (this.currentChildIndex < this.currentNode.keys.size())
-                return true;
-            else
-                return this.currentNode.keys.get(this.currentNode.keys.size() - 1) != this.bTree.last();
-        }
-        else {
-            if (this.currentChildIndex < this.currentNode.keys.size() + 1)
-                return true;
-            else
-                return this.currentNode.keys.get(this.currentNode.keys.size() - 1) != this.bTree.last();
-        }
+        if (this.stopKey == null)
+            return true;
+
+        int key = this.batch != null ? this.batch[this.batchIndex] : this.currentKey();
+        if (key == this.stopKey)
+            return this.stopInclusive;
+        return this.descending ? key > this.stopKey : key < this.stopKey;
     }
 
     /*
-        Removes the current element from the B-tree and
-        advances the iterator over to the next element.
-        This is the only safe way to remove an element
-        form the B-tree while iterating over it
+        Removes the key that was returned by the last call
+        to next() from the B-tree. This is the only safe way
+        to remove an element form the B-tree while iterating
+        over it
      */
     public void remove() {
-        // don't remove anything from an empty tree
-        if (this.bTree.size() == 0)
-            return;
-
-        // determine the next key the Iterator should
-        // point at after deleting the current key
-        Integer nextKey;
-        if (this.hasNext()) {
-            nextKey = this.next();
-        }
-        else {
-            nextKey = this.bTree.last();
-        }
-
-        // remove the current key from the B-tree
-        Integer removedValue = this.currentNode.keys.get(this.currentChildIndex);
-        this.bTree.remove(removedValue);
-
-        // update the iterator to point to the next key
-        BTreeIterator temp = new BTreeIterator(this.bTree, nextKey);
-        this.currentChildIndex = temp.currentChildIndex;
-        this.currentNode = temp.currentNode;
+        if (! this.canRemove)
+            throw new IllegalStateException();
+        this.canRemove = false;
+
+        // removing the key can restructure the nodes on the path,
+        // so find the key after it again from the root (the keys
+        // in the batch are copies, so they aren't affected)
+        this.bTree.remove(this.lastReturned);
+        if (this.batch == null)
+            this.seek(this.lastReturned, false);
     }
 }
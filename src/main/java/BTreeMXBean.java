@@ -0,0 +1,41 @@
+import java.util.Map;
+
+/**
+ * The management interface through which a B-tree publishes
+ * its statistics over JMX (see BTree.registerMBean). Each
+ * attribute is computed on its own when it is read, without
+ * taking a whole BTreeStats snapshot.
+ */
+public interface BTreeMXBean {
+    long getNodeReadCount();
+
+    long getNodeWriteCount();
+
+    long getSplitCount();
+
+    long getMergeCount();
+
+    long getBorrowCount();
+
+    int getHeight();
+
+    int getNodeCount();
+
+    double getAverageFillFactor();
+
+    long getSize();
+
+    /*
+        The fraction of the lookups of absent keys that the
+        Bloom filter let through, and the memory it takes up
+        (both 0 if the B-tree has no Bloom filter, see BloomFilterStats)
+     */
+    double getBloomFilterFalsePositiveRate();
+
+    long getBloomFilterMemoryBytes();
+
+    /*
+        The latencies of each operation, by its name (see BTreeStats.Operation)
+     */
+    Map<String, LatencyStats> getLatencies();
+}
@@ -0,0 +1,77 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The MBean that a B-tree registers to publish its
+ * statistics over JMX (see BTree.registerMBean). It keeps the
+ * B-tree from being garbage collected until it's unregistered,
+ * which BTree.close does.
+ *
+ * Each attribute only computes what it returns: the counters
+ * and latencies are read straight from the B-tree's
+ * Instrumentation (all 0 without one), and only the height
+ * reads any nodes, so a console that polls every attribute
+ * barely changes the counters that it watches.
+ */
+class BTreeMonitor implements BTreeMXBean {
+    private final BTree bTree;
+    private final Instrumentation instrumentation;
+
+    BTreeMonitor(BTree bTree) {
+        this.bTree = bTree;
+        this.instrumentation = bTree.pool.instrumentation;
+    }
+
+    public long getNodeReadCount() {
+        return this.instrumentation == null ? 0 : this.instrumentation.nodeReadCount.sum();
+    }
+
+    public long getNodeWriteCount() {
+        return this.instrumentation == null ? 0 : this.instrumentation.nodeWriteCount.sum();
+    }
+
+    public long getSplitCount() {
+        return this.instrumentation == null ? 0 : this.instrumentation.splitCount.sum();
+    }
+
+    public long getMergeCount() {
+        return this.instrumentation == null ? 0 : this.instrumentation.mergeCount.sum();
+    }
+
+    public long getBorrowCount() {
+        return this.instrumentation == null ? 0 : this.instrumentation.borrowCount.sum();
+    }
+
+    public int getHeight() {
+        return this.bTree.getHeight();
+    }
+
+    public int getNodeCount() {
+        return this.bTree.getNodeCount();
+    }
+
+    public double getAverageFillFactor() {
+        return this.bTree.getAverageFillFactor(this.bTree.getNodeCount());
+    }
+
+    public long getSize() {
+        return this.bTree.size();
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return this.bTree.hasBloomFilter() ? this.bTree.getBloomFilterStats().getFalsePositiveRate() : 0;
+    }
+
+    public long getBloomFilterMemoryBytes() {
+        return this.bTree.hasBloomFilter() ? this.bTree.getBloomFilterStats().getMemoryBytes() : 0;
+    }
+
+    public Map<String, LatencyStats> getLatencies() {
+        Map<String, LatencyStats> latencies = new LinkedHashMap<String, LatencyStats>();
+        for (BTreeStats.Operation operation : BTreeStats.Operation.values()) {
+            latencies.put(operation.name(), this.instrumentation == null
+                    ? new LatencyStats(0, 0, 0, 0, 0, 0, 0) : this.instrumentation.getLatency(operation));
+        }
+        return latencies;
+    }
+}
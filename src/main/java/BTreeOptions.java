@@ -0,0 +1,216 @@
+/**
+ * The settings that a B-tree is created with. Every setter
+ * returns this so that the settings can be chained:
+ * BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(64))
+ */
+public class BTreeOptions {
+    /*
+        The minimum number of child nodes that an internal
+        node can have (excluding the root node)
+     */
+    int minNumberOfChildren = 1000;
+
+    /*
+        The number of bytes of node pages that the B-tree
+        keeps cached in memory
+     */
+    long cacheSizeInBytes = 64L * 1024 * 1024;
+
+    /*
+        If true, changed nodes are only marked as dirty in
+        the cache and get written when they are evicted,
+        when BTree.flush() is called, or every
+        flushIntervalMillis (if it is positive)
+     */
+    boolean writeBack = false;
+    long flushIntervalMillis = 1000;
+
+    /*
+        If true, the B-tree is a B+tree: every key is stored
+        in a leaf, internal nodes only hold copies of keys
+        that separate their children, and each leaf is linked
+        to its neighbours so that iterating over a range is a
+        single descent followed by a walk along the leaves
+     */
+    boolean bPlusTree = false;
+
+    /*
+        The fraction of the maximum number of keys that
+        BTree.bulkLoad puts into each node. Nodes that are
+        less than full leave room for later inserts
+     */
+    double bulkLoadFillFactor = 0.9;
+
+    /*
+        If true, every internal node also stores the number of
+        keys in each of its children's subtrees, so that
+        BTree.rank, BTree.select and BTree.countRange only need
+        a single descent. Keeping the counts up to date means
+        that every insert and delete writes each node on its path
+     */
+    boolean orderStatistics = false;
+
+    /*
+        If true, the B-tree can be used by several threads at
+        the same time. Every node gets a read/write latch, and
+        operations latch their way down from the root, releasing
+        the latches above a node as soon as the node can't make
+        them change (latch crabbing). Reads and most inserts and
+        deletes only latch the leaf exclusively, so they run in
+        parallel unless they meet at the same leaf. Iterators
+        read the keys a leaf at a time and don't fail when the
+        B-tree changes underneath them, but may or may not see
+        those changes. With order statistics, inserts and
+        deletes keep the whole path latched, so they don't run
+        in parallel with each other
+     */
+    boolean concurrent = false;
+
+    /*
+        If true, the B-tree is a concurrent B+tree that is
+        also a B-link tree (Lehman and Yao): every node has a
+        high key and a link to the node to its right, so a node
+        can be split without latching its parent, and a search
+        that reaches a node that was split after it left the
+        parent follows the link instead of waiting. Readers
+        hold a single latch at a time and never wait for a
+        split to finish. Deletes don't merge nodes, which can be
+        left with less than the minimum number of keys (or none,
+        which searches for the next key have to step over), so it
+        suits workloads that don't delete most of their keys.
+        It implies bPlusTree and concurrent and can't be
+        combined with orderStatistics
+     */
+    boolean bLinkTree = false;
+
+    /*
+        If true, the data file is memory-mapped (see
+        NodeStore.mapMemory), so reading a node that isn't
+        cached doesn't make a system call or copy the page.
+        It suits B-trees that are mostly read and fit in the
+        operating system's page cache
+     */
+    boolean memoryMapped = false;
+
+    /*
+        If true, the B-tree counts its node reads and writes,
+        splits, merges and borrows, and records the latency of
+        each public operation (see BTree.getStats). Otherwise
+        none of that is kept and costs next to nothing
+     */
+    boolean instrumented = false;
+
+    /*
+        If true, the B-tree keeps a counting Bloom filter of
+        its keys in memory (see BloomFilter), so that contains
+        answers most lookups of absent keys without reading
+        any node. It takes bloomFilterCountersPerKey 4 bit
+        counters per key, for twice as many keys as the B-tree
+        holds; 10 counters give about 1% false positives. A
+        B-tree in a data file saves the filter when it's closed
+        and rebuilds it from its keys if it wasn't closed
+     */
+    boolean bloomFilter = false;
+    int bloomFilterCountersPerKey = 10;
+
+    /*
+        When the write-ahead log of a B-tree in a data file
+        (see BTree.create and BTree.open) is synced onto the
+        disk, which trades the changes that a crash of the
+        machine can lose for the throughput of add and remove
+        (see Durability). Temporary B-trees are never synced
+     */
+    Durability durability = Durability.ON_COMMIT;
+
+    /*
+        How often the log is synced with the PERIODIC durability
+     */
+    long syncIntervalMillis = 1000;
+
+    public BTreeOptions minNumberOfChildren(int minNumberOfChildren) {
+        if (minNumberOfChildren < 2)
+            throw new IllegalArgumentException("minNumberOfChildren must be at least 2");
+        this.minNumberOfChildren = minNumberOfChildren;
+        return this;
+    }
+
+    public BTreeOptions cacheSizeInBytes(long cacheSizeInBytes) {
+        if (cacheSizeInBytes < 0)
+            throw new IllegalArgumentException("cacheSizeInBytes can't be negative");
+        this.cacheSizeInBytes = cacheSizeInBytes;
+        return this;
+    }
+
+    public BTreeOptions writeBack(boolean writeBack) {
+        this.writeBack = writeBack;
+        return this;
+    }
+
+    public BTreeOptions flushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    public BTreeOptions bPlusTree(boolean bPlusTree) {
+        this.bPlusTree = bPlusTree;
+        return this;
+    }
+
+    public BTreeOptions orderStatistics(boolean orderStatistics) {
+        this.orderStatistics = orderStatistics;
+        return this;
+    }
+
+    public BTreeOptions concurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+        return this;
+    }
+
+    public BTreeOptions bLinkTree(boolean bLinkTree) {
+        this.bLinkTree = bLinkTree;
+        return this;
+    }
+
+    public BTreeOptions memoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    public BTreeOptions instrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+        return this;
+    }
+
+    public BTreeOptions bloomFilter(boolean bloomFilter) {
+        this.bloomFilter = bloomFilter;
+        return this;
+    }
+
+    public BTreeOptions bloomFilterCountersPerKey(int bloomFilterCountersPerKey) {
+        if (bloomFilterCountersPerKey < 1 || bloomFilterCountersPerKey > 64)
+            throw new IllegalArgumentException("bloomFilterCountersPerKey must be between 1 and 64");
+        this.bloomFilterCountersPerKey = bloomFilterCountersPerKey;
+        return this;
+    }
+
+    public BTreeOptions durability(Durability durability) {
+        if (durability == null)
+            throw new IllegalArgumentException("durability can't be null");
+        this.durability = durability;
+        return this;
+    }
+
+    public BTreeOptions syncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0)
+            throw new IllegalArgumentException("syncIntervalMillis must be positive");
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    public BTreeOptions bulkLoadFillFactor(double bulkLoadFillFactor) {
+        if (! (bulkLoadFillFactor > 0 && bulkLoadFillFactor <= 1))
+            throw new IllegalArgumentException("bulkLoadFillFactor must be in (0, 1]");
+        this.bulkLoadFillFactor = bulkLoadFillFactor;
+        return this;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+/**
+ * A Spliterator over the keys of a B-tree in ascending order
+ * that can be split for parallel streams. Each spliterator
+ * covers a range of keys, and it splits at one of the keys of
+ * the nodes of the B-tree, which are the boundaries between the
+ * subtrees of the nodes' children (see BTree.splitKeyBetween).
+ * The range is only turned into a BTreeIterator once the keys
+ * are traversed.
+ */
+class BTreeSpliterator implements Spliterator.OfInt {
+    private final BTree bTree;
+
+    /*
+        The range of keys that the spliterator covers: from
+        lowKey (inclusive) to highKey (exclusive). A null bound
+        means that the range is unbounded on that side
+     */
+    private Integer lowKey;
+    private final Integer highKey;
+
+    /*
+        The number of keys in the range. It's exact if the
+        B-tree keeps order statistics or if the spliterator
+        hasn't been split, and an estimate otherwise
+     */
+    private long size;
+    private boolean isSizeExact;
+
+    /*
+        The iterator that traverses the range, which is
+        created by the first call to tryAdvance or forEachRemaining
+     */
+    private BTreeIterator iterator = null;
+
+    /*
+        Creates a spliterator over every key in the B-tree
+     */
+    BTreeSpliterator(BTree bTree) {
+        this(bTree, null, null, bTree.size(), true);
+    }
+
+    private BTreeSpliterator(BTree bTree, Integer lowKey, Integer highKey, long size, boolean isSizeExact) {
+        this.bTree = bTree;
+        this.lowKey = lowKey;
+        this.highKey = highKey;
+        this.size = size;
+        this.isSizeExact = isSizeExact;
+    }
+
+    /*
+        Splits off the first half of the keys in the range at
+        a key of the node closest to the root that has keys
+        inside the range, so that the returned spliterator
+        covers the keys below that key and this spliterator
+        keeps the rest. The keys of a range inside a single leaf
+        are split at that leaf's middle key in the range. Returns
+        null if traversal has started or there is no key to split
+        at (none above the range's lowest key)
+     */
+    public Spliterator.OfInt trySplit() {
+        if (this.iterator != null)
+            return null;
+        Integer splitKey = this.bTree.splitKeyBetween(this.lowKey, this.highKey);
+        if (splitKey == null)
+            return null;
+
+        long prefixSize;
+        if (this.bTree.hasOrderStatistics())
+            prefixSize = this.bTree.countKeysBelow(splitKey, false) - (this.lowKey == null ? 0 : this.bTree.countKeysBelow(this.lowKey, false));
+        else
+            prefixSize = this.size / 2;
+
+        BTreeSpliterator prefix = new BTreeSpliterator(this.bTree, this.lowKey, splitKey, prefixSize, this.isSizeExact && this.bTree.hasOrderStatistics());
+        this.lowKey = splitKey;
+        this.size -= prefixSize;
+        this.isSizeExact = prefix.isSizeExact;
+        return prefix;
+    }
+
+    private BTreeIterator getIterator() {
+        if (this.iterator == null)
+            this.iterator = new BTreeIterator(this.bTree, false, this.lowKey, true, this.highKey, false);
+        return this.iterator;
+    }
+
+    public boolean tryAdvance(IntConsumer action) {
+        BTreeIterator iterator = this.getIterator();
+        if (! iterator.hasNext())
+            return false;
+        action.accept(iterator.nextInt());
+        if (this.size > 0)
+            this.size--;
+        return true;
+    }
+
+    public void forEachRemaining(IntConsumer action) {
+        BTreeIterator iterator = this.getIterator();
+        while (iterator.hasNext())
+            action.accept(iterator.nextInt());
+        this.size = 0;
+    }
+
+    public long estimateSize() {
+        return this.size;
+    }
+
+    /*
+        The size is only exact (SIZED and SUBSIZED) for
+        spliterators that haven't been split, unless the B-tree
+        keeps order statistics, which give the exact size of
+        every range. A concurrent B-tree can change while it
+        is traversed (CONCURRENT), so its size is never exact
+     */
+    public int characteristics() {
+        int characteristics = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        if (this.bTree.pool.concurrent)
+            return characteristics | Spliterator.CONCURRENT;
+        if (this.isSizeExact)
+            characteristics |= Spliterator.SIZED;
+        if (this.bTree.hasOrderStatistics())
+            characteristics |= Spliterator.SUBSIZED;
+        return characteristics;
+    }
+
+    /*
+        Returns null because the keys are sorted in their natural order
+     */
+    public Comparator<? super Integer> getComparator() {
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A snapshot of what a B-tree has done so far and of its
+ * shape (see BTree.getStats). The counters and latencies are
+ * only kept if instrumentation is enabled in the B-tree's
+ * options (see BTreeOptions.instrumented), otherwise they are
+ * all 0. The height, node count and fill factor are always
+ * measured when the snapshot is taken.
+ */
+public class BTreeStats {
+    /*
+        The public operations whose latencies are recorded.
+        An operation that is made of other ones (like addAll
+        or pollFirst in a B-tree in a data file) is recorded
+        along with each of the operations it makes
+     */
+    public enum Operation {
+        ADD, REMOVE, CONTAINS, ADD_ALL, REMOVE_ALL, RETAIN_ALL, CLEAR, BULK_LOAD,
+        FIRST, LAST, LOWER, FLOOR, CEILING, HIGHER, POLL_FIRST, POLL_LAST,
+        RANK, SELECT, COUNT_RANGE
+    }
+
+    private final long nodeReadCount;
+    private final long nodeWriteCount;
+    private final long splitCount;
+    private final long mergeCount;
+    private final long borrowCount;
+    private final int height;
+    private final int nodeCount;
+    private final double averageFillFactor;
+    private final Map<Operation, LatencyStats> latencies;
+
+    BTreeStats(Instrumentation instrumentation, int height, int nodeCount, double averageFillFactor) {
+        this.latencies = new EnumMap<Operation, LatencyStats>(Operation.class);
+        if (instrumentation == null) {
+            this.nodeReadCount = 0;
+            this.nodeWriteCount = 0;
+            this.splitCount = 0;
+            this.mergeCount = 0;
+            this.borrowCount = 0;
+            for (Operation operation : Operation.values())
+                this.latencies.put(operation, new LatencyStats(0, 0, 0, 0, 0, 0, 0));
+        }
+        else {
+            this.nodeReadCount = instrumentation.nodeReadCount.sum();
+            this.nodeWriteCount = instrumentation.nodeWriteCount.sum();
+            this.splitCount = instrumentation.splitCount.sum();
+            this.mergeCount = instrumentation.mergeCount.sum();
+            this.borrowCount = instrumentation.borrowCount.sum();
+            for (Operation operation : Operation.values())
+                this.latencies.put(operation, instrumentation.getLatency(operation));
+        }
+        this.height = height;
+        this.nodeCount = nodeCount;
+        this.averageFillFactor = averageFillFactor;
+    }
+
+    /*
+        The number of nodes that were read from the data file
+        (the cache misses, see Node.readNodeFromDisk)
+     */
+    public long getNodeReadCount() {
+        return this.nodeReadCount;
+    }
+
+    /*
+        The number of times that a changed node was saved
+        (see Node.writeNodeToDisk). In write-back mode, a node
+        that is saved many times is only written to the data
+        file once it's flushed (see CacheStats.getWriteCount)
+     */
+    public long getNodeWriteCount() {
+        return this.nodeWriteCount;
+    }
+
+    /*
+        The number of nodes that were split in two
+     */
+    public long getSplitCount() {
+        return this.splitCount;
+    }
+
+    /*
+        The number of nodes that were merged into a sibling
+     */
+    public long getMergeCount() {
+        return this.mergeCount;
+    }
+
+    /*
+        The number of keys that were moved into a node from
+        a sibling to keep the node from getting too small
+     */
+    public long getBorrowCount() {
+        return this.borrowCount;
+    }
+
+    /*
+        The number of levels of nodes, 1 for a B-tree whose root is a leaf
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /*
+        The number of keys in the B-tree divided by the number
+        of keys that its nodes have room for. The copies of keys
+        in the internal nodes of a B+tree aren't counted
+     */
+    public double getAverageFillFactor() {
+        return this.averageFillFactor;
+    }
+
+    public LatencyStats getLatency(Operation operation) {
+        return this.latencies.get(operation);
+    }
+
+    public Map<Operation, LatencyStats> getLatencies() {
+        return Collections.unmodifiableMap(this.latencies);
+    }
+
+    @Override
+    public String toString() {
+        return "BTreeStats{nodeReads=" + this.nodeReadCount + ", nodeWrites=" + this.nodeWriteCount
+                + ", splits=" + this.splitCount + ", merges=" + this.mergeCount + ", borrows=" + this.borrowCount
+                + ", height=" + this.height + ", nodes=" + this.nodeCount
+                + ", averageFillFactor=" + this.averageFillFactor + "}";
+    }
+}
@@ -0,0 +1,286 @@
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * A live view of the keys of a B-tree that are in a range,
+ * as returned by headSet, tailSet, subSet and descendingSet.
+ * Nothing is copied: every method reads the B-tree itself
+ * and checks the bounds as it goes, so changes to the B-tree
+ * show up in the view and changes made through the view show
+ * up in the B-tree (like the views of TreeSet).
+ */
+class BTreeSubSet extends AbstractSet<Integer> implements NavigableSet<Integer> {
+    private final BTree bTree;
+
+    /*
+        The bounds of the view's range in ascending order.
+        A null bound means that the range is unbounded on
+        that side, and each bound can be inclusive or not
+     */
+    private final Integer lowKey;
+    private final boolean lowInclusive;
+    private final Integer highKey;
+    private final boolean highInclusive;
+
+    /*
+        True if the view lists its keys in descending order.
+        The bounds above are in ascending order either way
+     */
+    private final boolean descending;
+
+    BTreeSubSet(BTree bTree,
+                Integer lowKey, boolean lowInclusive,
+                Integer highKey, boolean highInclusive,
+                boolean descending) {
+        if (lowKey != null && highKey != null && lowKey > highKey)
+            throw new IllegalArgumentException("fromKey > toKey");
+        this.bTree = bTree;
+        this.lowKey = lowKey;
+        this.lowInclusive = lowInclusive;
+        this.highKey = highKey;
+        this.highInclusive = highInclusive;
+        this.descending = descending;
+    }
+
+    /*-------------------------------Range Checks-------------------------------*/
+
+    private boolean tooLow(int key) {
+        return this.lowKey != null && (key < this.lowKey || (key == this.lowKey && ! this.lowInclusive));
+    }
+
+    private boolean tooHigh(int key) {
+        return this.highKey != null && (key > this.highKey || (key == this.highKey && ! this.highInclusive));
+    }
+
+    /*
+        Returns true if key is in the view's range
+     */
+    private boolean inRange(int key) {
+        return ! this.tooLow(key) && ! this.tooHigh(key);
+    }
+
+    /*
+        Returns true if a bound at key (that is inclusive or
+        not) can be used for a view of this view. Like the
+        views of TreeSet, an exclusive bound can also be equal
+        to one of the bounds of this view even if they are exclusive
+     */
+    private boolean inRange(int key, boolean inclusive) {
+        if (inclusive)
+            return this.inRange(key);
+        return (this.lowKey == null || key >= this.lowKey) && (this.highKey == null || key <= this.highKey);
+    }
+
+    /*-------------------------------Ascending Navigation-------------------------------*/
+
+    /*
+        The smallest key in the view's range, or null if there isn't one
+     */
+    private Integer lowest() {
+        Integer key;
+        if (this.lowKey == null)
+            key = this.bTree.ceiling(Integer.MIN_VALUE);
+        else
+            key = this.lowInclusive ? this.bTree.ceiling(this.lowKey) : this.bTree.higher(this.lowKey);
+        return key == null || this.tooHigh(key) ? null : key;
+    }
+
+    /*
+        The largest key in the view's range, or null if there isn't one
+     */
+    private Integer highest() {
+        Integer key;
+        if (this.highKey == null)
+            key = this.bTree.floor(Integer.MAX_VALUE);
+        else
+            key = this.highInclusive ? this.bTree.floor(this.highKey) : this.bTree.lower(this.highKey);
+        return key == null || this.tooLow(key) ? null : key;
+    }
+
+    private Integer ceilingInRange(int key) {
+        if (this.tooLow(key))
+            return this.lowest();
+        Integer ceiling = this.bTree.ceiling(key);
+        return ceiling == null || this.tooHigh(ceiling) ? null : ceiling;
+    }
+
+    private Integer higherInRange(int key) {
+        if (this.tooLow(key))
+            return this.lowest();
+        Integer higher = this.bTree.higher(key);
+        return higher == null || this.tooHigh(higher) ? null : higher;
+    }
+
+    private Integer floorInRange(int key) {
+        if (this.tooHigh(key))
+            return this.highest();
+        Integer floor = this.bTree.floor(key);
+        return floor == null || this.tooLow(floor) ? null : floor;
+    }
+
+    private Integer lowerInRange(int key) {
+        if (this.tooHigh(key))
+            return this.highest();
+        Integer lower = this.bTree.lower(key);
+        return lower == null || this.tooLow(lower) ? null : lower;
+    }
+
+    /*-------------------------------NavigableSet Methods-------------------------------*/
+
+    /*
+        Iterates over the keys in the view's range, starting
+        with a single descent of the B-tree
+     */
+    public Iterator<Integer> iterator() {
+        if (this.descending)
+            return new BTreeIterator(this.bTree, true, this.highKey, this.highInclusive, this.lowKey, this.lowInclusive);
+        return new BTreeIterator(this.bTree, false, this.lowKey, this.lowInclusive, this.highKey, this.highInclusive);
+    }
+
+    public Iterator<Integer> descendingIterator() {
+        return this.descendingSet().iterator();
+    }
+
+    public NavigableSet<Integer> descendingSet() {
+        return new BTreeSubSet(this.bTree, this.lowKey, this.lowInclusive, this.highKey, this.highInclusive, ! this.descending);
+    }
+
+    /*
+        Counts the keys in the view's range, which takes time
+        proportional to their number, unless the B-tree keeps
+        order statistics (then it takes two descents)
+     */
+    public int size() {
+        if (this.bTree.hasOrderStatistics()) {
+            int below = this.lowKey == null ? 0 : this.bTree.countKeysBelow(this.lowKey, ! this.lowInclusive);
+            int upTo = this.highKey == null ? this.bTree.size() : this.bTree.countKeysBelow(this.highKey, this.highInclusive);
+            return Math.max(0, upTo - below);
+        }
+
+        int size = 0;
+        for (Iterator<Integer> iterator = this.iterator(); iterator.hasNext(); iterator.next())
+            size++;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return this.lowest() == null;
+    }
+
+    public boolean contains(Object o) {
+        return o instanceof Integer && this.inRange((Integer) o) && this.bTree.contains(o);
+    }
+
+    public boolean add(Integer integer) {
+        if (! this.inRange(integer))
+            throw new IllegalArgumentException("key out of range");
+        return this.bTree.add(integer);
+    }
+
+    public boolean remove(Object o) {
+        return o instanceof Integer && this.inRange((Integer) o) && this.bTree.remove(o);
+    }
+
+    public Integer first() {
+        Integer first = this.descending ? this.highest() : this.lowest();
+        if (first == null)
+            throw new NoSuchElementException();
+        return first;
+    }
+
+    public Integer last() {
+        Integer last = this.descending ? this.lowest() : this.highest();
+        if (last == null)
+            throw new NoSuchElementException();
+        return last;
+    }
+
+    public Integer ceiling(Integer e) {
+        return this.descending ? this.floorInRange(e) : this.ceilingInRange(e);
+    }
+
+    public Integer higher(Integer e) {
+        return this.descending ? this.lowerInRange(e) : this.higherInRange(e);
+    }
+
+    public Integer floor(Integer e) {
+        return this.descending ? this.ceilingInRange(e) : this.floorInRange(e);
+    }
+
+    public Integer lower(Integer e) {
+        return this.descending ? this.higherInRange(e) : this.lowerInRange(e);
+    }
+
+    public Integer pollFirst() {
+        return this.poll(! this.descending);
+    }
+
+    public Integer pollLast() {
+        return this.poll(this.descending);
+    }
+
+    /*
+        Removes and returns the smallest (or, if lowest is false,
+        the largest) key in the view's range. If another thread
+        removes the key before this one does, the next key is
+        tried, so that no two threads poll the same key
+     */
+    private Integer poll(boolean lowest) {
+        while (true) {
+            Integer key = lowest ? this.lowest() : this.highest();
+            if (key == null || this.bTree.remove(key))
+                return key;
+        }
+    }
+
+    public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement, boolean toInclusive) {
+        if (! this.inRange(fromElement, fromInclusive))
+            throw new IllegalArgumentException("fromKey out of range");
+        if (! this.inRange(toElement, toInclusive))
+            throw new IllegalArgumentException("toKey out of range");
+        if (this.descending)
+            return new BTreeSubSet(this.bTree, toElement, toInclusive, fromElement, fromInclusive, true);
+        return new BTreeSubSet(this.bTree, fromElement, fromInclusive, toElement, toInclusive, false);
+    }
+
+    public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+        if (! this.inRange(toElement, inclusive))
+            throw new IllegalArgumentException("toKey out of range");
+        if (this.descending)
+            return new BTreeSubSet(this.bTree, toElement, inclusive, this.highKey, this.highInclusive, true);
+        return new BTreeSubSet(this.bTree, this.lowKey, this.lowInclusive, toElement, inclusive, false);
+    }
+
+    public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+        if (! this.inRange(fromElement, inclusive))
+            throw new IllegalArgumentException("fromKey out of range");
+        if (this.descending)
+            return new BTreeSubSet(this.bTree, this.lowKey, this.lowInclusive, fromElement, inclusive, true);
+        return new BTreeSubSet(this.bTree, fromElement, inclusive, this.highKey, this.highInclusive, false);
+    }
+
+    public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
+        return this.subSet(fromElement, true, toElement, false);
+    }
+
+    public SortedSet<Integer> headSet(Integer toElement) {
+        return this.headSet(toElement, false);
+    }
+
+    public SortedSet<Integer> tailSet(Integer fromElement) {
+        return this.tailSet(fromElement, true);
+    }
+
+    /*
+        Returns null for the natural ordering of Integer
+        objects, or the reverse of it for descending views
+     */
+    public Comparator<? super Integer> comparator() {
+        return this.descending ? Collections.reverseOrder() : null;
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counting Bloom filter over the keys of a B-tree, which
+ * lets contains answer most lookups of absent keys without
+ * reading any node (see BTreeOptions.bloomFilter). Every key
+ * increments hashCount of the filter's 4 bit counters and
+ * decrements them again when it's removed, so the filter
+ * supports deletes. A key whose counters aren't all positive
+ * is definitely not in the B-tree. A counter that reaches 15
+ * stays there, since it can't tell how many keys it counts,
+ * which only makes false positives a little more likely.
+ *
+ * The filter is sized for capacity keys (twice the number of
+ * keys it was built for), and the B-tree builds a bigger one
+ * from its keys once it holds more than that. Any number of
+ * threads can add and remove keys at the same time.
+ */
+class BloomFilter {
+    /*
+        Identifies a file as a saved Bloom filter, and the
+        version of its layout (see save)
+     */
+    private static final int MAGIC = 0x42426c6d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int MINIMUM_CAPACITY = 1024;
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long MAX_COUNT = 15;
+
+    /*
+        The number of keys that the filter was sized for,
+        the number of counters per key and of counters that
+        each key increments
+     */
+    final int capacity;
+    final int countersPerKey;
+    final int hashCount;
+
+    private final int counterCount;
+    private final AtomicLongArray counters;
+
+    /*
+        The lookups that the filter answered (definite misses)
+        and the ones that it let through although the key
+        wasn't there (false positives). They're carried over
+        to the filters that replace this one (see resized)
+     */
+    final LongAdder definiteMissCount;
+    final LongAdder falsePositiveCount;
+
+    private BloomFilter(int capacity, int countersPerKey, LongAdder definiteMissCount, LongAdder falsePositiveCount) {
+        this.capacity = capacity;
+        this.countersPerKey = countersPerKey;
+        this.hashCount = Math.max(1, (int) Math.round(Math.log(2) * countersPerKey));
+        this.counterCount = (int) Math.min(Integer.MAX_VALUE - COUNTERS_PER_WORD, (long) capacity * countersPerKey);
+        this.counters = new AtomicLongArray((this.counterCount + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+        this.definiteMissCount = definiteMissCount;
+        this.falsePositiveCount = falsePositiveCount;
+    }
+
+    /*
+        Returns an empty filter with room for keyCount keys
+        and for as many keys again
+     */
+    static BloomFilter create(int keyCount, int countersPerKey) {
+        return new BloomFilter(BloomFilter.capacityFor(keyCount), countersPerKey, new LongAdder(), new LongAdder());
+    }
+
+    /*
+        Returns an empty filter like this one with room for
+        keyCount keys and for as many keys again
+     */
+    BloomFilter resized(int keyCount) {
+        return new BloomFilter(BloomFilter.capacityFor(keyCount), this.countersPerKey,
+                this.definiteMissCount, this.falsePositiveCount);
+    }
+
+    private static int capacityFor(int keyCount) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MINIMUM_CAPACITY, 2L * keyCount));
+    }
+
+    /*
+        Returns the file that the filter of the B-tree in
+        dataFile is saved in
+     */
+    static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".bloom");
+    }
+
+    void add(int key) {
+        long hash = BloomFilter.hash(key);
+        for (int i = 0; i < this.hashCount; i++)
+            this.increment(this.counterFor(hash, i));
+    }
+
+    /*
+        Removes a key that was added before
+     */
+    void remove(int key) {
+        long hash = BloomFilter.hash(key);
+        for (int i = 0; i < this.hashCount; i++)
+            this.decrement(this.counterFor(hash, i));
+    }
+
+    /*
+        Returns false if key is definitely not in the B-tree
+     */
+    boolean mightContain(int key) {
+        long hash = BloomFilter.hash(key);
+        for (int i = 0; i < this.hashCount; i++) {
+            int counter = this.counterFor(hash, i);
+            if (((this.counters.get(counter / COUNTERS_PER_WORD) >>> BloomFilter.shiftOf(counter)) & MAX_COUNT) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+        Mixes the bits of key (the finalizer of MurmurHash3), so
+        that keys that are close together hit unrelated counters
+     */
+    private static long hash(int key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /*
+        Returns the i-th counter of the key with the given hash,
+        from the two halves of the hash (Kirsch and Mitzenmacher)
+     */
+    private int counterFor(long hash, int i) {
+        int combined = (int) hash + i * ((int) (hash >>> 32) | 1);
+        return (int) (((combined & 0xFFFFFFFFL) * this.counterCount) >>> 32);
+    }
+
+    private static int shiftOf(int counter) {
+        return (counter % COUNTERS_PER_WORD) * 4;
+    }
+
+    private void increment(int counter) {
+        int word = counter / COUNTERS_PER_WORD;
+        int shift = BloomFilter.shiftOf(counter);
+        while (true) {
+            long value = this.counters.get(word);
+            if (((value >>> shift) & MAX_COUNT) == MAX_COUNT
+                    || this.counters.compareAndSet(word, value, value + (1L << shift)))
+                return;
+        }
+    }
+
+    private void decrement(int counter) {
+        int word = counter / COUNTERS_PER_WORD;
+        int shift = BloomFilter.shiftOf(counter);
+        while (true) {
+            long value = this.counters.get(word);
+            long count = (value >>> shift) & MAX_COUNT;
+            if (count == MAX_COUNT || count == 0
+                    || this.counters.compareAndSet(word, value, value - (1L << shift)))
+                return;
+        }
+    }
+
+    /*
+        The number of bytes that the counters take up
+     */
+    long getMemoryBytes() {
+        return 8L * this.counters.length();
+    }
+
+    /*
+        The false positive rate that the filter should have
+        when it holds keyCount keys: (1 - e^(-kn/m))^k
+     */
+    double expectedFalsePositiveRate(int keyCount) {
+        return Math.pow(1 - Math.exp(-(double) this.hashCount * keyCount / this.counterCount), this.hashCount);
+    }
+
+    /*
+        Writes the filter of a B-tree with keyCount keys to
+        file. It's written next to it and then renamed over it,
+        so that the file is never half written. If sync is true,
+        the file and the rename are forced onto the disk
+     */
+    void save(File file, int keyCount, boolean sync) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + 8 * this.counters.length());
+        data.putInt(MAGIC).putInt(VERSION).putInt(keyCount).putInt(this.capacity).putInt(this.countersPerKey);
+        data.putInt(this.counters.length());
+        for (int i = 0; i < this.counters.length(); i++)
+            data.putLong(this.counters.get(i));
+        data.flip();
+
+        File newFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+            if (sync)
+                channel.force(true);
+        }
+        Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (sync)
+            WriteAheadLog.syncDirectory(file);
+    }
+
+    /*
+        Reads the filter that save wrote to file, or returns
+        null if there is none or it wasn't saved for a B-tree
+        with keyCount keys
+     */
+    static BloomFilter load(File file, int keyCount) throws IOException {
+        if (! file.exists())
+            return null;
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION
+                || data.getInt() != keyCount)
+            return null;
+        int capacity = data.getInt();
+        int countersPerKey = data.getInt();
+        int wordCount = data.getInt();
+        if (capacity < MINIMUM_CAPACITY || countersPerKey < 1 || countersPerKey > 64)
+            return null;
+        BloomFilter filter = new BloomFilter(capacity, countersPerKey, new LongAdder(), new LongAdder());
+        if (wordCount != filter.counters.length() || data.remaining() != 8L * wordCount)
+            return null;
+        for (int i = 0; i < wordCount; i++)
+            filter.counters.set(i, data.getLong());
+        return filter;
+    }
+}
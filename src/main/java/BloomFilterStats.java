@@ -0,0 +1,84 @@
+/**
+ * A snapshot of how well the Bloom filter of a B-tree
+ * answers the lookups of absent keys (see BTree.getBloomFilterStats)
+ */
+public class BloomFilterStats {
+    private final int capacity;
+    private final int hashCount;
+    private final long memoryBytes;
+    private final double expectedFalsePositiveRate;
+    private final long definiteMissCount;
+    private final long falsePositiveCount;
+
+    BloomFilterStats(int capacity, int hashCount, long memoryBytes, double expectedFalsePositiveRate,
+                     long definiteMissCount, long falsePositiveCount) {
+        this.capacity = capacity;
+        this.hashCount = hashCount;
+        this.memoryBytes = memoryBytes;
+        this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+        this.definiteMissCount = definiteMissCount;
+        this.falsePositiveCount = falsePositiveCount;
+    }
+
+    /*
+        The number of keys that the filter was sized for. It's
+        rebuilt with twice as much room once there are more
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /*
+        The number of counters that each key increments
+     */
+    public int getHashCount() {
+        return this.hashCount;
+    }
+
+    /*
+        The number of bytes of memory that the filter takes up
+     */
+    public long getMemoryBytes() {
+        return this.memoryBytes;
+    }
+
+    /*
+        The false positive rate that a filter of this size
+        should have with the current number of keys
+     */
+    public double getExpectedFalsePositiveRate() {
+        return this.expectedFalsePositiveRate;
+    }
+
+    /*
+        The number of lookups of absent keys that the filter
+        answered without reading any node
+     */
+    public long getDefiniteMissCount() {
+        return this.definiteMissCount;
+    }
+
+    /*
+        The number of lookups of absent keys that the filter
+        let through to the nodes
+     */
+    public long getFalsePositiveCount() {
+        return this.falsePositiveCount;
+    }
+
+    /*
+        The fraction of the lookups of absent keys so far that
+        the filter let through, or 0 if there were none
+     */
+    public double getFalsePositiveRate() {
+        long missCount = this.definiteMissCount + this.falsePositiveCount;
+        return missCount == 0 ? 0 : (double) this.falsePositiveCount / missCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterStats{capacity=" + this.capacity + ", memoryBytes=" + this.memoryBytes
+                + ", expectedFalsePositiveRate=" + this.expectedFalsePositiveRate
+                + ", definiteMisses=" + this.definiteMissCount + ", falsePositives=" + this.falsePositiveCount + "}";
+    }
+}
@@ -0,0 +1,818 @@
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bounded cache of the live Node objects of one B-tree,
+ * keyed by their page id. Nodes that are not pinned are
+ * evicted with the CLOCK (second chance) policy once the
+ * cache holds more pages than its memory budget allows.
+ *
+ * In write-back mode, saving a node only marks it as dirty.
+ * Dirty nodes are written to the NodeStore when they are
+ * evicted, when flush() is called, or periodically by a
+ * background timer. When the B-tree's changes are logged
+ * (see WriteAheadLog), dirty nodes are only written by
+ * checkpoints, unless their pages were appended to the data
+ * file after the last one (see NodeStore.canOverwrite).
+ *
+ * In concurrent mode, operations of different threads run at
+ * the same time, and every node has a latch that the B-tree
+ * holds while it uses the node. The pool keeps track of the
+ * latches and pins of each thread's operation separately.
+ * Cache hits don't take any lock: the frames are found in a
+ * concurrent map and pinned by counting up their pin counts,
+ * which eviction only takes over once they are zero. A miss
+ * reads its page into a buffer of its own thread without
+ * holding any lock either, and threads that miss on the same
+ * page wait for the first one to read it. Only changes to
+ * the order that the clock hand visits the frames in are
+ * made under the pool's lock.
+ */
+class BufferPool {
+    /*
+        A slot of the cache that holds a single node
+     */
+    private static class Frame {
+        /*
+            The pin counts of frames that are being evicted, and that
+            have been evicted. Neither can be pinned anymore
+         */
+        static final int EVICTING = -1;
+        static final int EVICTED = -2;
+
+        final int pageId;
+
+        /*
+            The node, or null while it is being read from disk
+            (see getNode), and whether reading it failed
+         */
+        volatile Node node;
+        boolean failed = false;
+
+        /*
+            The number of times that the node has been pinned.
+            A frame with a positive pin count is never evicted
+         */
+        final AtomicInteger pinCount;
+
+        /*
+            Set every time the node is used, and cleared
+            when the clock hand passes over the frame
+         */
+        volatile boolean referenced = true;
+
+        /*
+            Set when the node has changes that haven't
+            been written to the NodeStore yet
+         */
+        volatile boolean dirty = false;
+
+        /*
+            The index of the frame in clock, or -1 if it isn't in clock
+         */
+        int slot = -1;
+
+        /*
+            Creates a frame for the node in the page with id pageId
+            (or, if node is null, for the node that the thread is
+            about to read from it), pinned once for the thread
+         */
+        Frame(int pageId, Node node) {
+            this.pageId = pageId;
+            this.node = node;
+            this.pinCount = new AtomicInteger(1);
+        }
+
+        /*
+            Pins the frame unless it is being evicted or has been
+         */
+        boolean tryPin() {
+            while (true) {
+                int count = this.pinCount.get();
+                if (count < 0)
+                    return false;
+                if (this.pinCount.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        void unpin() {
+            this.pinCount.decrementAndGet();
+        }
+
+        /*
+            Publishes the node that was read into the frame,
+            or that reading it failed if node is null
+         */
+        synchronized void setNode(Node node) {
+            this.node = node;
+            this.failed = node == null;
+            this.notifyAll();
+        }
+
+        /*
+            Waits until the frame's node has been read and returns
+            true, or returns false if reading it failed
+         */
+        synchronized boolean awaitNode() {
+            boolean interrupted = false;
+            while (this.node == null && ! this.failed) {
+                try {
+                    this.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return this.node != null;
+        }
+
+        /*
+            Ends the eviction of the frame, with the pin count that
+            it ends up with: EVICTED, or 0 if the eviction failed
+         */
+        synchronized void endEviction(int count) {
+            this.pinCount.set(count);
+            this.notifyAll();
+        }
+
+        /*
+            Waits until the eviction of the frame has ended
+         */
+        synchronized void awaitEviction() {
+            boolean interrupted = false;
+            while (this.pinCount.get() == EVICTING) {
+                try {
+                    this.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+        The state of the operation that a thread is in the
+        middle of (see beginOperation)
+     */
+    private static class Operation {
+        /*
+            The locks on operationLock that were taken by the
+            operation and the operations nested in it
+         */
+        final ArrayList<Lock> locks = new ArrayList<Lock>();
+
+        /*
+            The frames that the operation pinned
+         */
+        final ArrayList<Frame> pins = new ArrayList<Frame>();
+
+        /*
+            The nodes whose latches the operation holds, in
+            the order that they were latched, and whether each
+            latch is held exclusively
+         */
+        final ArrayList<Node> latchedNodes = new ArrayList<Node>();
+        final ArrayList<Boolean> exclusiveLatches = new ArrayList<Boolean>();
+    }
+
+    /*
+        The single daemon thread that runs the periodic
+        flushes of every write-back BufferPool (and the
+        periodic syncs of write-ahead logs)
+     */
+    static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "btree-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+        The paged data file that cache misses are read from
+     */
+    final NodeStore store;
+
+    /*
+        The buffer that each thread decodes nodes from and
+        encodes them into (see pageBuffer)
+     */
+    private final ThreadLocal<ByteBuffer> pageBuffers;
+
+    /*
+        The maximum number of nodes that are kept in memory.
+        The cache only grows past this when every frame is pinned
+     */
+    private final int capacity;
+
+    /*
+        True if saving a node only marks it as dirty (see Node.writeNodeToDisk)
+     */
+    final boolean writeBack;
+
+    /*
+        True if the B-tree can be used by several threads at
+        once. The nodes then have latches (see latch)
+     */
+    final boolean concurrent;
+
+    /*
+        Maps the page id of every cached node to its frame
+     */
+    private final ConcurrentHashMap<Integer, Frame> frames = new ConcurrentHashMap<Integer, Frame>();
+
+    /*
+        The frames in the order that the clock hand visits
+        them. Slots of frames that were dropped are null
+        until they are reused by a new frame. Like emptySlots
+        and clockHand, it is only used while holding the pool's lock
+     */
+    private final ArrayList<Frame> clock = new ArrayList<Frame>();
+
+    /*
+        The indices of the null slots in clock
+     */
+    private final ArrayList<Integer> emptySlots = new ArrayList<Integer>();
+
+    /*
+        The index in clock of the next frame to consider for eviction
+     */
+    private int clockHand = 0;
+
+    /*
+        Held for the whole duration of every operation (see
+        beginOperation), so that the background flush never
+        writes a half modified node. Operations hold it
+        exclusively, except in concurrent mode, where the
+        latches of the nodes keep the operations apart and
+        only operations on the whole B-tree hold it exclusively
+     */
+    private final ReentrantReadWriteLock operationLock = new ReentrantReadWriteLock();
+
+    /*
+        The operation that each thread is in the middle of
+     */
+    private final ThreadLocal<Operation> operations = ThreadLocal.withInitial(Operation::new);
+
+    /*
+        The periodic background flush, or null if there is none
+     */
+    private ScheduledFuture<?> flushTask;
+
+    /*
+        The counters of an instrumented B-tree, or null (see Instrumentation)
+     */
+    final Instrumentation instrumentation;
+
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+
+    /*
+        Creates a cache in front of store that keeps at most
+        as many nodes as fit in memoryBudget bytes of pages
+        (but always at least a handful of them). If writeBack
+        is true and flushIntervalMillis is positive, the dirty
+        nodes are also flushed every flushIntervalMillis
+     */
+    BufferPool(NodeStore store, long memoryBudget, boolean writeBack, long flushIntervalMillis, boolean concurrent,
+               Instrumentation instrumentation) {
+        this.store = store;
+        this.instrumentation = instrumentation;
+        this.pageBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(store.pageSize));
+        this.capacity = (int) Math.max(8, Math.min(Integer.MAX_VALUE, memoryBudget / store.pageSize));
+        this.writeBack = writeBack;
+        this.concurrent = concurrent;
+        if (writeBack && flushIntervalMillis > 0)
+            this.flushTask = BufferPool.schedulePeriodicFlush(this, flushIntervalMillis);
+    }
+
+    /*
+        Only holds on to the pool weakly, so that a B-tree that
+        is no longer used can be garbage collected (which also
+        cancels its periodic flush)
+     */
+    private static ScheduledFuture<?> schedulePeriodicFlush(BufferPool pool, long flushIntervalMillis) {
+        final WeakReference<BufferPool> poolReference = new WeakReference<BufferPool>(pool);
+        final ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+        task[0] = FLUSHER.scheduleWithFixedDelay(() -> {
+            BufferPool p = poolReference.get();
+            if (p == null)
+                task[0].cancel(false);
+            else
+                p.flushIfIdle();
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        return task[0];
+    }
+
+    /*
+        Returns the live node stored in the page with id
+        pageId, reading it from disk if it isn't cached
+     */
+    Node getNode(int pageId) {
+        while (true) {
+            Frame frame = this.frames.get(pageId);
+            if (frame == null) {
+                Frame newFrame = new Frame(pageId, null);
+                frame = this.frames.putIfAbsent(pageId, newFrame);
+                if (frame == null) {
+                    this.missCount.increment();
+                    this.read(newFrame);
+                    return this.pinForOperation(newFrame);
+                }
+            }
+
+            // a frame that is being evicted or read is only used once that's over
+            if (! frame.tryPin()) {
+                frame.awaitEviction();
+                continue;
+            }
+            if (! frame.awaitNode()) {
+                frame.unpin();
+                continue;
+            }
+            this.hitCount.increment();
+            if (! frame.referenced)
+                frame.referenced = true;
+            return this.pinForOperation(frame);
+        }
+    }
+
+    /*
+        Reads the node of a frame that was just added for a miss
+        into it. Other threads that miss on the same page wait
+        for the node instead of reading it again
+     */
+    private void read(Frame frame) {
+        Node node = null;
+        try {
+            node = Node.readNodeFromDisk(this, frame.pageId);
+        }
+        finally {
+            if (node == null)
+                this.frames.remove(frame.pageId, frame);
+            frame.setNode(node);
+        }
+        synchronized (this) {
+            this.addToClock(frame);
+        }
+        this.evictOverflow();
+    }
+
+    /*
+        Adds a node that was just allocated (and so isn't on disk yet)
+     */
+    void addNewNode(Node node) {
+        Frame frame = new Frame(node.getPointer(), node);
+        Frame previous = this.frames.put(node.getPointer(), frame);
+        synchronized (this) {
+            if (previous != null)
+                this.removeFromClock(previous);
+            this.addToClock(frame);
+        }
+        this.pinForOperation(frame);
+        this.evictOverflow();
+    }
+
+    /*
+        Drops the node from the cache because its page has
+        been freed. Any changes that weren't flushed are discarded
+     */
+    void dropNode(Node node) {
+        Frame frame = this.frames.get(node.getPointer());
+        if (frame != null && frame.node == node)
+            this.drop(frame);
+    }
+
+    /*
+        Drops whichever node is cached for the page with id
+        pageId, if there is one, because the page has been freed
+     */
+    void dropPage(int pageId) {
+        Frame frame = this.frames.get(pageId);
+        if (frame != null)
+            this.drop(frame);
+    }
+
+    private void drop(Frame frame) {
+        if (! this.frames.remove(frame.pageId, frame))
+            return;
+        synchronized (this) {
+            this.removeFromClock(frame);
+        }
+        if (frame.dirty)
+            this.dirtyCount.decrementAndGet();
+    }
+
+    /*
+        Drops every node from the cache, because every page
+        is being freed (see Node.deleteAllNodes). Like dropNode,
+        it discards any changes that weren't flushed. No other
+        operation may run at the same time
+     */
+    synchronized void dropAllNodes() {
+        this.frames.clear();
+        this.clock.clear();
+        this.emptySlots.clear();
+        this.clockHand = 0;
+        this.dirtyCount.set(0);
+    }
+
+    /*
+        Saves the changes made to node. In write-back mode
+        the node is only marked as dirty, so that it gets
+        written once when it is flushed or evicted instead
+        of after every change. Otherwise it is written right
+        away. The node must be pinned, so that it can't be
+        evicted while it is being marked
+     */
+    void saveNode(Node node) {
+        Frame frame = this.frames.get(node.getPointer());
+        if (! this.writeBack || frame == null || frame.node != node) {
+            // write the node right away when not in write-back mode (or if it's not cached anymore)
+            this.writeNode(node);
+        }
+        else if (! frame.dirty) {
+            frame.dirty = true;
+            this.dirtyCount.incrementAndGet();
+        }
+    }
+
+    /*
+        Prevents the node from being evicted until it is unpinned
+     */
+    void pin(Node node) {
+        Frame frame = this.frames.get(node.getPointer());
+        if (frame != null && frame.node == node)
+            frame.tryPin();
+    }
+
+    /*
+        Undoes one call to pin(node)
+     */
+    void unpin(Node node) {
+        Frame frame = this.frames.get(node.getPointer());
+        if (frame != null && frame.node == node && frame.pinCount.get() > 0)
+            frame.unpin();
+    }
+
+    /*
+        Marks the start of an operation on the B-tree. Every
+        node that is used before the matching call to
+        endOperation() stays pinned until then, so that the
+        operation never holds on to a Node object that has
+        been evicted (and then re-read as a copy)
+     */
+    void beginOperation() {
+        this.beginOperation(this.concurrent ? this.operationLock.readLock() : this.operationLock.writeLock());
+    }
+
+    /*
+        Marks the start of an operation that no other
+        operation may run at the same time as, even in
+        concurrent mode, like clearing the whole B-tree
+     */
+    void beginExclusiveOperation() {
+        this.beginOperation(this.operationLock.writeLock());
+    }
+
+    private void beginOperation(Lock lock) {
+        lock.lock();
+        this.operations.get().locks.add(lock);
+    }
+
+    /*
+        Releases the latches and unpins all of the nodes
+        used by the outermost operation
+     */
+    void endOperation() {
+        Operation operation = this.operations.get();
+        Lock lock = operation.locks.remove(operation.locks.size() - 1);
+        try {
+            if (operation.locks.isEmpty())
+                this.unpinOperationNodes();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        Releases the latches and unpins every node that has
+        been used so far by the operation in progress. This is
+        only for operations that don't hold on to any of those
+        Node objects afterwards (see BulkLoader), which would
+        otherwise keep every node that they create pinned
+     */
+    void unpinOperationNodes() {
+        Operation operation = this.operations.get();
+        this.unlatchAllExcept(null);
+        for (Frame frame : operation.pins)
+            frame.unpin();
+        operation.pins.clear();
+        this.evictOverflow();
+    }
+
+    /*
+        Pins node until the end of the operation in progress,
+        for nodes that weren't found through getNode (like
+        the root of the B-tree)
+     */
+    void pinForOperation(Node node) {
+        Frame frame = this.frames.get(node.getPointer());
+        if (frame != null && frame.node == node && frame.tryPin())
+            this.pinForOperation(frame);
+    }
+
+    /*
+        In concurrent mode, waits until the operation in
+        progress holds node's latch, either shared (for
+        reading the node) or exclusively (for changing it).
+        The latch is held until it is released by unlatch or
+        unlatchAllExcept, or until the end of the operation.
+        A node must only be latched while it is pinned, so
+        that every thread latches the same Node object. Does
+        nothing if the pool isn't in concurrent mode
+     */
+    void latch(Node node, boolean exclusive) {
+        if (node.latch == null)
+            return;
+
+        (exclusive ? node.latch.writeLock() : node.latch.readLock()).lock();
+        Operation operation = this.operations.get();
+        operation.latchedNodes.add(node);
+        operation.exclusiveLatches.add(exclusive);
+    }
+
+    /*
+        Releases the latch on node that was taken last
+     */
+    void unlatch(Node node) {
+        if (node.latch == null)
+            return;
+
+        Operation operation = this.operations.get();
+        int i = operation.latchedNodes.lastIndexOf(node);
+        operation.latchedNodes.remove(i);
+        BufferPool.release(node, operation.exclusiveLatches.remove(i));
+    }
+
+    /*
+        Releases every latch of the operation in progress,
+        except for the ones on node (if it isn't null). This
+        is how latches are crabbed down the B-tree: the latches
+        on the nodes above node are released once it's certain
+        that they won't be changed by the operation anymore
+     */
+    void unlatchAllExcept(Node node) {
+        Operation operation = this.operations.get();
+        int kept = 0;
+        for (int i = 0; i < operation.latchedNodes.size(); i++) {
+            Node latchedNode = operation.latchedNodes.get(i);
+            boolean exclusive = operation.exclusiveLatches.get(i);
+            if (latchedNode == node) {
+                operation.latchedNodes.set(kept, latchedNode);
+                operation.exclusiveLatches.set(kept++, exclusive);
+            }
+            else
+                BufferPool.release(latchedNode, exclusive);
+        }
+        while (operation.latchedNodes.size() > kept) {
+            operation.latchedNodes.remove(operation.latchedNodes.size() - 1);
+            operation.exclusiveLatches.remove(operation.exclusiveLatches.size() - 1);
+        }
+    }
+
+    private static void release(Node node, boolean exclusive) {
+        if (exclusive)
+            node.latch.writeLock().unlock();
+        else
+            node.latch.readLock().unlock();
+    }
+
+    /*
+        Writes every dirty node to the NodeStore in the order
+        of their page ids, so that the writes are sequential.
+        Must not be called while a node is half modified, so no
+        other operation may run at the same time
+     */
+    void flush() {
+        if (this.dirtyCount.get() == 0)
+            return;
+
+        // a frame stays dirty if writing it fails
+        for (Frame frame : this.getDirtyFrames()) {
+            this.writeNode(frame.node);
+            frame.dirty = false;
+            this.dirtyCount.decrementAndGet();
+        }
+    }
+
+    /*
+        Appends the contents of every dirty node to log, which
+        is the first step of a checkpoint (see WriteAheadLog).
+        No other operation may run at the same time
+     */
+    void logDirtyNodes(WriteAheadLog log) {
+        for (Frame frame : this.getDirtyFrames())
+            log.appendPage(frame.pageId, Node.encodeNode(frame.node, this.pageBuffer()));
+    }
+
+    /*
+        Returns true if at least half of the cache is taken
+        up by dirty nodes, which a B-tree whose changes are
+        logged can only write by checkpointing
+     */
+    boolean isMostlyDirty() {
+        return this.dirtyCount.get() >= this.capacity / 2;
+    }
+
+    /*
+        Returns this thread's buffer for decoding and encoding
+        nodes, which has room for a whole page
+     */
+    ByteBuffer pageBuffer() {
+        return this.pageBuffers.get();
+    }
+
+    /*
+        Returns the dirty frames in the order of their page ids
+     */
+    private ArrayList<Frame> getDirtyFrames() {
+        ArrayList<Frame> dirtyFrames = new ArrayList<Frame>(this.dirtyCount.get());
+        for (Frame frame : this.frames.values()) {
+            if (frame.dirty)
+                dirtyFrames.add(frame);
+        }
+        Collections.sort(dirtyFrames, Comparator.comparingInt(frame -> frame.pageId));
+        return dirtyFrames;
+    }
+
+    /*
+        Flushes the dirty nodes unless an operation is in
+        progress, in which case the next timer tick retries
+     */
+    private void flushIfIdle() {
+        if (! this.operationLock.writeLock().tryLock())
+            return;
+        try {
+            this.flush();
+        }
+        finally {
+            this.operationLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Stops the periodic background flush
+     */
+    synchronized void close() {
+        if (this.flushTask != null)
+            this.flushTask.cancel(false);
+    }
+
+    /*
+        Returns a snapshot of the cache's statistics
+     */
+    CacheStats getStats() {
+        return new CacheStats(this.hitCount.sum(), this.missCount.sum(), this.evictionCount.sum(),
+                this.frames.size(), this.capacity, this.dirtyCount.get(), this.writeCount.sum());
+    }
+
+    /*
+        Keeps a frame that the thread has pinned pinned until the
+        end of the operation in progress, or unpins it right away
+        if there is none, and returns its node
+     */
+    private Node pinForOperation(Frame frame) {
+        Operation operation = this.operations.get();
+        if (operation.locks.isEmpty())
+            frame.unpin();
+        else
+            operation.pins.add(frame);
+        return frame.node;
+    }
+
+    /*
+        Puts the frame in a slot of clock. Must hold the pool's lock
+     */
+    private void addToClock(Frame frame) {
+        if (this.emptySlots.isEmpty()) {
+            frame.slot = this.clock.size();
+            this.clock.add(frame);
+        }
+        else {
+            frame.slot = this.emptySlots.remove(this.emptySlots.size() - 1);
+            this.clock.set(frame.slot, frame);
+        }
+    }
+
+    /*
+        Empties the frame's slot of clock, if it has one. Must hold the pool's lock
+     */
+    private void removeFromClock(Frame frame) {
+        if (frame.slot < 0)
+            return;
+        this.clock.set(frame.slot, null);
+        this.emptySlots.add(frame.slot);
+        frame.slot = -1;
+    }
+
+    private void writeNode(Node node) {
+        Node.flushNodeToDisk(node);
+        this.writeCount.increment();
+    }
+
+    /*
+        Evicts frames until the cache is back within its capacity
+        (it can grow past it while every frame is pinned)
+     */
+    private void evictOverflow() {
+        while (this.frames.size() > this.capacity) {
+            Frame frame;
+            synchronized (this) {
+                frame = this.claimFrameToEvict();
+            }
+            if (frame == null)
+                return;
+            this.evict(frame);
+        }
+    }
+
+    /*
+        Advances the clock hand until it finds an unpinned frame
+        that hasn't been referenced since the hand last passed
+        it, takes the frame out of clock and returns it, with
+        its pin count set to EVICTING so that nothing pins it
+        anymore. Dirty frames whose pages can't be overwritten
+        before the next checkpoint are skipped. Returns null if
+        every frame is pinned or skipped. Must hold the pool's lock
+     */
+    private Frame claimFrameToEvict() {
+        // two full sweeps clear every reference bit, so a third finds nothing new
+        for (int steps = 0; steps < 2 * this.clock.size() + 1; steps++) {
+            if (this.clockHand >= this.clock.size())
+                this.clockHand = 0;
+            Frame frame = this.clock.get(this.clockHand++);
+            if (frame == null || frame.pinCount.get() != 0)
+                continue;
+            if (frame.dirty && ! this.store.canOverwrite(frame.pageId))
+                continue;
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (! frame.pinCount.compareAndSet(0, Frame.EVICTING))
+                continue;
+
+            this.removeFromClock(frame);
+            return frame;
+        }
+        return null;
+    }
+
+    /*
+        Evicts a frame that claimFrameToEvict returned, writing
+        it first if it is dirty. This doesn't hold the pool's
+        lock, so the threads that want the frame's node in the
+        meantime wait until it is written (see getNode)
+     */
+    private void evict(Frame frame) {
+        try {
+            if (frame.dirty) {
+                this.writeNode(frame.node);
+                frame.dirty = false;
+                this.dirtyCount.decrementAndGet();
+            }
+        }
+        catch (RuntimeException e) {
+            // the frame stays cached (and dirty) if writing it fails
+            synchronized (this) {
+                this.addToClock(frame);
+            }
+            frame.endEviction(0);
+            throw e;
+        }
+        this.frames.remove(frame.pageId, frame);
+        this.evictionCount.increment();
+        frame.endEviction(Frame.EVICTED);
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Builds the nodes of a B-tree bottom-up from keys that
+ * arrive in strictly ascending order. The leaves are filled
+ * left to right up to the fill factor, and once every key
+ * has been added, each level of internal nodes is built on
+ * top of the level below it. Every node is written exactly
+ * once, and no node ends up with fewer than the minimum
+ * number of keys.
+ */
+class BulkLoader {
+    private final BufferPool pool;
+    private final int minimumChildCount;
+    private final boolean isBPlusTree;
+    private final boolean isBLinkTree;
+
+    /*
+        The number of keys that each leaf gets, except for
+        the last one or two leaves. Internal nodes get one
+        more child than that
+     */
+    private final int fillKeyCount;
+
+    /*
+        The keys that haven't been put into a leaf yet. A leaf
+        is only written once enough keys have arrived after it
+        that the leaves after it can't end up underfull
+     */
+    private final int[] pendingKeys;
+    private int pendingKeyCount = 0;
+
+    /*
+        The page ids of the nodes of the level that is being
+        built, the number of keys in each of their subtrees (for
+        B-trees that keep order statistics) and the keys that
+        separate each of them from the next one (which are moved
+        up into the next level)
+     */
+    private int[] children = new int[16];
+    private int[] subtreeCounts = new int[16];
+    private int childCount = 0;
+    private int[] separators = new int[16];
+    private int separatorCount = 0;
+
+    /*
+        The page id of the last leaf that was written and the
+        page id that the next leaf will be written to. Pages are
+        allocated one leaf ahead so that each leaf of a B+tree is
+        linked to the leaf after it before it gets written
+     */
+    private int lastLeafPageId = NodeStore.NO_PAGE;
+    private int nextLeafPageId = NodeStore.NO_PAGE;
+
+    /*
+        The pages that the loader has allocated, which are
+        freed again if the load fails (see discard)
+     */
+    private int[] allocatedPages = new int[16];
+    private int allocatedPageCount = 0;
+
+    private int keyCount = 0;
+    private int lastKey;
+
+    BulkLoader(BufferPool pool, int minimumChildCount, double fillFactor) {
+        this.pool = pool;
+        this.minimumChildCount = minimumChildCount;
+        this.isBPlusTree = pool.store.isBPlusTree;
+        this.isBLinkTree = pool.store.isBLinkTree;
+
+        int maxKeyCount = 2 * minimumChildCount - 1;
+        this.fillKeyCount = (int) Math.max(minimumChildCount - 1, Math.min(maxKeyCount, Math.round(fillFactor * maxKeyCount)));
+        this.pendingKeys = new int[this.fillKeyCount + (this.isBPlusTree ? 0 : 1) + maxKeyCount + 1];
+    }
+
+    /*
+        Adds the next key, which must be larger than every
+        key that was added before it
+     */
+    void add(int key) {
+        if (this.keyCount > 0 && key <= this.lastKey)
+            throw new IllegalArgumentException("keys must be in strictly ascending order, but " + key + " came after " + this.lastKey);
+        this.lastKey = key;
+        this.keyCount++;
+        this.pendingKeys[this.pendingKeyCount++] = key;
+
+        // write a full leaf once a whole leaf's worth of keys
+        // (and the key that separates them) is left over after it
+        if (this.pendingKeyCount == this.pendingKeys.length)
+            this.writeLeaf(this.fillKeyCount, false);
+    }
+
+    /*
+        Returns the number of keys that have been added
+     */
+    int getKeyCount() {
+        return this.keyCount;
+    }
+
+    /*
+        Writes the remaining keys to the last leaves, builds the
+        internal nodes above the leaves and returns the root
+     */
+    Node finish() {
+        // split the remaining keys evenly between two leaves if they don't fit in one
+        int maxKeyCount = 2 * this.minimumChildCount - 1;
+        if (this.pendingKeyCount > maxKeyCount)
+            this.writeLeaf(this.isBPlusTree ? this.pendingKeyCount / 2 : (this.pendingKeyCount - 1) / 2, false);
+        this.writeLeaf(this.pendingKeyCount, true);
+
+        while (this.childCount > 1)
+            this.buildNextLevel();
+        return this.pool.getNode(this.children[0]);
+    }
+
+    /*
+        Frees every page that the loader has allocated, when
+        the keys turn out not to be sorted or a node can't
+        be written, so that the B-tree is left as it was
+     */
+    void discard() {
+        try {
+            for (int i = 0; i < this.allocatedPageCount; i++) {
+                this.pool.dropPage(this.allocatedPages[i]);
+                this.pool.store.freePage(this.allocatedPages[i]);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Writes the first count pending keys to a new leaf. Unless
+        it's the last leaf, the key after them separates the leaf
+        from the next one (and, except in a B+tree, is moved out
+        of the leaves)
+     */
+    private void writeLeaf(int count, boolean isLastLeaf) {
+        int pageId = this.nextLeafPageId == NodeStore.NO_PAGE ? this.allocatePage() : this.nextLeafPageId;
+        Node leaf = Node.createNodeInPage(this.pool, pageId, this.minimumChildCount);
+        System.arraycopy(this.pendingKeys, 0, leaf.keys, 0, count);
+        leaf.keyCount = count;
+
+        int usedKeyCount = count;
+        if (isLastLeaf)
+            this.nextLeafPageId = NodeStore.NO_PAGE;
+        else {
+            this.nextLeafPageId = this.allocatePage();
+            this.separators = BulkLoader.append(this.separators, this.separatorCount++, this.pendingKeys[count]);
+            if (! this.isBPlusTree)
+                usedKeyCount++;
+            if (this.isBLinkTree) {
+                leaf.rightLink = this.nextLeafPageId;
+                leaf.highKey = this.pendingKeys[count];
+            }
+        }
+        if (this.isBPlusTree) {
+            leaf.prevLeaf = this.lastLeafPageId;
+            leaf.nextLeaf = this.nextLeafPageId;
+        }
+        this.lastLeafPageId = pageId;
+        this.subtreeCounts = BulkLoader.append(this.subtreeCounts, this.childCount, count);
+        this.children = BulkLoader.append(this.children, this.childCount++, pageId);
+
+        this.pendingKeyCount -= usedKeyCount;
+        System.arraycopy(this.pendingKeys, usedKeyCount, this.pendingKeys, 0, this.pendingKeyCount);
+        this.writeNode(leaf);
+    }
+
+    /*
+        Replaces the nodes of the level that is being built with
+        the internal nodes above them. The children are spread as
+        evenly as possible over as few nodes as the fill factor
+        allows, but never so few that a node would have more than
+        the maximum number of children, and never so many that a
+        node (other than the root) would have less than the minimum.
+        The pages of the level are allocated up front, so that the
+        nodes of a B-link tree can be linked to the next one
+     */
+    private void buildNextLevel() {
+        int nodeCount = Math.max(1, Math.min(
+                (this.childCount + this.fillKeyCount) / (this.fillKeyCount + 1),
+                this.childCount / this.minimumChildCount));
+
+        int[] parents = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            parents[i] = this.allocatePage();
+        int[] parentSubtreeCounts = new int[nodeCount];
+        int[] parentSeparators = new int[Math.max(0, nodeCount - 1)];
+        int child = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int nodeChildCount = this.childCount / nodeCount + (i < this.childCount % nodeCount ? 1 : 0);
+
+            Node node = Node.createNodeInPage(this.pool, parents[i], this.minimumChildCount);
+            node.isLeaf = false;
+            System.arraycopy(this.children, child, node.childPointers, 0, nodeChildCount);
+            System.arraycopy(this.separators, child, node.keys, 0, nodeChildCount - 1);
+            node.keyCount = nodeChildCount - 1;
+            if (node.childCounts != null)
+                System.arraycopy(this.subtreeCounts, child, node.childCounts, 0, nodeChildCount);
+            parentSubtreeCounts[i] = node.childCounts != null ? node.subtreeCount() : 0;
+            child += nodeChildCount;
+
+            // the separator after the node's last child goes up a level
+            if (i < nodeCount - 1) {
+                parentSeparators[i] = this.separators[child - 1];
+                if (this.isBLinkTree) {
+                    node.rightLink = parents[i + 1];
+                    node.highKey = parentSeparators[i];
+                }
+            }
+            this.writeNode(node);
+        }
+
+        this.children = parents;
+        this.subtreeCounts = parentSubtreeCounts;
+        this.childCount = nodeCount;
+        this.separators = parentSeparators;
+        this.separatorCount = parentSeparators.length;
+    }
+
+    private void writeNode(Node node) {
+        Node.writeNodeToDisk(node);
+
+        // the loader never uses a node again after writing it
+        this.pool.unpinOperationNodes();
+    }
+
+    /*
+        Returns a page for a new node. When the store is
+        logged, nodes in free pages have to stay in the cache
+        until the checkpoint at the end of the load, so once
+        they take up half of the cache, the pages are appended
+        to the data file instead
+     */
+    private int allocatePage() {
+        int pageId;
+        try {
+            if (this.pool.store.isLogged() && this.pool.isMostlyDirty())
+                pageId = this.pool.store.appendPage();
+            else
+                pageId = this.pool.store.allocatePage();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.allocatedPages = BulkLoader.append(this.allocatedPages, this.allocatedPageCount++, pageId);
+        return pageId;
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length)
+            array = Arrays.copyOf(array, 2 * index);
+        array[index] = value;
+        return array;
+    }
+}
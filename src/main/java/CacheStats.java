@@ -0,0 +1,90 @@
+/**
+ * A snapshot of the statistics of a B-tree's node cache
+ */
+public class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final int cachedNodeCount;
+    private final int capacity;
+    private final int dirtyNodeCount;
+    private final long writeCount;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, int cachedNodeCount, int capacity,
+               int dirtyNodeCount, long writeCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.cachedNodeCount = cachedNodeCount;
+        this.capacity = capacity;
+        this.dirtyNodeCount = dirtyNodeCount;
+        this.writeCount = writeCount;
+    }
+
+    /*
+        The number of node reads that were served from memory
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /*
+        The number of node reads that had to go to disk
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /*
+        The number of nodes that were evicted to make room for others
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /*
+        The number of nodes that are currently in memory
+     */
+    public int getCachedNodeCount() {
+        return this.cachedNodeCount;
+    }
+
+    /*
+        The maximum number of nodes that the cache keeps in memory
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /*
+        The number of cached nodes with changes that
+        haven't been written to disk yet
+     */
+    public int getDirtyNodeCount() {
+        return this.dirtyNodeCount;
+    }
+
+    /*
+        The number of times that a node was physically
+        written to disk
+     */
+    public long getWriteCount() {
+        return this.writeCount;
+    }
+
+    /*
+        The fraction of node reads that were served from
+        memory, or 0 if no nodes have been read yet
+     */
+    public double getHitRate() {
+        long requests = this.hitCount + this.missCount;
+        return requests == 0 ? 0 : (double) this.hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + this.hitCount + ", misses=" + this.missCount
+                + ", evictions=" + this.evictionCount + ", cached=" + this.cachedNodeCount
+                + "/" + this.capacity + ", dirty=" + this.dirtyNodeCount + ", writes=" + this.writeCount + "}";
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * When the changes of a B-tree that is stored in a data file
+ * (see BTree.create) are synced to the disk. Syncing less
+ * often makes add and remove faster, but a crash of the
+ * machine can then lose the changes that weren't synced yet.
+ * The B-tree is consistent after a crash with any policy.
+ */
+public enum Durability {
+    /*
+        Changes are written to the log before add or remove
+        returns, but are never synced, not even by checkpoints.
+        The operating system decides when they reach the disk,
+        so they survive a crash of the JVM but not of the machine
+     */
+    NONE,
+
+    /*
+        Changes are written to the log before add or remove
+        returns, like with NONE, and a background thread syncs
+        them every BTreeOptions.syncIntervalMillis. So they
+        survive a crash of the JVM, and a crash of the machine
+        can only lose the changes of the last interval. If a
+        sync fails, every add and remove after it throws
+        until the B-tree is opened again
+     */
+    PERIODIC,
+
+    /*
+        Every add and remove returns only once its change is
+        synced (together with the changes of the threads that
+        commit at the same time)
+     */
+    ON_COMMIT
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histograms of a B-tree whose
+ * options enable instrumentation (see BTreeOptions.instrumented).
+ * A B-tree without it has no Instrumentation at all, and
+ * every place that counts something first checks for null,
+ * so that all it costs is that check.
+ */
+class Instrumentation {
+    final LongAdder nodeReadCount = new LongAdder();
+    final LongAdder nodeWriteCount = new LongAdder();
+    final LongAdder splitCount = new LongAdder();
+    final LongAdder mergeCount = new LongAdder();
+    final LongAdder borrowCount = new LongAdder();
+
+    /*
+        A histogram for each of the operations, by ordinal
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[BTreeStats.Operation.values().length];
+
+    Instrumentation() {
+        for (int i = 0; i < this.latencies.length; i++)
+            this.latencies[i] = new LatencyHistogram();
+    }
+
+    void recordLatency(BTreeStats.Operation operation, long nanos) {
+        this.latencies[operation.ordinal()].record(nanos);
+    }
+
+    LatencyStats getLatency(BTreeStats.Operation operation) {
+        return this.latencies[operation.ordinal()].snapshot();
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies (in nanoseconds) in logarithmic buckets:
+ * every power of two is split into SUB_BUCKET_COUNT buckets
+ * of equal width, so a recorded latency is off by at most
+ * 1 / SUB_BUCKET_COUNT of its value, and the histogram has a
+ * fixed size no matter how many latencies it records. Any
+ * number of threads can record latencies at the same time.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /*
+        Values below SUB_BUCKET_COUNT have a bucket each, and
+        every power of two from there up to 2^62 has SUB_BUCKET_COUNT
+     */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        this.buckets.incrementAndGet(LatencyHistogram.bucketOf(nanos));
+        this.totalNanos.add(nanos);
+        if (nanos > this.maxNanos.get())
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /*
+        Returns the largest value that falls into bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT)
+            return bucket;
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long mantissa = bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /*
+        Returns the latencies recorded so far. Recording
+        doesn't stop while the snapshot is taken, so its
+        numbers can be off by the latencies recorded meanwhile
+     */
+    LatencyStats snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.buckets.get(i);
+            count += counts[i];
+        }
+        long maxNanos = this.maxNanos.get();
+        long meanNanos = count == 0 ? 0 : this.totalNanos.sum() / count;
+        return new LatencyStats(count, meanNanos, percentile(counts, count, 0.5, maxNanos),
+                percentile(counts, count, 0.9, maxNanos), percentile(counts, count, 0.99, maxNanos),
+                percentile(counts, count, 0.999, maxNanos), maxNanos);
+    }
+
+    /*
+        Returns the largest value of the bucket that holds
+        the latency below which the given fraction of the
+        latencies are (but no more than the largest latency)
+     */
+    private static long percentile(long[] counts, long count, double fraction, long maxNanos) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(LatencyHistogram.highestValueOf(i), maxNanos);
+        }
+        return maxNanos;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * A snapshot of the latencies of one kind of operation of an
+ * instrumented B-tree (see BTreeStats). The percentiles are
+ * the upper bounds of the histogram buckets they fall into,
+ * so they are at most an eighth higher than the real ones.
+ */
+public class LatencyStats {
+    private final long count;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    LatencyStats(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos,
+                 long maxNanos) {
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /*
+        The number of operations that were timed
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getMeanNanos() {
+        return this.meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return this.p50Nanos;
+    }
+
+    public long getP90Nanos() {
+        return this.p90Nanos;
+    }
+
+    public long getP99Nanos() {
+        return this.p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return this.p999Nanos;
+    }
+
+    public long getMaxNanos() {
+        return this.maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyStats{count=" + this.count + ", meanNanos=" + this.meanNanos + ", p50Nanos=" + this.p50Nanos
+                + ", p90Nanos=" + this.p90Nanos + ", p99Nanos=" + this.p99Nanos + ", p999Nanos=" + this.p999Nanos
+                + ", maxNanos=" + this.maxNanos + "}";
+    }
+}
@@ -1,20 +1,27 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by devinmorgan on 2/12/17.
  */
 class Node {
     /*
-        A file that contains all of information about a
-        Node so that it the node can be stored on Disk
-        in case the data is larger than main memory
+        The cache of the paged data file that this node is
+        stored in. All of the nodes of a B-tree share the
+        same pool (and so the same NodeStore)
      */
-    final File diskLocation;
+    final BufferPool pool;
+
+    /*
+        The id of the page in pool.store that contains all of
+        the information about this Node so that the node can
+        be stored on Disk in case the data is larger than
+        main memory
+     */
+    final int pageId;
 
     /*
         The minimum number of child nodes that a given
@@ -31,80 +38,296 @@ class Node {
     boolean isLeaf;
 
     /*
-        An ArrayList<Integers> that contains all of this
-        node's keys in sorted ascending order
+        An int[] that contains all of this node's keys in
+        sorted ascending order. Only the first keyCount
+        entries are keys; the array always has room for
+        the maximum of 2*minimumChildCount - 1 keys
+     */
+    final int[] keys;
+
+    /*
+        The number of keys that are currently in keys
      */
-    final ArrayList<Integer> keys;
+    int keyCount;
 
     /*
-        An ArrayList<String> that contains the pointers to
-        all of this nodes child nodes. The pointers are
-        represented as Strings of the absolute file paths to
-        the location of the child node's data (files) on disk.
-        All of the pointers are null if the node is a leaf node.
+        An int[] that contains the pointers to all of this
+        nodes child nodes. The pointers are the page ids of
+        the child nodes in pool.store. An internal node has
+        keyCount + 1 child pointers and a leaf node has none
      */
-    final ArrayList<String> childPointers;
+    final int[] childPointers;
 
     /*
-        A pointer to the parent of this node. The pointer is
-        a String of the absolute file path to the data (file)
-        on the disk. The pointer is "null" if current node is
-         a root node
+        The number of keys in the subtree of each of this
+        node's children, in the same order as childPointers.
+        It is null unless the B-tree keeps order statistics
+        (see BTreeOptions.orderStatistics), and only used by
+        internal nodes
      */
-    String parentPointer;
+    final int[] childCounts;
+
+    /*
+        The page ids of the leaves right before and right
+        after this leaf, if this is a leaf of a B+tree (see
+        isBPlusLeaf). They are NodeStore.NO_PAGE for the
+        first and last leaf and for every other node
+     */
+    int prevLeaf = NodeStore.NO_PAGE;
+    int nextLeaf = NodeStore.NO_PAGE;
+
+    /*
+        The page id of the node right after this one on the
+        same level of a B-link tree (see BTreeOptions.bLinkTree),
+        and the smallest key that belongs to that node rather
+        than to this one. A node that has been split only has
+        the keys below its highKey, even if its parent still
+        says otherwise. The rightLink is NodeStore.NO_PAGE (and
+        highKey is unused) for the last node of each level and
+        for every node of other kinds of B-trees
+     */
+    int rightLink = NodeStore.NO_PAGE;
+    int highKey;
+
+    /*
+        The latch that the operations of a concurrent B-tree
+        hold while they use the node (see BufferPool.latch),
+        or null if the B-tree isn't concurrent
+     */
+    final ReentrantReadWriteLock latch;
 
     /*
         A private constructor for the Node class
      */
-    private Node(File diskLocation,
+    private Node(BufferPool pool,
+                 int pageId,
                  boolean isLeaf,
-                 int minimumChildCount,
-                 ArrayList<Integer> keys,
-                 ArrayList<String> childPointers,
-                 String parentPointer) {
-        this.diskLocation = diskLocation;
+                 int minimumChildCount) {
+        this.pool = pool;
+        this.pageId = pageId;
         this.minimumChildCount = minimumChildCount;
         this.isLeaf = isLeaf;
-        this.keys = keys;
-        this.childPointers = childPointers;
-        this.parentPointer = parentPointer;
+        this.keys = new int[2 * minimumChildCount - 1];
+        this.keyCount = 0;
+        this.childPointers = new int[2 * minimumChildCount];
+        this.childCounts = pool.store.hasChildCounts ? new int[2 * minimumChildCount] : null;
+        this.latch = pool.concurrent ? new ReentrantReadWriteLock() : null;
     }
 
     /*
         A package private factor method for the Node class.
-        The node must have a minimum child count and must
-        have a pointer to its parent node (can be null if
-        the node doesn't have a parent)
+        The node is given its own page in pool.store and must
+        have a minimum child count. Nodes don't know their
+        parent; code that needs to go back up the B-tree keeps
+        the path from the root on a NodePath instead
      */
-    static Node allocateNode(int minimumChildCount, String parentPointer) {
+    static Node allocateNode(BufferPool pool, int minimumChildCount) {
         try{
-            File file = File.createTempFile("node", ".txt");
-            return new Node(file, true, minimumChildCount, new ArrayList<Integer>(), new ArrayList<String>(), parentPointer);
+            int pageId = pool.store.allocatePage();
+            return Node.createNodeInPage(pool, pageId, minimumChildCount);
         }
-        catch(IOException e){
-            e.printStackTrace();
-            return null;
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     /*
-        Mutates the rightSibling, this, and the parent node
-        according to case 2.a) in CLRS Chapter 18, B-Trees
-        on page 501
+        Like allocateNode, but for a page that the caller
+        has already allocated from pool.store
      */
-    private Node grabElementFromRightSiblingNode(Node rightSibling, Node parent, int currentNodeIndex) {
-        // append the parent's key that is to the right
-        // of this node's pointer
-        this.keys.add(parent.keys.get(currentNodeIndex));
+    static Node createNodeInPage(BufferPool pool, int pageId, int minimumChildCount) {
+        Node node = new Node(pool, pageId, true, minimumChildCount);
+        pool.addNewNode(node);
+        return node;
+    }
+
+    /*
+        Returns the index of key in this node's keys if the
+        node contains it. Otherwise returns (-(i) - 1) where
+        i is the index of the child subtree that would
+        contain key (see Arrays.binarySearch)
+     */
+    int indexOfKey(int key) {
+        return Arrays.binarySearch(this.keys, 0, this.keyCount, key);
+    }
+
+    /*
+        Returns the index of the child subtree that would
+        contain key. In a B+tree a key equal to one of the
+        separators is stored in the subtree to its right
+     */
+    int childIndexFor(int key) {
+        int i = this.indexOfKey(key);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
 
-        // remove rightSiblings left-most key and swap it
-        // with the parent's key that is to the right of
-        // this node's pointer
-        parent.keys.set(currentNodeIndex, rightSibling.keys.remove(0));
+    /*
+        Returns true if key belongs to a node to the right of
+        this one, because this node has been split since the
+        node that led to it was read (see highKey)
+     */
+    boolean isLeftOf(int key) {
+        return this.rightLink != NodeStore.NO_PAGE && key >= this.highKey;
+    }
+
+    /*
+        Returns true if this node is a leaf of a B+tree. Those
+        leaves hold every key of the tree, so the keys in their
+        parents are only copies, and they are linked to the
+        leaves next to them
+     */
+    boolean isBPlusLeaf() {
+        return this.isLeaf && this.pool.store.isBPlusTree;
+    }
+
+    /*
+        Inserts key at index in keys, shifting the larger keys to the right
+     */
+    void insertKey(int index, int key) {
+        System.arraycopy(this.keys, index, this.keys, index + 1, this.keyCount - index);
+        this.keys[index] = key;
+        this.keyCount++;
+    }
+
+    /*
+        Removes and returns the key at index in keys,
+        shifting the larger keys to the left
+     */
+    int removeKey(int index) {
+        int key = this.keys[index];
+        System.arraycopy(this.keys, index + 1, this.keys, index, this.keyCount - index - 1);
+        this.keyCount--;
+        return key;
+    }
 
-        // remove rightSibling's left-most pointer
-        // and append it to this.childPointers
-        this.childPointers.add(rightSibling.childPointers.remove(0));
+    /*
+        Inserts key at index in keys and (for internal nodes)
+        inserts the pointer to the child node whose keys are
+        all larger than key at index + 1 in childPointers
+     */
+    void insertKeyWithRightChild(int index, int key, int childPointer) {
+        if (! this.isLeaf) {
+            System.arraycopy(this.childPointers, index + 1, this.childPointers, index + 2, this.keyCount - index);
+            this.childPointers[index + 1] = childPointer;
+            this.shiftChildCounts(index + 1, index + 2, this.keyCount - index);
+        }
+        this.insertKey(index, key);
+    }
+
+    /*
+        Inserts key at index in keys and (for internal nodes)
+        inserts the pointer to the child node whose keys are
+        all smaller than key at index in childPointers
+     */
+    void insertKeyWithLeftChild(int index, int key, int childPointer) {
+        if (! this.isLeaf) {
+            System.arraycopy(this.childPointers, index, this.childPointers, index + 1, this.keyCount + 1 - index);
+            this.childPointers[index] = childPointer;
+            this.shiftChildCounts(index, index + 1, this.keyCount + 1 - index);
+        }
+        this.insertKey(index, key);
+    }
+
+    /*
+        Removes and returns the key at index in keys and (for
+        internal nodes) removes the pointer at index + 1 in
+        childPointers, the child to the right of the key
+     */
+    int removeKeyWithRightChild(int index) {
+        if (! this.isLeaf) {
+            System.arraycopy(this.childPointers, index + 2, this.childPointers, index + 1, this.keyCount - index - 1);
+            this.shiftChildCounts(index + 2, index + 1, this.keyCount - index - 1);
+        }
+        return this.removeKey(index);
+    }
+
+    /*
+        Removes and returns the key at index in keys and (for
+        internal nodes) removes the pointer at index in
+        childPointers, the child to the left of the key
+     */
+    int removeKeyWithLeftChild(int index) {
+        if (! this.isLeaf) {
+            System.arraycopy(this.childPointers, index + 1, this.childPointers, index, this.keyCount - index);
+            this.shiftChildCounts(index + 1, index, this.keyCount - index);
+        }
+        return this.removeKey(index);
+    }
+
+    /*
+        Moves the counts of children along with their pointers
+        (see childCounts). The count of a newly inserted child
+        is left for the caller to set
+     */
+    private void shiftChildCounts(int from, int to, int length) {
+        if (this.childCounts != null)
+            System.arraycopy(this.childCounts, from, this.childCounts, to, length);
+    }
+
+    /*
+        Returns the number of keys in the subtree whose root is
+        this node. Only for B-trees that keep order statistics
+     */
+    int subtreeCount() {
+        if (this.isLeaf)
+            return this.keyCount;
+
+        // the keys of a B+tree's internal nodes are only copies
+        int count = this.pool.store.isBPlusTree ? 0 : this.keyCount;
+        for (int i = 0; i <= this.keyCount; i++)
+            count += this.childCounts[i];
+        return count;
+    }
+
+    /*
+        Recounts the keys in the subtree of the child at
+        index, which is child, after keys were moved into
+        or out of it (if the B-tree keeps order statistics)
+     */
+    void updateChildCount(int index, Node child) {
+        if (this.childCounts != null)
+            this.childCounts[index] = child.subtreeCount();
+    }
+
+    /*
+        Returns true if the node has the maximum number of keys
+     */
+    boolean isFull() {
+        return this.keyCount == 2 * this.minimumChildCount - 1;
+    }
+
+    /*
+        Mutates the rightSibling, this, and the parent node
+        according to case 3.a) in CLRS Chapter 18, B-Trees
+        on page 502
+     */
+    private Node grabElementFromRightSiblingNode(Node rightSibling, Node parent, int currentNodeIndex) {
+        if (this.pool.instrumentation != null)
+            this.pool.instrumentation.borrowCount.increment();
+
+        if (this.isBPlusLeaf()) {
+            // move rightSibling's left-most key over, the key in
+            // parent becomes a copy of rightSibling's new left-most key
+            this.insertKey(this.keyCount, rightSibling.removeKey(0));
+            parent.keys[currentNodeIndex] = rightSibling.keys[0];
+        }
+        else {
+            // remove rightSibling's left-most key and pointer
+            int movedPointer = rightSibling.isLeaf ? NodeStore.NO_PAGE : rightSibling.childPointers[0];
+            int movedCount = rightSibling.isLeaf || this.childCounts == null ? 0 : rightSibling.childCounts[0];
+            int movedKey = rightSibling.removeKeyWithLeftChild(0);
+
+            // append the parent's key that is to the right of this
+            // node's pointer and rightSibling's left-most pointer
+            this.insertKeyWithRightChild(this.keyCount, parent.keys[currentNodeIndex], movedPointer);
+            if (! this.isLeaf && this.childCounts != null)
+                this.childCounts[this.keyCount] = movedCount;
+
+            // replace the parent's key with rightSibling's left-most key
+            parent.keys[currentNodeIndex] = movedKey;
+        }
+        parent.updateChildCount(currentNodeIndex, this);
+        parent.updateChildCount(currentNodeIndex + 1, rightSibling);
 
         // save the changes to rightSibling, this, and parent node
         Node.writeNodeToDisk(rightSibling);
@@ -114,23 +337,38 @@ class Node {
     }
 
     /*
-        Mutates the rightSibling, this, and the parent node
-        according to case 2.b) in CLRS Chapter 18, B-Trees
-        on page 501
+        Mutates the leftSibling, this, and the parent node
+        according to case 3.a) in CLRS Chapter 18, B-Trees
+        on page 502
      */
     private Node grabElementFromLeftSiblingNode(Node leftSibling, Node parent, int currentNodeIndex) {
-        // append the parent's key that is to the left
-        // of this node's pointer
-        this.keys.add(parent.keys.get(currentNodeIndex - 1));
-
-        // remove leftSiblings right-most key and swap it
-        // with the parent's key that is to the left of
-        // this node's pointer
-        parent.keys.set(currentNodeIndex - 1, leftSibling.keys.remove(leftSibling.keys.size() - 1));
-
-        // remove leftSibling's right-most pointer
-        // and append it to this.childPointers
-        this.childPointers.add(leftSibling.childPointers.remove(leftSibling.keys.size() - 1));
+        if (this.pool.instrumentation != null)
+            this.pool.instrumentation.borrowCount.increment();
+
+        if (this.isBPlusLeaf()) {
+            // move leftSibling's right-most key over, which becomes
+            // this node's left-most key and so the key in parent
+            int movedKey = leftSibling.removeKey(leftSibling.keyCount - 1);
+            this.insertKey(0, movedKey);
+            parent.keys[currentNodeIndex - 1] = movedKey;
+        }
+        else {
+            // remove leftSibling's right-most key and pointer
+            int movedPointer = leftSibling.isLeaf ? NodeStore.NO_PAGE : leftSibling.childPointers[leftSibling.keyCount];
+            int movedCount = leftSibling.isLeaf || this.childCounts == null ? 0 : leftSibling.childCounts[leftSibling.keyCount];
+            int movedKey = leftSibling.removeKeyWithRightChild(leftSibling.keyCount - 1);
+
+            // prepend the parent's key that is to the left of this
+            // node's pointer and leftSibling's right-most pointer
+            this.insertKeyWithLeftChild(0, parent.keys[currentNodeIndex - 1], movedPointer);
+            if (! this.isLeaf && this.childCounts != null)
+                this.childCounts[0] = movedCount;
+
+            // replace the parent's key with leftSibling's right-most key
+            parent.keys[currentNodeIndex - 1] = movedKey;
+        }
+        parent.updateChildCount(currentNodeIndex - 1, leftSibling);
+        parent.updateChildCount(currentNodeIndex, this);
 
         // save the changes to leftSibling, this, and parent
         Node.writeNodeToDisk(leftSibling);
@@ -140,59 +378,63 @@ class Node {
     }
 
     /*
-        Merges mergingNode into lastingNode by copying over
-        mergingNode's keys and pointers (to its children)
-        and by adding the adjacent key from parent. This node
-        will delete mergingNode once the merge is finished
-        and will also delete parent if it would not contain any
-        keys as a result of the merge
+        Merges mergingNode, the child at index + 1 of parent,
+        into lastingNode, the child at index of parent, by
+        copying over mergingNode's keys and pointers (to its
+        children) and by moving the key at index from parent
+        in between them. This node will delete mergingNode
+        once the merge is finished and will also delete parent
+        if it would not contain any keys as a result of the merge
+        (which only happens when parent is the root, because
+        deletes make sure that every other node they descend
+        into has at least minimumChildCount keys). Leaves of a
+        B+tree already hold every key, so the key from parent
+        is dropped instead and mergingNode is unlinked
      */
-    static Node merge(Node lastingNode, int key, Node mergingNode, Node parent) {
-        // add key to lastingNode.keys first
-        lastingNode.keys.add(key);
-
-        // remove all of the keys and pointers from mergingNode
-        // and add them to lastingNode
-        for (int i = 0; i < mergingNode.keys.size(); i++) {
-            lastingNode.keys.add(mergingNode.keys.remove(0));
-            lastingNode.childPointers.add(mergingNode.childPointers.remove(0));
+    static Node merge(Node lastingNode, Node mergingNode, Node parent, int index) {
+        if (lastingNode.pool.instrumentation != null)
+            lastingNode.pool.instrumentation.mergeCount.increment();
+
+        // move the key in between the two nodes from parent
+        // to lastingNode and remove the pointer to mergingNode
+        int key = parent.removeKeyWithRightChild(index);
+        int firstMovedPointer = lastingNode.keyCount + 1;
+        if (! lastingNode.isBPlusLeaf())
+            lastingNode.keys[lastingNode.keyCount++] = key;
+        else {
+            // mergingNode is the leaf right after lastingNode, so unlink it
+            lastingNode.nextLeaf = mergingNode.nextLeaf;
+            if (mergingNode.nextLeaf != NodeStore.NO_PAGE) {
+                Node next = lastingNode.pool.getNode(mergingNode.nextLeaf);
+                lastingNode.pool.latch(next, true);
+                next.prevLeaf = lastingNode.pageId;
+                Node.writeNodeToDisk(next);
+                lastingNode.pool.unlatch(next);
+            }
         }
 
-        // there is always 1 more pointer than key
-        lastingNode.childPointers.add(mergingNode.childPointers.remove(0));
-
-        // delete the parent node if it's empty
-        if (parent.keys.isEmpty()) {
-
-            // set the lastingNode parentPointer to the parentPointer of the old parent
-            lastingNode.parentPointer = parent.parentPointer;
-
-            // set the childPointer to the old parent in the old parent's parent to point to the lastingNode
-            if (parent.parentPointer != null) {
-                Node parentOfOldParent = Node.readNodeFromDisk(parent.parentPointer);
-                int index = parentOfOldParent.childPointers.indexOf(parent.getPointer());
-                parentOfOldParent.childPointers.set(index, lastingNode.getPointer());
-
-                // save the changes to parentOfOldParent to disk
-                Node.writeNodeToDisk(parentOfOldParent);
-            }
+        // copy all of the keys and pointers of mergingNode to lastingNode
+        System.arraycopy(mergingNode.keys, 0, lastingNode.keys, lastingNode.keyCount, mergingNode.keyCount);
+        if (! lastingNode.isLeaf) {
+            System.arraycopy(mergingNode.childPointers, 0, lastingNode.childPointers, firstMovedPointer, mergingNode.keyCount + 1);
+            if (lastingNode.childCounts != null)
+                System.arraycopy(mergingNode.childCounts, 0, lastingNode.childCounts, firstMovedPointer, mergingNode.keyCount + 1);
+        }
+        lastingNode.keyCount += mergingNode.keyCount;
+        parent.updateChildCount(index, lastingNode);
 
-            // delete the parents data
-            parent.childPointers.clear();
-            File parentNodeDiskContents = new File(parent.getPointer());
-            parentNodeDiskContents.delete();
+        // delete the parent node if it's empty (the caller
+        // makes lastingNode the new root of the B-tree)
+        if (parent.keyCount == 0) {
+            Node.freeNodeOnDisk(parent);
         }
         else {
-            // remove the pointer to mergingNode from the parent
-            parent.childPointers.remove(mergingNode.getPointer());
-
             // save the changes to parent node on disk
             Node.writeNodeToDisk(parent);
         }
 
         // delete mergingNode's content from disk memory
-        File mergingNodeDiskContents = new File(mergingNode.getPointer());
-        mergingNodeDiskContents.delete();
+        Node.freeNodeOnDisk(mergingNode);
 
         // save changes to lastingNode (mergingNode get's deleted and parent node got saved already)
         Node.writeNodeToDisk(lastingNode);
@@ -200,51 +442,64 @@ class Node {
     }
 
     /*
-        Combines cases 2.a) - 3.b) from CLRS Chapter 18, B-Trees
-        on pages 500-502 by evaluating the number of keys in
-        the current node and its sibling nodes
+        Links newLeaf into the list of leaves right after leaf.
+        The leaf after it is only latched while it's changed
+     */
+    static void linkLeafAfter(Node leaf, Node newLeaf) {
+        newLeaf.prevLeaf = leaf.pageId;
+        newLeaf.nextLeaf = leaf.nextLeaf;
+        if (leaf.nextLeaf != NodeStore.NO_PAGE) {
+            Node next = leaf.pool.getNode(leaf.nextLeaf);
+            leaf.pool.latch(next, true);
+            next.prevLeaf = newLeaf.pageId;
+            Node.writeNodeToDisk(next);
+            leaf.pool.unlatch(next);
+        }
+        leaf.nextLeaf = newLeaf.pageId;
+    }
+
+    /*
+        Combines cases 3.a) - 3.b) from CLRS Chapter 18, B-Trees
+        on pages 502 by evaluating the number of keys in
+        the current node and its sibling nodes. In a concurrent
+        B-tree, the caller holds the latches of parent and this
+        node, and the siblings are latched here
      */
     Node grabElementFromOrMergeWithSiblingNode(Node parent, int index) {
         if (index == 0) {
-            Node rightSibling = Node.readNodeFromDisk(parent.childPointers.get(index+1));
+            Node rightSibling = parent.getLatchedChild(index + 1, true);
 
             // merge this node with right sibling if right
             // sibling has the minimum number of keys
-            if (rightSibling.keys.size() == this.minimumChildCount - 1) {
-                int key = parent.keys.remove(index);
-                return Node.merge(this, key, rightSibling, parent);
-            }
+            if (rightSibling.keyCount == this.minimumChildCount - 1)
+                return Node.merge(this, rightSibling, parent, index);
 
             // otherwise grab an element from the right sibling
             return this.grabElementFromRightSiblingNode(rightSibling, parent, index);
         }
-        else if (index == parent.keys.size()) {
-            Node leftSibling = Node.readNodeFromDisk(parent.childPointers.get(index -1 ));
+        else if (index == parent.keyCount) {
+            Node leftSibling = parent.getLatchedChild(index - 1, true);
 
             // merge this node with left sibling if left
             // sibling has the minimum number of keys
-            if (leftSibling.keys.size() == this.minimumChildCount - 1) {
-                int key = parent.keys.remove(index - 1);
-                return Node.merge(leftSibling, key, this, parent);
-            }
+            if (leftSibling.keyCount == this.minimumChildCount - 1)
+                return Node.merge(leftSibling, this, parent, index - 1);
 
             // otherwise grab an element from the left sibling
             return this.grabElementFromLeftSiblingNode(leftSibling, parent, index);
         }
         else {
-            Node leftSibling = Node.readNodeFromDisk(parent.childPointers.get(index -1 ));
-            Node rightSibling = Node.readNodeFromDisk(parent.childPointers.get(index+1));
+            Node leftSibling = parent.getLatchedChild(index - 1, true);
+            Node rightSibling = parent.getLatchedChild(index + 1, true);
 
             // merge this node with a right sibling if both left
             // and right siblings have the minimum number of keys
-            if (leftSibling.keys.size() == this.minimumChildCount - 1
-                    && rightSibling.keys.size() == this.minimumChildCount - 1) {
-                int key = parent.keys.remove(index);
-                return Node.merge(this, key, rightSibling, parent);
-            }
+            if (leftSibling.keyCount == this.minimumChildCount - 1
+                    && rightSibling.keyCount == this.minimumChildCount - 1)
+                return Node.merge(this, rightSibling, parent, index);
 
             // otherwise grab an element for the appropriate sibling
-            else if (leftSibling.keys.size() == this.minimumChildCount - 1)
+            else if (leftSibling.keyCount == this.minimumChildCount - 1)
                 return this.grabElementFromRightSiblingNode(rightSibling, parent, index);
             else
                 return this.grabElementFromLeftSiblingNode(leftSibling, parent, index);
@@ -252,162 +507,270 @@ class Node {
     }
 
     /*
-        Returns the absolute path to the file that contains this node's data on disk
+        Returns the child at index after latching it (see
+        BufferPool.latch) for reading or, if exclusive is
+        true, for changing it
      */
-    String getPointer() {
-        return this.diskLocation.getAbsolutePath();
+    Node getLatchedChild(int index, boolean exclusive) {
+        Node child = this.pool.getNode(this.childPointers[index]);
+        this.pool.latch(child, exclusive);
+        return child;
     }
 
     /*
-        Reconstructs the node from the data stored on disk
-        at the absolute file path identified by pointer.
+        Returns the id of the page that contains this node's data on disk
      */
-    static Node readNodeFromDisk(String pointer) {
-        try {
-            File diskLocation = new File(pointer);
-            Scanner sc = new Scanner(diskLocation);
+    int getPointer() {
+        return this.pageId;
+    }
 
-            // content of line 0 is minimumChildCount
-            int minimumChildCount = sc.nextInt();
-            sc.nextLine();
+    /*
+        The version of the binary node layout that is
+        written by flushNodeToDisk. It is stored in the
+        first byte of every node's page
+     */
+    static final byte FORMAT_VERSION = 4;
 
-            // content of line 1 is isLeaf
-            boolean isLeaf = sc.nextBoolean();
-            sc.nextLine();
+    /*
+        The number of bytes in a node's header: the format
+        version, the flags (bit 0 is isLeaf), 2 reserved
+        bytes, minimumChildCount, the number of keys, the
+        page ids of the previous and next leaf, the
+        right-link and the high key. The header is followed
+        by the keys, the child pointers and (if the B-tree
+        keeps order statistics) the counts of the children
+     */
+    static final int HEADER_SIZE = 28;
 
-            // contents of line 2 are values of keys as space separated Integers
-            ArrayList<Integer> keys = new ArrayList<Integer>();
-            while (sc.hasNextInt()) {
-                keys.add(sc.nextInt());
-            }
-            sc.nextLine();
-
-            // contents of line 3 are values of pointers as space separated Strings
-            String[] pointers = sc.nextLine().split(" ");
-            ArrayList<String> childPointers = new ArrayList<String>(Arrays.asList(pointers));
-
-            // if is a leaf, then convert "null" to null
-            for (int i = 0; i < childPointers.size(); i++) {
-                if (childPointers.get(i).equals("null"))
-                    childPointers.set(i, null);
-                else
-                    break;
-            }
+    /*
+        The bit of the header's flags that is set for leaf nodes
+     */
+    private static final byte LEAF_FLAG = 1;
 
-            // contents of line 4 is the parent pointer
-            String parentPointer = sc.nextLine();
+    /*
+        Returns the number of bytes that a page must have in
+        order to fit a node with the given minimumChildCount.
+        A node has at most 2*minimumChildCount - 1 keys and
+        2*minimumChildCount child pointers (and, if
+        hasChildCounts, child counts) of 4 bytes each
+     */
+    static int pageSizeFor(int minimumChildCount, boolean hasChildCounts) {
+        long maxNodeSize = HEADER_SIZE + 4L * (2 * minimumChildCount - 1) + 4L * (2 * minimumChildCount);
+        if (hasChildCounts)
+            maxNodeSize += 4L * (2 * minimumChildCount);
 
-            return new Node(diskLocation, isLeaf, minimumChildCount, keys, childPointers, parentPointer);
+        // round up to a multiple of the file system's block size
+        return (int) ((maxNodeSize + 4095) / 4096 * 4096);
+    }
+
+    /*
+        Reconstructs the node from the data stored on disk
+        in the page of pool.store identified by pointer. The
+        page holds the header followed by the keys and then
+        (for internal nodes only) the child pointers, all
+        as packed 4 byte ints
+     */
+    static Node readNodeFromDisk(BufferPool pool, int pointer) {
+        if (pool.instrumentation != null)
+            pool.instrumentation.nodeReadCount.increment();
+
+        try {
+            ByteBuffer page = pool.store.readPage(pointer, pool.pageBuffer());
+            byte version = page.get();
+            if (version != FORMAT_VERSION)
+                throw new IOException("page " + pointer + " has unknown node format version " + version);
+            boolean isLeaf = (page.get() & LEAF_FLAG) != 0;
+            page.getShort();
+            int minimumChildCount = page.getInt();
+            int keyCount = page.getInt();
+
+            Node node = new Node(pool, pointer, isLeaf, minimumChildCount);
+            node.keyCount = keyCount;
+            node.prevLeaf = page.getInt();
+            node.nextLeaf = page.getInt();
+            node.rightLink = page.getInt();
+            node.highKey = page.getInt();
+            page.asIntBuffer().get(node.keys, 0, keyCount);
+
+            // leaves don't store any child pointers
+            if (! isLeaf) {
+                page.position(page.position() + 4 * keyCount);
+                page.asIntBuffer().get(node.childPointers, 0, keyCount + 1);
+                if (node.childCounts != null) {
+                    page.position(page.position() + 4 * (keyCount + 1));
+                    page.asIntBuffer().get(node.childCounts, 0, keyCount + 1);
+                }
+            }
+            return node;
         }
         catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            throw new UncheckedIOException(e);
         }
     }
 
     /*
-        Saves the nodes data to disk. It will either create
-        a new file on disk if the node has not previously
-        been saved or it will update the existing file if
-        the node has already been created.
+        Saves the changes made to the node's data. Depending
+        on the mode of the node's BufferPool, the node is
+        either written right away or marked as dirty and
+        written when it's flushed (see BufferPool.saveNode)
      */
     static void writeNodeToDisk(Node n) {
+        if (n.pool.instrumentation != null)
+            n.pool.instrumentation.nodeWriteCount.increment();
+        n.pool.saveNode(n);
+    }
+
+    /*
+        Writes the nodes data to disk by overwriting the
+        contents of the node's page in its store. A failed
+        write is thrown, so that a checkpoint never goes on
+        to discard the log that the page could be rebuilt from
+     */
+    static void flushNodeToDisk(Node n) {
         try {
-            StringBuilder fileContent = new StringBuilder();
+            n.pool.store.writePage(n.pageId, Node.encodeNode(n, n.pool.pageBuffer()));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // line 0 contains minimumChildCount
-            fileContent.append(n.minimumChildCount + "\n");
+    /*
+        Encodes the node's data into page (which must have room
+        for a whole page) in the layout that readNodeFromDisk
+        reads, and returns page ready to be written
+     */
+    static ByteBuffer encodeNode(Node n, ByteBuffer page) {
+        int childCount = n.isLeaf ? 0 : n.keyCount + 1;
+        page.clear();
+
+        // the header
+        page.put(FORMAT_VERSION);
+        page.put(n.isLeaf ? LEAF_FLAG : 0);
+        page.putShort((short) 0);
+        page.putInt(n.minimumChildCount);
+        page.putInt(n.keyCount);
+        page.putInt(n.prevLeaf);
+        page.putInt(n.nextLeaf);
+        page.putInt(n.rightLink);
+        page.putInt(n.highKey);
+
+        // the keys and then the child pointers
+        page.asIntBuffer().put(n.keys, 0, n.keyCount);
+        page.position(page.position() + 4 * n.keyCount);
+        page.asIntBuffer().put(n.childPointers, 0, childCount);
+        page.position(page.position() + 4 * childCount);
+        if (n.childCounts != null) {
+            page.asIntBuffer().put(n.childCounts, 0, childCount);
+            page.position(page.position() + 4 * childCount);
+        }
 
-            // line 1 contains n.isLeaf
-            fileContent.append(n.isLeaf + "\n");
+        page.flip();
+        return page;
+    }
 
-            // line 2 contains n.keys as a sequence of space separated integers
-            for (Integer i : n.keys)
-                fileContent.append(i + " ");
-            fileContent.append("\n");
+    /*
+        Returns the node's data in the human readable text
+        format that nodes used to be stored in. It is only
+        meant for debugging (see BTree.dumpNodes)
+     */
+    static String dumpNode(Node n) {
+        StringBuilder fileContent = new StringBuilder();
 
-            // line 3 contains n.childPointers as a sequence of space separated strings
-            for (String s : n.childPointers)
-                fileContent.append(s + " ");
-            fileContent.append("\n");
+        // line 0 contains minimumChildCount
+        fileContent.append(n.minimumChildCount + "\n");
 
-            // line 4 contains n.parentPointer as a String
-            fileContent.append(n.parentPointer + "\n");
+        // line 1 contains n.isLeaf
+        fileContent.append(n.isLeaf + "\n");
 
-            // write the fileContents to disk
-            PrintWriter writer = new PrintWriter(n.diskLocation);
-            writer.println(fileContent);
-            writer.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        // line 2 contains n.keys as a sequence of space separated integers
+        for (int i = 0; i < n.keyCount; i++)
+            fileContent.append(n.keys[i] + " ");
+        fileContent.append("\n");
+
+        // line 3 contains n.childPointers as a sequence of space separated page ids
+        for (int i = 0; i <= n.keyCount; i++)
+            fileContent.append((n.isLeaf ? "null" : String.valueOf(n.childPointers[i])) + " ");
+        fileContent.append("\n");
+        return fileContent.toString();
     }
 
     /*
-        Removes the element with the smallest key value
-        form the subtree whose root is this node
+        Returns the element with the smallest key value
+        in the subtree whose root is this node (read latching
+        the nodes below it one at a time)
      */
-    int removeSmallestKeyFromSubtree() {
+    int getSmallestKeyInSubtree() {
         Node node = this;
-        while (! node.isLeaf)
-            node = Node.readNodeFromDisk(node.childPointers.get(0));
-
-        // remove the key and the pointer
-        node.childPointers.remove(0);
-        int smallestKey = node.keys.remove(0);
-
-        // save the changes to the node on the disk
-        Node.writeNodeToDisk(node);
-        return smallestKey;
+        while (! node.isLeaf) {
+            Node child = node.getLatchedChild(0, false);
+            if (node != this)
+                node.pool.unlatch(node);
+            node = child;
+        }
+        int key = node.keys[0];
+        if (node != this)
+            node.pool.unlatch(node);
+        return key;
     }
 
     /*
-        Removes the element with the largest key value
-        from the subtree whose root is this node
+        Returns the element with the largest key value
+        in the subtree whose root is this node (read latching
+        the nodes below it one at a time)
      */
-    int removeLargestKeyFromSubtree() {
+    int getLargestKeyInSubtree() {
         Node node = this;
-        while (! node.isLeaf)
-            node = Node.readNodeFromDisk(node.childPointers.get(0));
-
-        // remove the key and pointer
-        node.childPointers.remove(node.keys.size());
-        int largestKey = node.keys.remove(node.keys.size() - 1);
-
-        // save the changes to the node on the disk
-        Node.writeNodeToDisk(node);
-        return largestKey;
+        while (! node.isLeaf) {
+            Node child = node.getLatchedChild(node.keyCount, false);
+            if (node != this)
+                node.pool.unlatch(node);
+            node = child;
+        }
+        int key = node.keys[node.keyCount - 1];
+        if (node != this)
+            node.pool.unlatch(node);
+        return key;
     }
 
     /*
-        Deletes all of the Data (from disk and from main
-        memory) for each of the nodes in the subtree whose
-        root is node.
+        Deletes every node of the B-tree whose nodes are cached
+        in pool, by dropping them all from the cache and freeing
+        every page of its store at once. None of the nodes are
+        read, so it takes the same time however big the B-tree is
      */
-    static void deleteSubtree(Node node) {
-        // recursively delete all of the data from children first
-        for (String childPointer : node.childPointers) {
-            if (childPointer != null) {
-                Node child = Node.readNodeFromDisk(childPointer);
-                Node.deleteSubtree(child);
-            }
+    static void deleteAllNodes(BufferPool pool) {
+        try {
+            pool.dropAllNodes();
+            pool.store.freeAllPages();
         }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        // clear this node's data
-        node.keys.clear();
-        node.parentPointer = null;
-        node.childPointers.clear();
-        File diskContent = new File(node.getPointer());
-        diskContent.delete();
+    /*
+        Returns the page that contains the node's data on
+        disk to its store so that the page can be reused
+        by a node that is allocated later, and drops the
+        node from the cache
+     */
+    static void freeNodeOnDisk(Node n) {
+        try {
+            n.pool.dropNode(n);
+            n.pool.store.freePage(n.pageId);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("|");
-        for (Integer k : this.keys) {
-            sb.append(k).append(",");
+        for (int i = 0; i < this.keyCount; i++) {
+            sb.append(this.keys[i]).append(",");
         }
         sb.append("|");
         return sb.toString();
@@ -417,9 +780,8 @@ class Node {
     public boolean equals(Object obj) {
         if (obj instanceof Node) {
             Node that = (Node) obj;
-            return this.diskLocation.equals(that.diskLocation);
+            return this.pool == that.pool && this.pageId == that.pageId;
         }
         return false;
     }
 }
-
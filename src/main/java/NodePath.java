@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+/**
+ * A stack that holds the path from the root of a B-tree
+ * down to one of its nodes. Every entry is a node on the
+ * path together with an index into that node: the index of
+ * the child that the path continues into, or the index of
+ * a key (see the users of the path for which one).
+ * This replaces the parent pointers that nodes used to store.
+ */
+class NodePath {
+    private Node[] nodes = new Node[8];
+    private int[] indices = new int[8];
+
+    /*
+        The number of entries on the path
+     */
+    private int depth = 0;
+
+    /*
+        Pushes node and an index into node onto the end of the path
+     */
+    void push(Node node, int index) {
+        if (this.depth == this.nodes.length) {
+            this.nodes = Arrays.copyOf(this.nodes, 2 * this.depth);
+            this.indices = Arrays.copyOf(this.indices, 2 * this.depth);
+        }
+        this.nodes[this.depth] = node;
+        this.indices[this.depth] = index;
+        this.depth++;
+    }
+
+    /*
+        Removes the last entry of the path and returns its node
+     */
+    Node pop() {
+        Node node = this.nodes[--this.depth];
+        this.nodes[this.depth] = null;
+        return node;
+    }
+
+    /*
+        Returns the node of the last entry of the path
+     */
+    Node peekNode() {
+        return this.nodes[this.depth - 1];
+    }
+
+    /*
+        Returns the index of the last entry of the path
+     */
+    int peekIndex() {
+        return this.indices[this.depth - 1];
+    }
+
+    /*
+        Replaces the index of the last entry of the path
+     */
+    void setIndex(int index) {
+        this.indices[this.depth - 1] = index;
+    }
+
+    /*
+        Returns the node of the entry at level of the path (the root is level 0)
+     */
+    Node getNode(int level) {
+        return this.nodes[level];
+    }
+
+    /*
+        Returns the index of the entry at level of the path (the root is level 0)
+     */
+    int getIndex(int level) {
+        return this.indices[level];
+    }
+
+    int size() {
+        return this.depth;
+    }
+
+    boolean isEmpty() {
+        return this.depth == 0;
+    }
+
+    /*
+        Removes every entry from the path
+     */
+    void clear() {
+        while (this.depth > 0)
+            this.nodes[--this.depth] = null;
+    }
+}
@@ -0,0 +1,641 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single paged data file that holds every node of one
+ * B-tree. Nodes are addressed by their page id, which is
+ * the index of the fixed size page that contains them.
+ *
+ * The first page is the superblock, which records how the
+ * B-tree is laid out and, as of the last checkpoint (see
+ * WriteAheadLog), where its root is, how many keys it has
+ * and which pages are free. That is all there is to read
+ * before the B-tree can be used again.
+ *
+ * In memory-mapped mode (see mapMemory), the pages are read
+ * and written through mappings of the data file instead of
+ * system calls, and nodes are decoded straight from the
+ * mapped memory without being copied into a buffer first.
+ */
+class NodeStore {
+    /*
+        Page 0 of the data file is reserved for the
+        superblock, so no node ever has a page id of 0
+     */
+    static final int SUPERBLOCK_PAGE_ID = 0;
+
+    /*
+        Marks the end of the list of free pages
+     */
+    static final int NO_PAGE = -1;
+
+    /*
+        Identifies a file as a B-tree data file
+     */
+    private static final int MAGIC = 0x42547265;
+
+    /*
+        The version of the layout of the superblock
+     */
+    private static final int SUPERBLOCK_VERSION = 2;
+
+    /*
+        The number of bytes in the superblock: the magic
+        number, the superblock's version, the page size, the
+        node format version (see Node.FORMAT_VERSION), whether
+        the B-tree is a B+tree, keeps child counts and is a
+        B-link tree (1 if it is), the minimum number of
+        children, the root's page id, the number of keys, the
+        number of pages, the first free page, the number of
+        free pages and the first and last (exclusive) page of
+        the range of free pages
+     */
+    private static final int SUPERBLOCK_SIZE = 52;
+
+    /*
+        The number of bytes of the data file that each mapping
+        covers in memory-mapped mode once the file is large
+        (rounded down to whole pages). Up to the first
+        MAX_GROWING_SEGMENT_COUNT mappings are smaller: each of
+        them covers half as many pages as the one after it, so
+        that mapping the pages of a small B-tree doesn't grow
+        its file much beyond them
+     */
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_GROWING_SEGMENT_COUNT = 10;
+
+    /*
+        The data file that contains all of the pages
+     */
+    final File file;
+
+    /*
+        True if the data file is deleted when the store is closed
+     */
+    private final boolean isTemporary;
+
+    /*
+        The channel that all of the pages are read
+        from and written to
+     */
+    private final FileChannel channel;
+
+    /*
+        The number of bytes in each page. Every node
+        of the B-tree must fit inside a single page
+     */
+    final int pageSize;
+
+    /*
+        True if the file holds a B+tree, whose keys are all
+        stored in linked leaves (see BTreeOptions.bPlusTree)
+     */
+    final boolean isBPlusTree;
+
+    /*
+        True if the internal nodes store the number of keys
+        in each of their children's subtrees (see
+        BTreeOptions.orderStatistics)
+     */
+    final boolean hasChildCounts;
+
+    /*
+        True if the file holds a B-link tree, whose nodes also
+        store a high key and a link to their right sibling
+        (see BTreeOptions.bLinkTree)
+     */
+    final boolean isBLinkTree;
+
+    /*
+        The minimum number of children of the B-tree's
+        internal nodes (see BTreeOptions.minNumberOfChildren)
+     */
+    final int minNumberOfChildren;
+
+    /*
+        The page id of the root and the number of keys of the
+        B-tree when the superblock was last written
+     */
+    private int rootPageId = NO_PAGE;
+    private int elementCount = 0;
+
+    /*
+        The number of pages in the data file (including
+        the header page). New pages are appended to the
+        end of the file when there are no free pages
+     */
+    private int pageCount;
+
+    /*
+        The id of the first page in the list of free
+        pages. Each free page stores the id of the next
+        free page in its first 4 bytes, so freeing and
+        reusing pages never changes the size of the file
+     */
+    private int freeListHead = NO_PAGE;
+
+    /*
+        The number of pages in the list of free pages
+     */
+    private int freePageCount = 0;
+
+    /*
+        The pages from freeRangeStart up to (but not including)
+        freeRangeEnd are free too, without being linked into the
+        list of free pages (see appendPage). They are reused
+        after the pages in the list of free pages
+     */
+    private int freeRangeStart = 1;
+    private int freeRangeEnd = 1;
+
+    /*
+        For a store whose changes are logged (see WriteAheadLog),
+        the links that pages freed since the last checkpoint
+        will store, keyed by their page id. They are only
+        written by the next checkpoint, because until then the
+        pages have to keep the contents that the checkpoint
+        before it left them with. Null for other stores
+     */
+    private final LinkedHashMap<Integer, Integer> unwrittenLinks;
+
+    /*
+        The number of pages at the last checkpoint of a store
+        whose changes are logged. Pages appended after it
+        aren't part of the checkpointed B-tree, so they can be
+        written at any time (see canOverwrite)
+     */
+    private volatile int checkpointedPageCount = 0;
+
+    /*
+        In memory-mapped mode, the mappings of consecutive
+        segments of the data file, the first of which holds
+        pagesInFirstSegment pages and the first
+        growingSegmentCount of which grow (see SEGMENT_SIZE).
+        Segments are mapped as pages beyond the last one are
+        used, which grows the file. Null unless the store is
+        in memory-mapped mode
+     */
+    private ArrayList<MappedByteBuffer> segments = null;
+    private int pagesInFirstSegment;
+    private int growingSegmentCount;
+
+    /*
+        The number of times that the data file was synced
+        and the total time that took (see SyncStats)
+     */
+    private long syncCount = 0;
+    private long syncNanos = 0;
+
+    /*
+        A private constructor for the NodeStore class
+     */
+    private NodeStore(File file, boolean isTemporary, FileChannel channel, int pageSize, boolean isBPlusTree,
+                      boolean hasChildCounts, boolean isBLinkTree, int minNumberOfChildren) {
+        this.file = file;
+        this.isTemporary = isTemporary;
+        this.unwrittenLinks = isTemporary ? null : new LinkedHashMap<Integer, Integer>();
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.isBPlusTree = isBPlusTree;
+        this.hasChildCounts = hasChildCounts;
+        this.isBLinkTree = isBLinkTree;
+        this.minNumberOfChildren = minNumberOfChildren;
+        this.pageCount = 1;
+    }
+
+    /*
+        A package private factory method for the NodeStore
+        class. Creates a new, empty data file in the temporary
+        directory that is deleted when the JVM exits
+     */
+    static NodeStore createTemporaryStore(int pageSize, boolean isBPlusTree, boolean hasChildCounts,
+                                          boolean isBLinkTree, int minNumberOfChildren) throws IOException {
+        File file = File.createTempFile("btree", ".db");
+        file.deleteOnExit();
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        NodeStore store = new NodeStore(file, true, channel, pageSize, isBPlusTree, hasChildCounts, isBLinkTree,
+                minNumberOfChildren);
+        store.writePage(SUPERBLOCK_PAGE_ID, store.encodeSuperblock(NO_PAGE, 0));
+        return store;
+    }
+
+    /*
+        Creates a new, empty data file at file (replacing the
+        file if it already exists) whose changes are logged
+        by a WriteAheadLog, so that it outlives the JVM
+     */
+    static NodeStore createStore(File file, int pageSize, boolean isBPlusTree, boolean hasChildCounts,
+                                 boolean isBLinkTree, int minNumberOfChildren) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        NodeStore store = new NodeStore(file, false, randomAccessFile.getChannel(), pageSize, isBPlusTree,
+                hasChildCounts, isBLinkTree, minNumberOfChildren);
+        store.writePage(SUPERBLOCK_PAGE_ID, store.encodeSuperblock(NO_PAGE, 0));
+        return store;
+    }
+
+    /*
+        Opens the existing data file at file, whose changes
+        are logged, by reading its superblock
+     */
+    static NodeStore openStore(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer superblock = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+            while (superblock.hasRemaining() && channel.read(superblock, superblock.position()) >= 0)
+                ;
+            superblock.flip();
+            if (superblock.remaining() < SUPERBLOCK_SIZE || superblock.getInt() != MAGIC)
+                throw new IOException(file + " is not a B-tree data file");
+            int version = superblock.getInt();
+            if (version != SUPERBLOCK_VERSION)
+                throw new IOException(file + " has unknown superblock version " + version);
+            int pageSize = superblock.getInt();
+            byte nodeFormatVersion = superblock.get();
+            if (nodeFormatVersion != Node.FORMAT_VERSION)
+                throw new IOException(file + " has unknown node format version " + nodeFormatVersion);
+            boolean isBPlusTree = superblock.get() == 1;
+            boolean hasChildCounts = superblock.get() == 1;
+            boolean isBLinkTree = superblock.get() == 1;
+            NodeStore store = new NodeStore(file, false, channel, pageSize, isBPlusTree, hasChildCounts, isBLinkTree,
+                    superblock.getInt());
+            store.readSuperblock();
+            return store;
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*
+        Switches the store to memory-mapped mode
+     */
+    synchronized void mapMemory() {
+        this.segments = new ArrayList<MappedByteBuffer>();
+        int pagesPerSegment = (int) Math.max(1, SEGMENT_SIZE / this.pageSize);
+        this.growingSegmentCount = Math.min(MAX_GROWING_SEGMENT_COUNT, 31 - Integer.numberOfLeadingZeros(pagesPerSegment));
+        this.pagesInFirstSegment = pagesPerSegment >> this.growingSegmentCount;
+    }
+
+    /*
+        Returns the id of a page that a new node can be
+        written to. Pages from the list of free pages are
+        reused before the data file is made any larger
+     */
+    synchronized int allocatePage() throws IOException {
+        if (this.freeListHead == NO_PAGE) {
+            if (this.freeRangeStart < this.freeRangeEnd)
+                return this.freeRangeStart++;
+            return this.pageCount++;
+        }
+
+        // pop the first page off of the list of free pages
+        int pageId = this.freeListHead;
+        Integer unwrittenLink = this.unwrittenLinks == null ? null : this.unwrittenLinks.remove(pageId);
+        if (unwrittenLink != null)
+            this.freeListHead = unwrittenLink;
+        else {
+            ByteBuffer link = ByteBuffer.allocate(4);
+            this.readFully(link, this.offsetOf(pageId));
+            this.freeListHead = link.getInt(0);
+        }
+        this.freePageCount--;
+        return pageId;
+    }
+
+    /*
+        Returns the id of a new page at the end of the data
+        file, without reusing any of the free pages. Once a
+        logged store has freed all of its pages (see
+        freeAllPages), the end of the file is below the pages
+        of the last checkpoint, which are skipped, and become
+        the range of free pages instead
+     */
+    synchronized int appendPage() {
+        if (this.pageCount < this.checkpointedPageCount) {
+            this.freeRangeStart = this.pageCount;
+            this.freeRangeEnd = this.checkpointedPageCount;
+            this.pageCount = this.checkpointedPageCount;
+        }
+        return this.pageCount++;
+    }
+
+    /*
+        Returns the page with id pageId to the list of free
+        pages so that it can be reused by a later allocation
+     */
+    synchronized void freePage(int pageId) throws IOException {
+        if (this.unwrittenLinks != null)
+            this.unwrittenLinks.put(pageId, this.freeListHead);
+        else {
+            ByteBuffer link = ByteBuffer.allocate(4);
+            link.putInt(0, this.freeListHead);
+            this.writeFully(link, this.offsetOf(pageId));
+        }
+        this.freeListHead = pageId;
+        this.freePageCount++;
+    }
+
+    /*
+        Frees every page except for the superblock at once,
+        without touching any of them, by making the data file
+        hold nothing but the superblock again. The file of a
+        temporary store is truncated right away, and the file
+        of a store whose changes are logged by the next
+        checkpoint, since until then it still holds the B-tree
+        of the last one. In memory-mapped mode the file is only
+        truncated when the store is closed (see close), and
+        until then its pages are reused as the B-tree grows again
+     */
+    synchronized void freeAllPages() throws IOException {
+        this.pageCount = 1;
+        this.freeListHead = NO_PAGE;
+        this.freePageCount = 0;
+        this.freeRangeStart = this.freeRangeEnd = 1;
+        if (this.unwrittenLinks != null)
+            this.unwrittenLinks.clear();
+        else if (this.segments == null)
+            this.channel.truncate(this.offsetOf(this.pageCount));
+    }
+
+    /*
+        True if the store's changes are logged by a WriteAheadLog
+     */
+    boolean isLogged() {
+        return this.unwrittenLinks != null;
+    }
+
+    /*
+        Returns true if the page with id pageId can be written
+        before the next checkpoint. That is always the case,
+        unless the store is logged and the page was already
+        part of the B-tree at the last checkpoint
+     */
+    boolean canOverwrite(int pageId) {
+        return pageId >= this.checkpointedPageCount;
+    }
+
+    /*
+        Returns a copy of the links of the pages that were
+        freed since the last checkpoint (see unwrittenLinks)
+     */
+    synchronized HashMap<Integer, Integer> getUnwrittenLinks() {
+        return new HashMap<Integer, Integer>(this.unwrittenLinks);
+    }
+
+    /*
+        Returns the superblock of a B-tree whose root has the
+        page id rootPageId and that has elementCount keys,
+        ready to be written to the superblock's page
+     */
+    synchronized ByteBuffer encodeSuperblock(int rootPageId, int elementCount) {
+        ByteBuffer superblock = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+        superblock.putInt(MAGIC).putInt(SUPERBLOCK_VERSION).putInt(this.pageSize).put(Node.FORMAT_VERSION);
+        superblock.put((byte) (this.isBPlusTree ? 1 : 0)).put((byte) (this.hasChildCounts ? 1 : 0));
+        superblock.put((byte) (this.isBLinkTree ? 1 : 0)).putInt(this.minNumberOfChildren);
+        superblock.putInt(rootPageId).putInt(elementCount);
+        superblock.putInt(this.pageCount).putInt(this.freeListHead).putInt(this.freePageCount);
+        superblock.putInt(this.freeRangeStart).putInt(this.freeRangeEnd);
+        superblock.flip();
+        return superblock;
+    }
+
+    /*
+        Reads the root, the number of keys and the state of
+        the pages from the superblock (which recovery may have
+        just written again, see WriteAheadLog.recover)
+     */
+    synchronized void readSuperblock() throws IOException {
+        ByteBuffer superblock = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+        this.readFully(superblock, this.offsetOf(SUPERBLOCK_PAGE_ID));
+        superblock.position(20);
+        this.rootPageId = superblock.getInt();
+        this.elementCount = superblock.getInt();
+        this.pageCount = superblock.getInt();
+        this.freeListHead = superblock.getInt();
+        this.freePageCount = superblock.getInt();
+        this.freeRangeStart = superblock.getInt();
+        this.freeRangeEnd = superblock.getInt();
+        this.checkpointedPageCount = this.pageCount;
+        this.unwrittenLinks.clear();
+    }
+
+    /*
+        The last steps of a checkpoint, once the dirty nodes
+        have been written: writes the links of the pages that
+        were freed since the last checkpoint and the superblock
+        of a B-tree with the given root and number of keys,
+        and if sync is true, forces every write to the disk
+     */
+    synchronized void checkpoint(int rootPageId, int elementCount, boolean sync) throws IOException {
+        for (Map.Entry<Integer, Integer> link : this.unwrittenLinks.entrySet()) {
+            ByteBuffer page = ByteBuffer.allocate(4);
+            page.putInt(0, link.getValue());
+            this.writePage(link.getKey(), page);
+        }
+        this.unwrittenLinks.clear();
+        this.writePage(SUPERBLOCK_PAGE_ID, this.encodeSuperblock(rootPageId, elementCount));
+
+        // the pages past the end (see freeAllPages) are only cut off once the superblock no longer uses them
+        boolean truncate = this.segments == null && this.channel.size() > this.offsetOf(this.pageCount);
+        if (sync || truncate)
+            this.force();
+        if (truncate)
+            this.channel.truncate(this.offsetOf(this.pageCount));
+        this.rootPageId = rootPageId;
+        this.elementCount = elementCount;
+        this.checkpointedPageCount = this.pageCount;
+    }
+
+    /*
+        The root's page id and the number of keys that
+        the superblock recorded (see readSuperblock)
+     */
+    synchronized int getRootPageId() {
+        return this.rootPageId;
+    }
+
+    synchronized int getElementCount() {
+        return this.elementCount;
+    }
+
+    /*
+        Reads the entire contents of the page with id pageId
+        into page (which must have room for pageSize bytes)
+        and returns it ready to be read from
+     */
+    ByteBuffer readPage(int pageId, ByteBuffer page) throws IOException {
+        // in memory-mapped mode the page is read where it is mapped
+        if (this.segments != null) {
+            ByteBuffer mappedPage = this.segmentFor(pageId).duplicate();
+            int offset = this.offsetInSegment(pageId, this.offsetOf(pageId));
+            mappedPage.limit(offset + this.pageSize).position(offset);
+            return mappedPage.slice();
+        }
+
+        page.clear();
+        page.limit(this.pageSize);
+        this.readFully(page, this.offsetOf(pageId));
+        page.flip();
+        return page;
+    }
+
+    /*
+        Writes the remaining bytes of page to the beginning
+        of the page with id pageId. The page can not contain
+        more than pageSize bytes
+     */
+    void writePage(int pageId, ByteBuffer page) throws IOException {
+        if (page.remaining() > this.pageSize)
+            throw new IllegalArgumentException("page " + pageId + " does not fit in " + this.pageSize + " bytes");
+        this.writeFully(page, this.offsetOf(pageId));
+    }
+
+    /*
+        Returns the number of pages that are currently used by nodes
+     */
+    synchronized int getLivePageCount() {
+        return this.pageCount - 1 - this.freePageCount - (this.freeRangeEnd - this.freeRangeStart);
+    }
+
+    /*
+        Forces every write to the data file onto the disk
+     */
+    synchronized void force() throws IOException {
+        long start = System.nanoTime();
+        if (this.segments != null) {
+            for (MappedByteBuffer segment : this.segments)
+                segment.force();
+        }
+        this.channel.force(false);
+        this.syncCount++;
+        this.syncNanos += System.nanoTime() - start;
+    }
+
+    synchronized long getSyncCount() {
+        return this.syncCount;
+    }
+
+    synchronized long getSyncNanos() {
+        return this.syncNanos;
+    }
+
+    /*
+        Closes the data file, and deletes it from disk if it's
+        temporary. In memory-mapped mode, the mappings of the
+        segments can reach past the last page, so the file is
+        cut back to the pages first (and to the pages of the
+        last checkpoint, which a failed checkpoint of a logged
+        store leaves for recovery). Not every platform can
+        truncate a file that is still mapped (the mappings are
+        only released once they are garbage collected), in
+        which case the file keeps its size
+     */
+    void close() throws IOException {
+        if (this.segments != null && ! this.isTemporary) {
+            synchronized (this) {
+                this.segments = null;
+                long size = this.offsetOf(Math.max(this.pageCount, this.checkpointedPageCount));
+                try {
+                    if (this.channel.size() > size)
+                        this.channel.truncate(size);
+                }
+                catch (IOException e) {
+                    // the pages are all there, the file is just larger than they need
+                }
+            }
+        }
+        this.channel.close();
+        if (this.isTemporary)
+            this.file.delete();
+    }
+
+    private long offsetOf(int pageId) {
+        return (long) pageId * this.pageSize;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        if (this.segments != null) {
+            int pageId = (int) (position / this.pageSize);
+            ByteBuffer source = this.segmentFor(pageId).duplicate();
+            int offset = this.offsetInSegment(pageId, position);
+            source.limit(offset + buffer.remaining()).position(offset);
+            buffer.put(source);
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+
+            // reading past the end of the file leaves the rest of the buffer untouched
+            if (read < 0)
+                break;
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        if (this.segments != null) {
+            int pageId = (int) (position / this.pageSize);
+            ByteBuffer target = this.segmentFor(pageId).duplicate();
+            target.position(this.offsetInSegment(pageId, position));
+            target.put(buffer);
+            return;
+        }
+
+        while (buffer.hasRemaining())
+            position += this.channel.write(buffer, position);
+    }
+
+    /*
+        Returns the mapping of the segment that contains the
+        page with id pageId, mapping the segments up to it
+        first if they haven't been mapped yet
+     */
+    private synchronized MappedByteBuffer segmentFor(int pageId) throws IOException {
+        int index = this.segmentIndexOf(pageId);
+        while (this.segments.size() <= index) {
+            int segment = this.segments.size();
+            this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE, this.offsetOf(this.firstPageOf(segment)),
+                    this.offsetOf(this.firstPageOf(segment + 1) - this.firstPageOf(segment))));
+        }
+        return this.segments.get(index);
+    }
+
+    /*
+        Returns the index of the segment that contains the page
+        with id pageId. The growing segments end at the page
+        pagesInFirstSegment * (2^growingSegmentCount - 1),
+        and the rest are pagesInFirstSegment * 2^growingSegmentCount
+        pages each
+     */
+    private int segmentIndexOf(int pageId) {
+        int growingSegmentsEnd = this.firstPageOf(this.growingSegmentCount);
+        if (pageId < growingSegmentsEnd)
+            return 31 - Integer.numberOfLeadingZeros(pageId / this.pagesInFirstSegment + 1);
+        return this.growingSegmentCount + (pageId - growingSegmentsEnd) / (this.pagesInFirstSegment << this.growingSegmentCount);
+    }
+
+    /*
+        Returns the page id of the first page of the segment with the given index
+     */
+    private int firstPageOf(int index) {
+        if (index <= this.growingSegmentCount)
+            return this.pagesInFirstSegment * ((1 << index) - 1);
+        return this.firstPageOf(this.growingSegmentCount)
+                + (index - this.growingSegmentCount) * (this.pagesInFirstSegment << this.growingSegmentCount);
+    }
+
+    private int offsetInSegment(int pageId, long position) {
+        return (int) (position - this.offsetOf(this.firstPageOf(this.segmentIndexOf(pageId))));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * A snapshot of how often a B-tree has synced its
+ * write-ahead log and its data file to the disk, and how
+ * long it spent waiting for the syncs (see Durability)
+ */
+public class SyncStats {
+    private final long logSyncCount;
+    private final long logSyncNanos;
+    private final long logSyncFailureCount;
+    private final long dataSyncCount;
+    private final long dataSyncNanos;
+
+    SyncStats(long logSyncCount, long logSyncNanos, long logSyncFailureCount, long dataSyncCount, long dataSyncNanos) {
+        this.logSyncCount = logSyncCount;
+        this.logSyncNanos = logSyncNanos;
+        this.logSyncFailureCount = logSyncFailureCount;
+        this.dataSyncCount = dataSyncCount;
+        this.dataSyncNanos = dataSyncNanos;
+    }
+
+    /*
+        The number of times that the write-ahead log was synced
+     */
+    public long getLogSyncCount() {
+        return this.logSyncCount;
+    }
+
+    /*
+        The total time that the syncs of the log took, in nanoseconds
+     */
+    public long getLogSyncNanos() {
+        return this.logSyncNanos;
+    }
+
+    /*
+        The number of times that the periodic sync of the log
+        failed (see Durability.PERIODIC). After a failure,
+        every add and remove throws until the B-tree is
+        opened again, so this is at most 1
+     */
+    public long getLogSyncFailureCount() {
+        return this.logSyncFailureCount;
+    }
+
+    /*
+        The number of times that the data file was synced
+     */
+    public long getDataSyncCount() {
+        return this.dataSyncCount;
+    }
+
+    /*
+        The total time that the syncs of the data file took, in nanoseconds
+     */
+    public long getDataSyncNanos() {
+        return this.dataSyncNanos;
+    }
+
+    /*
+        The number of syncs of either file
+     */
+    public long getSyncCount() {
+        return this.logSyncCount + this.dataSyncCount;
+    }
+
+    /*
+        The total time that the syncs of either file took, in nanoseconds
+     */
+    public long getSyncNanos() {
+        return this.logSyncNanos + this.dataSyncNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStats{logSyncs=" + this.logSyncCount + ", logSyncMillis=" + this.logSyncNanos / 1000000
+                + ", logSyncFailures=" + this.logSyncFailureCount + ", dataSyncs=" + this.dataSyncCount + ", dataSyncMillis=" + this.dataSyncNanos / 1000000 + "}";
+    }
+}
@@ -0,0 +1,631 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log of a B-tree that is stored in a file
+ * (see BTree.create). Every add and remove appends a
+ * small logical record (the kind of change and its key) to
+ * the log. With the ON_COMMIT durability, add and remove only
+ * return once the record is on disk, and the records of all
+ * of the threads that commit at the same time are written
+ * with a single fsync (group commit). The other durability
+ * policies sync periodically or not at all (see Durability).
+ *
+ * Changed nodes stay in the cache until the next checkpoint,
+ * which first logs the new contents of every changed page
+ * (including the superblock, see NodeStore), then overwrites
+ * the pages in the data file, and then starts a new, empty
+ * log. So the data file is never left half way between two
+ * checkpoints: recovery writes the pages of a checkpoint that
+ * was completely logged again (in case the crash interrupted
+ * it) and then replays the changes that were logged after
+ * the checkpoint that the superblock records.
+ *
+ * Each record is the length of its data, its type, its data
+ * and the CRC32 of its type and data, so a record that was
+ * only partly written when the process crashed is ignored.
+ */
+class WriteAheadLog {
+    /*
+        The types of records. ADD and REMOVE hold a key and
+        CLEAR holds nothing
+     */
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+
+    /*
+        The new contents of a page (after its page id), which
+        a checkpoint logs before it overwrites the page
+     */
+    static final byte PAGE = 4;
+
+    /*
+        Follows the PAGE records of a checkpoint once all
+        of them have been logged. It holds nothing
+     */
+    static final byte CHECKPOINT = 5;
+
+    /*
+        A change that was logged after the last checkpoint
+        and has to be replayed by recovery
+     */
+    static class Change {
+        final byte type;
+        final int key;
+
+        private Change(byte type, int key) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+    /*
+        Reads the complete records of a log file one after the
+        other, through a buffer of a fixed size that fits the
+        largest record (a PAGE record), so that recovery never
+        holds more than that much of the log in memory
+     */
+    private static class RecordReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+
+        /*
+            The position in the log file of the first byte of buffer
+         */
+        private long bufferStart = HEADER_SIZE;
+
+        /*
+            The type and the data of the record that was read last.
+            The data is only valid until the next record is read
+         */
+        byte type;
+        ByteBuffer data;
+
+        RecordReader(FileChannel channel, int maxDataLength) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, maxDataLength + 9));
+            this.buffer.limit(0);
+        }
+
+        /*
+            Reads the next record, or returns false if the rest of
+            the log doesn't start with a complete, intact record
+         */
+        boolean next() throws IOException {
+            if (! this.fill(9))
+                return false;
+            int length = this.buffer.getInt(this.buffer.position());
+            if (length < 0 || length > this.buffer.capacity() - 9 || ! this.fill(length + 9))
+                return false;
+
+            int start = this.buffer.position();
+            this.crc.reset();
+            this.crc.update(this.buffer.array(), start + 4, length + 1);
+            if (this.buffer.getInt(start + 5 + length) != (int) this.crc.getValue())
+                return false;
+            this.type = this.buffer.get(start + 4);
+            this.data = this.buffer.duplicate();
+            this.data.limit(start + 5 + length).position(start + 5);
+            this.buffer.position(start + 9 + length);
+            return true;
+        }
+
+        /*
+            Returns the position in the log file of the end of the last record that was read
+         */
+        long end() {
+            return this.bufferStart + this.buffer.position();
+        }
+
+        /*
+            Reads more of the log file until buffer has at least count
+            bytes left, or returns false if the file ends before that
+         */
+        private boolean fill(int count) throws IOException {
+            if (this.buffer.remaining() >= count)
+                return true;
+
+            this.bufferStart += this.buffer.position();
+            this.buffer.compact();
+            try {
+                while (this.buffer.position() < count) {
+                    if (this.channel.read(this.buffer, this.bufferStart + this.buffer.position()) < 0)
+                        return false;
+                }
+                return true;
+            }
+            finally {
+                this.buffer.flip();
+            }
+        }
+    }
+
+    /*
+        Identifies a file as a B-tree write-ahead log, and
+        the version of the record layout
+     */
+    private static final int MAGIC = 0x4257414c;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    /*
+        The smallest buffer that recovery reads the log through
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /*
+        The size that the log can grow to before the
+        B-tree checkpoints (see isFull)
+     */
+    private static final long CHECKPOINT_SIZE = 64L * 1024 * 1024;
+
+    /*
+        The number of locks that the keys are spread over (see lockFor)
+     */
+    private static final int KEY_LOCK_COUNT = 64;
+
+    /*
+        The log file, which is next to the data file
+     */
+    final File file;
+
+    private FileChannel channel;
+
+    /*
+        The number of bytes in the log file, including the
+        ones that are being written by a commit
+     */
+    private long fileSize;
+
+    /*
+        The records that were appended but haven't been
+        written yet, and an empty buffer that takes their
+        place while they are written (see commit)
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private ByteBuffer spareBuffer = ByteBuffer.allocate(4096);
+
+    /*
+        The log sequence numbers (LSN) of the end of the last
+        record that was appended, of the last record that was
+        written to the log file and of the last record that is
+        synced to the disk. An LSN counts the bytes of every
+        record that was ever appended, so it keeps growing
+        after a checkpoint starts a new log
+     */
+    private long appendedLsn = 0;
+    private long writtenLsn = 0;
+    private long durableLsn = 0;
+
+    /*
+        True while a committing thread writes (and maybe syncs)
+        the appended records without holding the log's lock
+     */
+    private boolean syncing = false;
+
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCK_COUNT];
+
+    /*
+        When the records are synced
+     */
+    final Durability durability;
+
+    /*
+        The periodic sync of the PERIODIC durability, or null
+     */
+    private ScheduledFuture<?> syncTask;
+
+    /*
+        The number of times that the log was synced and
+        the total time that took (see SyncStats)
+     */
+    private long syncCount = 0;
+    private long syncNanos = 0;
+
+    /*
+        The exception that writing or syncing the log failed
+        with, or null. Once that has failed, the records that it
+        was writing may never reach the disk (the operating
+        system can drop them after reporting the failure, and a
+        failed write leaves a gap in the log), so every later
+        commit fails with it, and the B-tree has to be opened
+        again to recover what did
+     */
+    private IOException failure;
+
+    /*
+        The number of times that the periodic sync of the
+        PERIODIC durability failed (see SyncStats)
+     */
+    private long syncFailureCount = 0;
+
+    private WriteAheadLog(File file, Durability durability, long syncIntervalMillis) {
+        this.file = file;
+        this.durability = durability;
+        for (int i = 0; i < KEY_LOCK_COUNT; i++)
+            this.keyLocks[i] = new ReentrantLock();
+        if (durability == Durability.PERIODIC)
+            this.syncTask = WriteAheadLog.schedulePeriodicSync(this, syncIntervalMillis);
+    }
+
+    /*
+        Only holds on to the log weakly, so that the log of a
+        B-tree that is no longer used can be garbage collected
+        (which also cancels its periodic sync)
+     */
+    private static ScheduledFuture<?> schedulePeriodicSync(WriteAheadLog log, long syncIntervalMillis) {
+        final WeakReference<WriteAheadLog> logReference = new WeakReference<WriteAheadLog>(log);
+        final ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+        task[0] = BufferPool.FLUSHER.scheduleWithFixedDelay(() -> {
+            WriteAheadLog l = logReference.get();
+            if (l == null)
+                task[0].cancel(false);
+            else
+                l.syncPeriodically();
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        return task[0];
+    }
+
+    /*
+        Returns the log file of the data file dataFile
+     */
+    static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".wal");
+    }
+
+    /*
+        Creates a new, empty log at file (replacing the file
+        if it already exists) for a data file whose superblock
+        is already on disk
+     */
+    static WriteAheadLog create(File file, Durability durability, long syncIntervalMillis) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(file, durability, syncIntervalMillis);
+        log.restart();
+        return log;
+    }
+
+    /*
+        Opens the existing log at file. It has to be
+        recovered before anything is appended to it
+     */
+    static WriteAheadLog open(File file, Durability durability, long syncIntervalMillis) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(file, durability, syncIntervalMillis);
+        log.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return log;
+    }
+
+    /*
+        Brings the data file of store back to the state of the
+        last checkpoint: if the log holds a whole checkpoint,
+        its pages are written again and the store reads the
+        superblock that they include. Then the changes that were
+        logged after it are added to changes. Returns true if
+        the store has to be checkpointed because of either.
+        The records after the first one that is incomplete or
+        corrupt are ignored, since they can't have been committed
+     */
+    boolean recover(NodeStore store, List<Change> changes) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && this.channel.read(header, header.position()) >= 0)
+            ;
+        if (header.hasRemaining() || header.getInt(0) != MAGIC)
+            throw new IOException(this.file + " is not a B-tree write-ahead log");
+        int version = header.getInt(4);
+        if (version != VERSION)
+            throw new IOException(this.file + " has unknown version " + version);
+
+        // find the number of complete records and the last two checkpoints among them
+        long recordCount = 0;
+        long previousCheckpoint = -1;
+        long lastCheckpoint = -1;
+        RecordReader reader = new RecordReader(this.channel, 4 + store.pageSize);
+        while (reader.next()) {
+            if (reader.type == CHECKPOINT) {
+                previousCheckpoint = lastCheckpoint;
+                lastCheckpoint = recordCount;
+            }
+            recordCount++;
+        }
+        this.fileSize = reader.end();
+
+        // write the pages of the checkpoint again, since it may not have finished writing them. A log
+        // only holds several checkpoints if writing their pages failed (see checkpoint), and the pages
+        // of the earlier ones may have been overwritten since, so only the last one's are written
+        reader = new RecordReader(this.channel, 4 + store.pageSize);
+        for (long i = 0; i < recordCount; i++) {
+            reader.next();
+            if (i > previousCheckpoint && i < lastCheckpoint && reader.type == PAGE)
+                store.writePage(reader.data.getInt(), reader.data);
+            else if (i > lastCheckpoint && (reader.type == ADD || reader.type == REMOVE || reader.type == CLEAR))
+                changes.add(new Change(reader.type, reader.type == CLEAR ? 0 : reader.data.getInt()));
+        }
+        if (lastCheckpoint >= 0)
+            store.readSuperblock();
+        return lastCheckpoint >= 0 || ! changes.isEmpty();
+    }
+
+    /*
+        Returns the lock that every change of key is made
+        and logged under, so that changes of the same key are
+        logged in the order that they were made even when the
+        nodes they change are latched by several threads
+     */
+    ReentrantLock lockFor(int key) {
+        return this.keyLocks[(key * 0x9E3779B9) >>> 26];
+    }
+
+    /*
+        Appends an ADD, REMOVE or CLEAR record (CLEAR ignores
+        key) and returns its LSN. The record is only on disk
+        once commit has been called with that LSN
+     */
+    long append(byte type, int key) {
+        ByteBuffer data = ByteBuffer.allocate(type == CLEAR ? 0 : 4);
+        if (type != CLEAR)
+            data.putInt(0, key);
+        return this.appendRecord(type, data);
+    }
+
+    /*
+        Appends a PAGE record with the remaining bytes of page
+     */
+    long appendPage(int pageId, ByteBuffer page) {
+        ByteBuffer data = ByteBuffer.allocate(4 + page.remaining());
+        data.putInt(pageId).put(page).flip();
+        return this.appendRecord(PAGE, data);
+    }
+
+    private synchronized long appendRecord(byte type, ByteBuffer data) {
+        int length = data.remaining();
+        if (this.buffer.remaining() < length + 9) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * this.buffer.capacity(), this.buffer.position() + length + 9));
+            this.buffer.flip();
+            this.buffer = larger.put(this.buffer);
+        }
+
+        int start = this.buffer.position();
+        this.buffer.putInt(length).put(type).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(this.buffer.array(), start + 4, length + 1);
+        this.buffer.putInt((int) crc.getValue());
+        this.appendedLsn += length + 9;
+        return this.appendedLsn;
+    }
+
+    /*
+        Commits the record with the given LSN (and every record
+        before it) as the durability requires: with ON_COMMIT it
+        waits until the record is synced, and with NONE and
+        PERIODIC until it is written (PERIODIC leaves the sync
+        to the next tick of its timer)
+     */
+    void commit(long lsn) throws IOException {
+        this.writeUpTo(lsn, this.durability == Durability.ON_COMMIT);
+    }
+
+    /*
+        Writes every record that has been appended so far and
+        (unless the durability is NONE) syncs the log
+     */
+    void sync() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = this.appendedLsn;
+        }
+        this.writeUpTo(lsn, true);
+    }
+
+    /*
+        The periodic sync of the PERIODIC durability, which stops
+        syncing once writing or syncing the log has failed (see failure)
+     */
+    private void syncPeriodically() {
+        synchronized (this) {
+            if (this.failure != null)
+                return;
+        }
+        try {
+            this.sync();
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                this.syncFailureCount++;
+            }
+        }
+    }
+
+    /*
+        Waits until the record with the given LSN (and every
+        record before it) is written and, if sync is true and
+        the durability isn't NONE, synced. If no other thread is
+        writing records, this thread writes all of the records
+        that have been appended so far. Otherwise it waits for
+        that thread to finish, and the records of all of the
+        threads that waited in the meantime are then written
+        together by one of them. If writing or syncing them
+        fails, this commit and every later one fails (see failure)
+     */
+    private void writeUpTo(long lsn, boolean sync) throws IOException {
+        boolean force = sync && this.durability != Durability.NONE;
+        ByteBuffer records;
+        long recordsLsn;
+        long position;
+        synchronized (this) {
+            boolean interrupted = false;
+            while ((force ? this.durableLsn : this.writtenLsn) < lsn && this.syncing) {
+                try {
+                    this.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if ((force ? this.durableLsn : this.writtenLsn) >= lsn)
+                return;
+            if (this.failure != null)
+                throw new IOException("writing " + this.file + " failed", this.failure);
+
+            this.syncing = true;
+            records = this.buffer;
+            records.flip();
+            this.buffer = this.spareBuffer;
+            recordsLsn = this.appendedLsn;
+            position = this.fileSize;
+            this.fileSize += records.remaining();
+        }
+
+        boolean written = false;
+        long syncNanos = 0;
+        try {
+            while (records.hasRemaining())
+                position += this.channel.write(records, position);
+            if (force) {
+                long start = System.nanoTime();
+                this.channel.force(false);
+                syncNanos = System.nanoTime() - start;
+            }
+            written = true;
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                this.failure = e;
+            }
+            throw e;
+        }
+        finally {
+            synchronized (this) {
+                if (written) {
+                    this.writtenLsn = recordsLsn;
+                    if (force) {
+                        this.durableLsn = recordsLsn;
+                        this.syncCount++;
+                        this.syncNanos += syncNanos;
+                    }
+                }
+                this.syncing = false;
+                records.clear();
+                this.spareBuffer = records;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /*
+        Returns true if the log has grown large enough that
+        the B-tree should checkpoint
+     */
+    synchronized boolean isFull() {
+        return this.fileSize + this.buffer.position() >= CHECKPOINT_SIZE;
+    }
+
+    /*
+        Checkpoints the B-tree whose nodes are cached in pool
+        and whose root and number of keys are given. No other
+        operation may run at the same time
+     */
+    void checkpoint(BufferPool pool, int rootPageId, int elementCount) throws IOException {
+        NodeStore store = pool.store;
+        pool.logDirtyNodes(this);
+        for (Map.Entry<Integer, Integer> link : store.getUnwrittenLinks().entrySet()) {
+            ByteBuffer page = ByteBuffer.allocate(4);
+            page.putInt(0, link.getValue());
+            this.appendPage(link.getKey(), page);
+        }
+        this.appendPage(NodeStore.SUPERBLOCK_PAGE_ID, store.encodeSuperblock(rootPageId, elementCount));
+        this.writeUpTo(this.appendRecord(CHECKPOINT, ByteBuffer.allocate(0)), true);
+
+        // every change is in the log now, so the pages can be overwritten. If that fails, the
+        // log is kept (with this checkpoint in it), and the next checkpoint logs the pages again
+        pool.flush();
+        store.checkpoint(rootPageId, elementCount, this.durability != Durability.NONE);
+        this.restart();
+    }
+
+    /*
+        Replaces the log with a new, empty one. The new log
+        is written next to the old one and then renamed over
+        it, so that there is always a complete log on disk
+     */
+    private synchronized void restart() throws IOException {
+        this.buffer.clear();
+        this.buffer.putInt(MAGIC).putInt(VERSION);
+        this.buffer.flip();
+
+        File newFile = new File(this.file.getPath() + ".tmp");
+        FileChannel newChannel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long position = 0;
+        while (this.buffer.hasRemaining())
+            position += newChannel.write(this.buffer, position);
+        if (this.durability != Durability.NONE) {
+            long start = System.nanoTime();
+            newChannel.force(true);
+            this.syncNanos += System.nanoTime() - start;
+            this.syncCount++;
+        }
+        Files.move(newFile.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (this.durability != Durability.NONE)
+            WriteAheadLog.syncDirectory(this.file);
+
+        if (this.channel != null)
+            this.channel.close();
+        this.channel = newChannel;
+        this.fileSize = position;
+        this.buffer.clear();
+        this.writtenLsn = this.durableLsn = this.appendedLsn;
+    }
+
+    /*
+        Makes the renaming of file durable. Not every platform
+        can open a directory, in which case the rename is only
+        as durable as the file system makes it
+     */
+    static void syncDirectory(File file) {
+        try (FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(),
+                StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        catch (IOException e) {
+            // the rename still happened
+        }
+    }
+
+    synchronized long getSyncCount() {
+        return this.syncCount;
+    }
+
+    synchronized long getSyncNanos() {
+        return this.syncNanos;
+    }
+
+    synchronized long getSyncFailureCount() {
+        return this.syncFailureCount;
+    }
+
+    /*
+        Stops the periodic sync and closes the log file.
+        Records that weren't written are lost
+     */
+    void close() throws IOException {
+        if (this.syncTask != null)
+            this.syncTask.cancel(false);
+        this.channel.close();
+    }
+}
@@ -1,6 +1,28 @@
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.Assert.*;
 
@@ -8,6 +30,146 @@ import static org.junit.Assert.*;
  * Created by devinmorgan on 2/18/17.
  */
 public class BTreeTest {
+    /*
+        The directories that the tests put data files in,
+        which are deleted after each test
+     */
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /*
+        Makes count random changes with keys below keyRange to t
+        and the same ones to expected, the TreeSet that t is
+        checked against, asserting that each of them returns the
+        same. A change adds a key addPercent percent of the
+        time, polls the first or the last key pollPercent
+        percent of the time, and otherwise removes a key
+     */
+    private static void makeRandomChanges(BTree t, TreeSet<Integer> expected, Random random, int count,
+                                          int keyRange, int addPercent, int pollPercent) {
+        for (int i = 0; i < count; i++) {
+            int key = random.nextInt(keyRange);
+            int choice = random.nextInt(100);
+            if (choice < addPercent)
+                assertEquals(expected.add(key), t.add(key));
+            else if (choice < addPercent + pollPercent / 2)
+                assertEquals(expected.pollFirst(), t.pollFirst());
+            else if (choice < addPercent + pollPercent)
+                assertEquals(expected.pollLast(), t.pollLast());
+            else
+                assertEquals(expected.remove(key), t.remove(key));
+        }
+    }
+
+    /*
+        A data file or log channel that fails every write,
+        except for the ones to the start of the file (where
+        the superblock is), once it has let through writeCount
+        of them, like a disk that fills up, and that fails
+        every sync unless syncs is true. It otherwise passes
+        everything on to the channel that it wraps
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private int writeCount;
+        private final boolean syncs;
+
+        FailingChannel(FileChannel channel, int writeCount, boolean syncs) {
+            this.channel = channel;
+            this.writeCount = writeCount;
+            this.syncs = syncs;
+        }
+
+        public int write(ByteBuffer source, long position) throws IOException {
+            if (position != 0 && this.writeCount-- <= 0)
+                throw new IOException("no space left on device");
+            return this.channel.write(source, position);
+        }
+
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return this.channel.read(destination, position);
+        }
+
+        public long size() throws IOException {
+            return this.channel.size();
+        }
+
+        public FileChannel truncate(long size) throws IOException {
+            this.channel.truncate(size);
+            return this;
+        }
+
+        public void force(boolean metaData) throws IOException {
+            if (! this.syncs)
+                throw new IOException("input/output error");
+            this.channel.force(metaData);
+        }
+
+        public int read(ByteBuffer destination) { throw new UnsupportedOperationException(); }
+        public long read(ByteBuffer[] destinations, int offset, int length) { throw new UnsupportedOperationException(); }
+        public int write(ByteBuffer source) { throw new UnsupportedOperationException(); }
+        public long write(ByteBuffer[] sources, int offset, int length) { throw new UnsupportedOperationException(); }
+        public long position() { throw new UnsupportedOperationException(); }
+        public FileChannel position(long position) { throw new UnsupportedOperationException(); }
+        public long transferTo(long position, long count, WritableByteChannel target) { throw new UnsupportedOperationException(); }
+        public long transferFrom(ReadableByteChannel source, long position, long count) { throw new UnsupportedOperationException(); }
+        public MappedByteBuffer map(MapMode mode, long position, long size) { throw new UnsupportedOperationException(); }
+        public FileLock lock(long position, long size, boolean shared) { throw new UnsupportedOperationException(); }
+        public FileLock tryLock(long position, long size, boolean shared) { throw new UnsupportedOperationException(); }
+
+        protected void implCloseChannel() {
+            // the wrapped channel is closed by the test
+        }
+    }
+
+    /*
+        A channel whose first read of a page (other than
+        the superblock) signals reading and then waits
+        until release is counted down
+     */
+    private static class BlockingChannel extends FailingChannel {
+        private final CountDownLatch reading;
+        private final CountDownLatch release;
+
+        BlockingChannel(FileChannel channel, CountDownLatch reading, CountDownLatch release) {
+            super(channel, Integer.MAX_VALUE, true);
+            this.reading = reading;
+            this.release = release;
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            if (position != 0 && this.reading.getCount() > 0) {
+                this.reading.countDown();
+                try {
+                    this.release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return super.read(destination, position);
+        }
+    }
+
+    /*
+        Makes the NodeStore or WriteAheadLog owner fail like a
+        FailingChannel, and returns the channel that it used before
+     */
+    private static FileChannel injectFailures(Object owner, int writeCount, boolean syncs) throws Exception {
+        Field field = owner.getClass().getDeclaredField("channel");
+        field.setAccessible(true);
+        FileChannel channel = (FileChannel) field.get(owner);
+        field.set(owner, new FailingChannel(channel, writeCount, syncs));
+        return channel;
+    }
+
+    private static void setChannel(Object owner, FileChannel channel) throws Exception {
+        Field field = owner.getClass().getDeclaredField("channel");
+        field.setAccessible(true);
+        field.set(owner, channel);
+    }
+
 //    @Test
 //    public void add() throws Exception {
 //
@@ -466,67 +628,1119 @@ public class BTreeTest {
 //        assertEquals(t.last(), new Integer(97));
 //    }
 //
-//    @Test
-//    public void iterator() {
-//        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(2);
-//
-//        // 0 keys
-//        for (Integer i : t)
-//            assertFalse("Should never hit this statement when BTree has no keys", true);
-//
-//        // 1 level of nodes
-//        t.addAll(Arrays.asList(new Integer[] {2,0,1}));
-//        int key1 = 0;
-//        for (Integer i : t)
-//            assertEquals(new Integer(i), new Integer(key1++));
-//
-//        // 2 levels of nodes
-//        for (int i = 6; i < 8; i++) {
-//            t.add(i);
-//        }
-//        for (int i = 3; i < 6; i++) {
-//            t.add(i);
-//        }
-//
-//        int key2 = 0;
-//        Iterator<Integer> iterator = new BTreeIterator(t);
-//        while (iterator.hasNext()) {
-//            Integer integer = iterator.next();
-//            assertEquals(integer, new Integer(key2++));
-//        }
-//        // 2+ levels of nodes
-//        Node contains4and5 = null;
-//        for (int i = -1; i >= -5; i--)
-//            t.add(i);
-//        int key3 = -5;
-//        for (Integer i : t)
-//            assertEquals(new Integer(i), new Integer(key3++));
-//        t.clear();
-//
-//        // a lot of random values against a sorted comparison
-//        ArrayList<Integer> comparison = new ArrayList<Integer>();
-//        for (int i = 0; i < 100; i++) {
-//            Random r = new Random();
-//            Integer value = r.nextInt(100) - 50;
-//
-//            // add values to B-tree
-//            t.add(value);
-//
-//            // only add unique values to list
-//            if (!comparison.contains(value)) {
-//                comparison.add(value);
-//            }
-//        }
-//        Collections.sort(comparison);
-//
-//        int index = 0;
-//        BTreeIterator iteratorNew = new BTreeIterator(t);
-//        while (iteratorNew.hasNext()) {
-//            Integer actual = iteratorNew.next();
-//            Integer expected = comparison.get(index++);
-//            assertEquals(expected, actual);
-//        }
-//    }
+    @Test
+    public void iterator() {
+        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(2);
+
+        // 0 keys
+        for (Integer i : t)
+            assertFalse("Should never hit this statement when BTree has no keys", true);
+
+        // 1 level of nodes
+        t.addAll(Arrays.asList(new Integer[] {2,0,1}));
+        int key1 = 0;
+        for (Integer i : t)
+            assertEquals(new Integer(i), new Integer(key1++));
+
+        // 2 levels of nodes
+        for (int i = 6; i < 8; i++) {
+            t.add(i);
+        }
+        for (int i = 3; i < 6; i++) {
+            t.add(i);
+        }
+
+        int key2 = 0;
+        Iterator<Integer> iterator = new BTreeIterator(t);
+        while (iterator.hasNext()) {
+            Integer integer = iterator.next();
+            assertEquals(integer, new Integer(key2++));
+        }
+        // 2+ levels of nodes
+        Node contains4and5 = null;
+        for (int i = -1; i >= -5; i--)
+            t.add(i);
+        int key3 = -5;
+        for (Integer i : t)
+            assertEquals(new Integer(i), new Integer(key3++));
+        t.clear();
+
+        // a lot of random values against a sorted comparison
+        ArrayList<Integer> comparison = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            Random r = new Random();
+            Integer value = r.nextInt(100) - 50;
+
+            // add values to B-tree
+            t.add(value);
+
+            // only add unique values to list
+            if (!comparison.contains(value)) {
+                comparison.add(value);
+            }
+        }
+        Collections.sort(comparison);
+
+        int index = 0;
+        BTreeIterator iteratorNew = new BTreeIterator(t);
+        while (iteratorNew.hasNext()) {
+            Integer actual = iteratorNew.next();
+            Integer expected = comparison.get(index++);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void freedPagesAreReused() throws Exception {
+        NodeStore store = NodeStore.createTemporaryStore(4096, false, false, false, 3);
+        assertEquals(1, store.allocatePage());
+        assertEquals(2, store.allocatePage());
+        assertEquals(3, store.allocatePage());
+        for (int pageId = 1; pageId <= 3; pageId++)
+            store.writePage(pageId, ByteBuffer.wrap(new byte[] {(byte) pageId}));
+        long length = store.file.length();
+
+        // freed pages are reused last freed first, before the data file grows
+        store.freePage(2);
+        store.freePage(1);
+        assertEquals(1, store.getLivePageCount());
+        assertEquals(1, store.allocatePage());
+        assertEquals(2, store.allocatePage());
+        assertEquals(length, store.file.length());
+        assertEquals(4, store.allocatePage());
+        assertEquals(4, store.getLivePageCount());
+
+        // a page keeps what was written to it, not the free list's link
+        ByteBuffer page = store.readPage(3, ByteBuffer.allocate(store.pageSize));
+        assertEquals(3, page.get(0));
+        store.close();
+        assertFalse(store.file.exists());
+    }
+
+    @Test
+    public void superblockIsReadBack() throws Exception {
+        File file = this.temporaryFolder.newFile("tree.db");
+        NodeStore store = NodeStore.createStore(file, 8192, true, true, false, 5);
+        for (int i = 0; i < 4; i++)
+            store.allocatePage();
+        store.freePage(3);
+        store.checkpoint(2, 42, true);
+        store.close();
+
+        // the layout, the root, the number of keys and the free pages all come from the superblock
+        store = NodeStore.openStore(file);
+        assertEquals(8192, store.pageSize);
+        assertTrue(store.isBPlusTree);
+        assertTrue(store.hasChildCounts);
+        assertFalse(store.isBLinkTree);
+        assertEquals(5, store.minNumberOfChildren);
+        assertEquals(2, store.getRootPageId());
+        assertEquals(42, store.getElementCount());
+        assertEquals(3, store.getLivePageCount());
+        assertEquals(3, store.allocatePage());
+        assertEquals(5, store.allocatePage());
+        store.close();
+
+        // a file without a superblock isn't opened
+        try (RandomAccessFile garbage = new RandomAccessFile(file, "rw")) {
+            garbage.writeInt(0);
+        }
+        try {
+            NodeStore.openStore(file);
+            fail();
+        }
+        catch (IOException e) {
+            // not a B-tree data file
+        }
+    }
+
+    @Test
+    public void nodeFormatRoundTrip() throws Exception {
+        NodeStore store = NodeStore.createTemporaryStore(Node.pageSizeFor(3, true), true, true, false, 3);
+        BufferPool pool = new BufferPool(store, 0, false, 0, false, null);
+
+        // a B+tree leaf with links to the leaves on either side
+        Node leaf = Node.allocateNode(pool, 3);
+        leaf.keyCount = 3;
+        leaf.keys[0] = -7;
+        leaf.keys[1] = 0;
+        leaf.keys[2] = Integer.MAX_VALUE;
+        leaf.prevLeaf = 5;
+        leaf.nextLeaf = 9;
+        Node.flushNodeToDisk(leaf);
+        Node readLeaf = Node.readNodeFromDisk(pool, leaf.pageId);
+        assertTrue(readLeaf.isLeaf);
+        assertEquals(3, readLeaf.keyCount);
+        assertArrayEquals(new int[] {-7, 0, Integer.MAX_VALUE}, Arrays.copyOf(readLeaf.keys, 3));
+        assertEquals(5, readLeaf.prevLeaf);
+        assertEquals(9, readLeaf.nextLeaf);
+        assertEquals(NodeStore.NO_PAGE, readLeaf.rightLink);
+
+        // an internal node with child pointers and child counts, full to the brim
+        Node internal = Node.allocateNode(pool, 3);
+        internal.isLeaf = false;
+        internal.keyCount = 5;
+        for (int i = 0; i < 5; i++)
+            internal.keys[i] = 10 * i;
+        for (int i = 0; i < 6; i++) {
+            internal.childPointers[i] = 100 + i;
+            internal.childCounts[i] = 2 + i;
+        }
+        internal.rightLink = 11;
+        internal.highKey = 50;
+        Node.flushNodeToDisk(internal);
+        Node readInternal = Node.readNodeFromDisk(pool, internal.pageId);
+        assertFalse(readInternal.isLeaf);
+        assertEquals(5, readInternal.keyCount);
+        assertArrayEquals(new int[] {0, 10, 20, 30, 40}, readInternal.keys);
+        assertArrayEquals(new int[] {100, 101, 102, 103, 104, 105}, readInternal.childPointers);
+        assertArrayEquals(new int[] {2, 3, 4, 5, 6, 7}, readInternal.childCounts);
+        assertEquals(11, readInternal.rightLink);
+        assertEquals(50, readInternal.highKey);
+        assertEquals(NodeStore.NO_PAGE, readInternal.prevLeaf);
+
+        // a page in a format that this version doesn't know isn't read as a node
+        store.writePage(leaf.pageId, ByteBuffer.wrap(new byte[] {Node.FORMAT_VERSION + 1}));
+        try {
+            Node.readNodeFromDisk(pool, leaf.pageId);
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            assertTrue(e.getCause().getMessage().contains("unknown node format version"));
+        }
+        pool.close();
+        store.close();
+    }
+
+    @Test
+    public void cacheStats() {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2).cacheSizeInBytes(0));
+        for (int i = 0; i < 200; i++)
+            t.add(i);
+
+        // a tiny cache has to evict nodes to make room for others
+        CacheStats afterInserts = t.getCacheStats();
+        assertTrue(afterInserts.getEvictionCount() > 0);
+        assertTrue(afterInserts.getCachedNodeCount() <= afterInserts.getCapacity());
+
+        // looking up the same key again only touches cached nodes
+        t.contains(199);
+        CacheStats beforeLookup = t.getCacheStats();
+        t.contains(199);
+        CacheStats afterLookup = t.getCacheStats();
+        assertEquals(beforeLookup.getMissCount(), afterLookup.getMissCount());
+        assertTrue(afterLookup.getHitCount() > beforeLookup.getHitCount());
+    }
+
+    @Test
+    public void writeBack() {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(50).writeBack(true).flushIntervalMillis(0));
+
+        // a burst of inserts into the same leaf only dirties it
+        for (int i = 0; i < 20; i++)
+            t.add(i);
+        assertEquals(1, t.getCacheStats().getDirtyNodeCount());
+        assertEquals(0, t.getCacheStats().getWriteCount());
+
+        // and it's written once when flushed
+        t.flush();
+        assertEquals(0, t.getCacheStats().getDirtyNodeCount());
+        assertEquals(1, t.getCacheStats().getWriteCount());
+        for (int i = 0; i < 20; i++)
+            assertTrue(t.contains(i));
+    }
+
+    @Test
+    public void bPlusTree() {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).bPlusTree(true));
+        for (int i = 0; i < 200; i++)
+            t.add(i);
+        for (int i = 0; i < 200; i += 2)
+            t.remove(i);
+        assertEquals(100, t.size());
+        assertEquals(1, (int) t.first());
+        assertEquals(199, (int) t.last());
+
+        // every key is in a leaf, even the ones copied into internal nodes
+        for (int i = 0; i < 200; i++)
+            assertEquals(i % 2 == 1, t.contains(i));
+
+        // range scans walk along the linked leaves
+        Iterator<Integer> subSet = t.subSet(50, 60).iterator();
+        for (int i = 51; i < 60; i += 2)
+            assertEquals(i, (int) subSet.next());
+        assertFalse(subSet.hasNext());
+    }
+
+    @Test
+    public void bulkLoad() {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).bulkLoadFillFactor(1));
+        int[] keys = new int[1000];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = 2 * i;
+        t.bulkLoad(keys);
+
+        // every node is written once
+        assertEquals(1000, t.size());
+        assertEquals(1 + t.store.getLivePageCount(), t.getCacheStats().getWriteCount());
+        Iterator<Integer> iterator = t.iterator();
+        for (int key : keys)
+            assertEquals(key, (int) iterator.next());
+        assertFalse(iterator.hasNext());
+
+        // and the loaded B-tree can still be modified
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(t.add(2 * i + 1));
+            assertTrue(t.remove(2 * i));
+        }
+        assertEquals(1, (int) t.first());
+        assertEquals(1999, (int) t.last());
+
+        // keys that aren't sorted are rejected
+        BTree unsorted = BTree.createNewBTreeWithMinNumberOfChildren(3);
+        try {
+            unsorted.bulkLoad(new int[] {1, 3, 2});
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(unsorted.isEmpty());
+        }
+    }
+
+    @Test
+    public void failedBulkLoadLeavesTheBTreeEmpty() throws Exception {
+        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(3);
+        FileChannel channel = BTreeTest.injectFailures(t.store, 20, true);
+        try {
+            t.bulkLoad(IntStream.range(0, 1000).toArray());
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            // expected
+        }
+
+        // none of the nodes that were written made it into the B-tree
+        BTreeTest.setChannel(t.store, channel);
+        assertTrue(t.isEmpty());
+        t.bulkLoad(IntStream.range(0, 1000).toArray());
+        assertArrayEquals(IntStream.range(0, 1000).toArray(), t.toIntArray());
+    }
+
+    @Test
+    public void views() {
+        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(3);
+        for (int i = 0; i < 100; i++)
+            t.add(i);
+
+        // taking a view doesn't copy anything
+        int pageCount = t.store.getLivePageCount();
+        SortedSet<Integer> subSet = t.subSet(10, 20);
+        SortedSet<Integer> headSet = t.headSet(5);
+        SortedSet<Integer> tailSet = t.tailSet(95);
+        assertEquals(pageCount, t.store.getLivePageCount());
+        assertEquals(10, subSet.size());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), new ArrayList<Integer>(headSet));
+        assertEquals(95, (int) tailSet.first());
+        assertEquals(19, (int) subSet.last());
+
+        // views are backed by the B-tree
+        t.remove(15);
+        assertFalse(subSet.contains(15));
+        assertEquals(9, subSet.size());
+        subSet.remove(10);
+        assertFalse(t.contains(10));
+        tailSet.add(1000);
+        assertTrue(t.contains(1000));
+        try {
+            subSet.add(20);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(8, subSet.size());
+        }
+        assertEquals(Arrays.asList(11, 12), new ArrayList<Integer>(subSet.headSet(13)));
+    }
+
+    @Test
+    public void navigableSet() {
+        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(2);
+        for (int i = 0; i < 100; i += 10)
+            t.add(i);
+
+        assertEquals(20, (int) t.floor(25));
+        assertEquals(20, (int) t.floor(20));
+        assertEquals(10, (int) t.lower(20));
+        assertEquals(30, (int) t.ceiling(25));
+        assertEquals(30, (int) t.higher(20));
+        assertNull(t.lower(0));
+        assertNull(t.higher(90));
+
+        assertEquals(0, (int) t.pollFirst());
+        assertEquals(90, (int) t.pollLast());
+        assertEquals(8, t.size());
+        assertFalse(t.contains(0));
+
+        Iterator<Integer> descending = t.descendingIterator();
+        for (int i = 80; i >= 10; i -= 10)
+            assertEquals(i, (int) descending.next());
+        assertFalse(descending.hasNext());
+        assertEquals(Arrays.asList(60, 50, 40), new ArrayList<Integer>(t.descendingSet().subSet(60, true, 30, false)));
+    }
+
+    @Test
+    public void addReadsPathOnce() {
+        BTree t = BTree.createNewBTreeWithMinNumberOfChildren(3);
+        for (int i = 0; i < 1000; i += 2)
+            t.add(i);
+
+        // adding a duplicate only reads the path and doesn't change anything
+        CacheStats before = t.getCacheStats();
+        assertFalse(t.add(500));
+        CacheStats after = t.getCacheStats();
+        long pathReads = after.getHitCount() + after.getMissCount() - before.getHitCount() - before.getMissCount();
+        assertEquals(before.getWriteCount(), after.getWriteCount());
+        assertEquals(500, t.size());
+
+        // and so does adding a key whose leaf isn't full, apart from writing the leaf
+        t.add(1001);
+        t.remove(1001);
+        before = t.getCacheStats();
+        assertTrue(t.add(1001));
+        after = t.getCacheStats();
+        assertEquals(pathReads, after.getHitCount() + after.getMissCount() - before.getHitCount() - before.getMissCount());
+        assertEquals(before.getWriteCount() + 1, after.getWriteCount());
+    }
+
+    @Test
+    public void orderStatistics() {
+        for (boolean bPlusTree : new boolean[] {false, true}) {
+            BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).bPlusTree(bPlusTree).orderStatistics(true));
+            TreeSet<Integer> expected = new TreeSet<>();
+            Random random = new Random(12);
+            for (int i = 0; i < 3000; i++) {
+                int key = random.nextInt(2000);
+                if (random.nextInt(3) == 0)
+                    assertEquals(expected.remove(key), t.remove(key));
+                else
+                    assertEquals(expected.add(key), t.add(key));
+            }
+
+            List<Integer> keys = new ArrayList<>(expected);
+            for (int i = 0; i < keys.size(); i++)
+                assertEquals((int) keys.get(i), t.select(i));
+            for (int key = -1; key <= 2000; key += 7) {
+                assertEquals(expected.headSet(key).size(), t.rank(key));
+                assertEquals(expected.subSet(key, key + 300).size(), t.countRange(key, key + 300));
+                assertEquals(expected.subSet(key, false, key + 50, true).size(), t.subSet(key, false, key + 50, true).size());
+            }
+        }
+
+        try {
+            BTree.createNewBTree().rank(0);
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // the counts are only kept when they're enabled
+        }
+    }
+
+    @Test
+    public void primitiveKeys() {
+        for (boolean bPlusTree : new boolean[] {false, true}) {
+            BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).bPlusTree(bPlusTree));
+            TreeSet<Integer> expected = new TreeSet<>();
+            Random random = new Random(13);
+            for (int i = 0; i < 2000; i++) {
+                int key = random.nextInt(5000);
+                t.add(key);
+                expected.add(key);
+            }
+            int[] expectedKeys = expected.stream().mapToInt(Integer::intValue).toArray();
+
+            assertArrayEquals(expectedKeys, t.toIntArray());
+            assertArrayEquals(expectedKeys, t.intStream().toArray());
+
+            PrimitiveIterator.OfInt iterator = t.intIterator();
+            for (int key : expectedKeys)
+                assertEquals(key, iterator.nextInt());
+            assertFalse(iterator.hasNext());
+
+            List<Integer> visited = new ArrayList<>();
+            t.forEachInt(visited::add);
+            assertEquals(new ArrayList<>(expected), visited);
+        }
+        assertEquals(0, BTree.createNewBTree().toIntArray().length);
+    }
+
+    @Test
+    public void parallelStreams() {
+        for (boolean orderStatistics : new boolean[] {false, true}) {
+            BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).orderStatistics(orderStatistics));
+            t.bulkLoad(IntStream.range(0, 10000).toArray());
+
+            // splitting covers every key exactly once and in order
+            Spliterator.OfInt suffix = t.spliterator();
+            assertEquals(10000, suffix.getExactSizeIfKnown());
+            Spliterator.OfInt prefix = suffix.trySplit();
+            assertNotNull(prefix);
+            if (orderStatistics) {
+                assertTrue(prefix.hasCharacteristics(Spliterator.SIZED));
+                assertEquals(10000, prefix.getExactSizeIfKnown() + suffix.getExactSizeIfKnown());
+            }
+            List<Integer> keys = new ArrayList<>();
+            prefix.forEachRemaining((int key) -> keys.add(key));
+            suffix.forEachRemaining((int key) -> keys.add(key));
+            assertEquals(t.intStream().boxed().collect(Collectors.toList()), keys);
+
+            assertEquals(49995000L, t.intStream().parallel().asLongStream().sum());
+            assertArrayEquals(t.toIntArray(), t.intStream().parallel().toArray());
+            assertEquals(10000, t.parallelStream().filter(key -> key >= 0).count());
+        }
+
+        // the size of a concurrent B-tree can change during a stream, so it's only an estimate
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).orderStatistics(true).concurrent(true));
+        t.bulkLoad(IntStream.range(0, 10000).toArray());
+        Spliterator.OfInt spliterator = t.spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.CONCURRENT));
+        assertEquals(-1, spliterator.getExactSizeIfKnown());
+        assertEquals(10000, spliterator.estimateSize());
+        assertFalse(spliterator.trySplit().hasCharacteristics(Spliterator.SUBSIZED));
+        assertEquals(49995000L, t.intStream().parallel().asLongStream().sum());
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        for (boolean bPlusTree : new boolean[] {false, true}) {
+            BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2).bPlusTree(bPlusTree).concurrent(true));
+            int threadCount = 4;
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+
+            // each writer owns the keys that are equal to its index
+            // modulo threadCount, and the readers check the order
+            for (int i = 0; i < threadCount; i++) {
+                int index = i;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int key = index; key < 8000; key += threadCount) {
+                            assertTrue(t.add(key));
+                            if (key % 3 == 0)
+                                assertTrue(t.remove(key));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }));
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            Integer previous = null;
+                            for (int key : t) {
+                                assertTrue(previous == null || previous < key);
+                                previous = key;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+
+            assertEquals(Collections.emptyList(), failures);
+            int[] expected = IntStream.range(0, 8000).filter(key -> key % 3 != 0).toArray();
+            assertArrayEquals(expected, t.toIntArray());
+            assertEquals(expected.length, t.size());
+        }
+    }
+
+    @Test
+    public void toArrayWhileChanging() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).concurrent(true));
+        t.bulkLoad(IntStream.range(0, 1000).toArray());
+
+        // the B-tree grows and shrinks while the arrays are built
+        Thread writer = new Thread(() -> {
+            for (int round = 0; round < 20; round++) {
+                for (int key = 1000; key < 3000; key++)
+                    t.add(key);
+                for (int key = 1000; key < 3000; key++)
+                    t.remove(key);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int[] keys = t.toIntArray();
+            Object[] boxedKeys = t.toArray();
+            assertTrue(keys.length >= 1000 && keys.length <= 3000);
+            assertTrue(boxedKeys.length >= 1000 && boxedKeys.length <= 3000);
+            for (int i = 1; i < keys.length; i++)
+                assertTrue(keys[i - 1] < keys[i]);
+        }
+        writer.join();
+
+        // toArray(T[]) fills an array that is large enough, and otherwise makes one of the same type
+        Integer[] large = new Integer[1001];
+        large[1000] = -1;
+        assertSame(large, t.toArray(large));
+        assertNull(large[1000]);
+        Integer[] keys = t.toArray(new Integer[0]);
+        assertEquals(1000, keys.length);
+        assertEquals(Integer.valueOf(999), keys[999]);
+    }
+
+    @Test
+    public void concurrentViewPolls() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).concurrent(true));
+        t.bulkLoad(IntStream.range(0, 10000).toArray());
+        NavigableSet<Integer> view = t.subSet(1000, true, 9000, false);
+
+        // every key of the view is polled by exactly one of the threads
+        Queue<Integer> polled = new ConcurrentLinkedQueue<Integer>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            boolean first = i % 2 == 0;
+            threads.add(new Thread(() -> {
+                Integer key;
+                while ((key = first ? view.pollFirst() : view.pollLast()) != null)
+                    polled.add(key);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(8000, polled.size());
+        assertEquals(IntStream.range(1000, 9000).boxed().collect(Collectors.toSet()), new HashSet<Integer>(polled));
+        assertEquals(2000, t.size());
+    }
+
+    @Test(timeout = 10000)
+    public void cacheMissDoesNotBlockHits() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).concurrent(true).cacheSizeInBytes(0));
+        for (int key = 0; key < 1000; key++)
+            t.add(key);
+        assertTrue(t.contains(0));
+
+        // another thread looks up keys until it misses, and then its read doesn't finish
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Field field = NodeStore.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        field.set(t.store, new BlockingChannel((FileChannel) field.get(t.store), reading, release));
+        Thread missingThread = new Thread(() -> {
+            for (int key = 999; key >= 0; key--)
+                t.contains(key);
+        });
+        missingThread.start();
+        reading.await();
+
+        // the nodes on the path to 0 are still cached, and finding them doesn't wait for the read
+        assertTrue(t.contains(0));
+        release.countDown();
+        missingThread.join();
+    }
+
+    @Test
+    public void bLinkTree() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2).bLinkTree(true));
+        t.bulkLoad(IntStream.range(0, 2000).map(key -> 2 * key).toArray());
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+
+        // the writers split nodes all the time, and the
+        // readers must still find every even key
+        for (int i = 0; i < 4; i++) {
+            int index = i;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int key = 2 * index + 1; key < 4000; key += 8)
+                        assertTrue(t.add(key));
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+            threads.add(new Thread(() -> {
+                try {
+                    for (int key = 0; key < 4000; key += 2) {
+                        assertTrue(t.contains(key));
+                        assertEquals(Integer.valueOf(key), t.ceiling(key));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(Collections.emptyList(), failures);
+        assertArrayEquals(IntStream.range(0, 4000).toArray(), t.toIntArray());
+
+        // nodes aren't merged, so whole leaves can be left empty
+        for (int key = 1000; key < 3000; key++)
+            assertTrue(t.remove(key));
+        assertEquals(2000, t.size());
+        assertEquals(Integer.valueOf(3000), t.higher(999));
+        assertEquals(Integer.valueOf(999), t.lower(3000));
+        assertEquals(Integer.valueOf(0), t.pollFirst());
+        assertEquals(Integer.valueOf(3999), t.pollLast());
+        assertEquals(1998, t.headSet(3999).size());
+
+        try {
+            BTree.createNewBTree(new BTreeOptions().bLinkTree(true).orderStatistics(true));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // B-link trees can't keep order statistics
+        }
+    }
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).cacheSizeInBytes(0);
+        BTree t = BTree.create(file, options);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        BTreeTest.makeRandomChanges(t, expected, new Random(7), 10000, 1000, 67, 0);
+
+        // opening the file without closing the B-tree first is like a crash (and
+        // the log is longer than the buffer that recovery reads it through)
+        t = BTree.open(file, options);
+        assertEquals(new ArrayList<Integer>(expected), new ArrayList<Integer>(t));
+
+        // a record that was cut short by a crash is ignored
+        assertTrue(t.add(5000));
+        expected.add(5000);
+        try (RandomAccessFile log = new RandomAccessFile(file + ".wal", "rw")) {
+            log.seek(log.length());
+            log.write(new byte[] {0, 0, 0, 4, WriteAheadLog.ADD, 1});
+        }
+        t = BTree.open(file, options);
+        assertEquals(new ArrayList<Integer>(expected), new ArrayList<Integer>(t));
+
+        t.retainAll(expected.headSet(500));
+        t.close();
+        try {
+            BTree.open(file.resolveSibling("missing.db"));
+            fail();
+        } catch (UncheckedIOException e) {
+            // there is no B-tree in that file
+        }
+    }
+
+    @Test
+    public void failedCheckpointKeepsTheLog() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3);
+        BTree t = BTree.create(file, options);
+        for (int key = 0; key < 1000; key++)
+            assertTrue(t.add(key));
+
+        // from now on the data file only takes writes to the superblock
+        BTreeTest.injectFailures(t.store, 0, true);
+        try {
+            t.close();
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            // expected
+        }
+
+        // the log wasn't replaced by an empty one, so the changes are still there after a crash
+        t = BTree.open(file, options);
+        assertEquals(1000, t.size());
+        assertArrayEquals(IntStream.range(0, 1000).toArray(), t.toIntArray());
+        t.close();
+    }
+
+    @Test
+    public void openExistingBTree() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        try (BTree t = BTree.create(file, new BTreeOptions().minNumberOfChildren(4).bPlusTree(true))) {
+            t.bulkLoad(IntStream.range(0, 10000).toArray());
+            t.remove(5000);
+        }
+
+        // a closed B-tree is opened by reading the superblock and the root
+        BTree t = BTree.open(file);
+        assertEquals(1, t.getCacheStats().getMissCount());
+        assertEquals(9999, t.size());
+        assertFalse(t.contains(5000));
+        assertEquals(Integer.valueOf(5001), t.higher(4999));
+        assertEquals(Integer.valueOf(9999), t.last());
+
+        // the degree and the kind of B-tree come from the superblock
+        for (int key = 10000; key < 11000; key++)
+            assertTrue(t.add(key));
+        t.close();
+        t = BTree.open(file);
+        assertEquals(10999, t.size());
+        assertEquals(9999, t.headSet(10000).size());
+        t.close();
+    }
+
+    @Test
+    public void memoryMapped() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).cacheSizeInBytes(0).memoryMapped(true));
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        BTreeTest.makeRandomChanges(t, expected, new Random(11), 5000, 2000, 50, 0);
+        t.force();
+        assertEquals(new ArrayList<Integer>(expected), new ArrayList<Integer>(t));
+        t.close();
+
+        // a memory-mapped B-tree in a file is opened again like any other
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        try (BTree created = BTree.create(file, new BTreeOptions().minNumberOfChildren(3).memoryMapped(true))) {
+            created.addAll(expected);
+        }
+        t = BTree.open(file, new BTreeOptions().cacheSizeInBytes(0).memoryMapped(true));
+        assertEquals(new ArrayList<Integer>(expected), new ArrayList<Integer>(t));
+        t.close();
+    }
+
+    @Test
+    public void memoryMappedFileSize() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).cacheSizeInBytes(0).memoryMapped(true);
+        int pageSize = Node.pageSizeFor(3, false);
+
+        // the segments that a small B-tree maps grow its file to at most about twice its pages
+        BTree t = BTree.create(file, options);
+        for (int key = 0; key < 100; key++)
+            assertTrue(t.add(key));
+        assertTrue(file.toFile().length() <= 2L * (t.store.getLivePageCount() + 1) * pageSize + 64 * 1024);
+
+        // a larger one spans several segments, and the file is cut back to its pages when it's closed
+        for (int key = 100; key < 20000; key++)
+            assertTrue(t.add(key));
+        long pageCount = t.store.getLivePageCount() + 1;
+        t.close();
+        assertEquals(pageCount * pageSize, file.toFile().length());
+        t = BTree.open(file, options);
+        assertArrayEquals(IntStream.range(0, 20000).toArray(), t.toIntArray());
+
+        // clear gives the pages back once the B-tree is closed
+        t.clear();
+        assertTrue(t.add(1));
+        t.close();
+        assertTrue(file.toFile().length() <= 2 * pageSize);
+        t = BTree.open(file, options);
+        assertEquals(Arrays.asList(1), new ArrayList<Integer>(t));
+        t.close();
+    }
+
+    @Test
+    public void durabilityPolicies() throws Exception {
+        Path directory = this.temporaryFolder.newFolder().toPath();
+        for (Durability durability : Durability.values()) {
+            Path file = directory.resolve(durability + ".db");
+            BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).durability(durability).syncIntervalMillis(10);
+            BTree t = BTree.create(file, options);
+            long initialLogSyncs = t.getSyncStats().getLogSyncCount();
+            for (int i = 0; i < 100; i++)
+                t.add(i);
+
+            // the written changes survive a crash of the JVM (opening it again without closing
+            // it), even before the periodic sync
+            BTree recovered = BTree.open(file, options);
+            assertEquals(100, recovered.size());
+            recovered.close();
+
+            if (durability == Durability.PERIODIC) {
+                // the periodic sync eventually writes the changes
+                long deadline = System.currentTimeMillis() + 10000;
+                while (t.getSyncStats().getLogSyncCount() == initialLogSyncs && System.currentTimeMillis() < deadline)
+                    Thread.sleep(5);
+            }
+            SyncStats stats = t.getSyncStats();
+            if (durability == Durability.NONE)
+                assertEquals(0, stats.getSyncCount());
+            else
+                assertTrue(stats.getLogSyncCount() > initialLogSyncs);
+            if (durability == Durability.ON_COMMIT)
+                assertEquals(initialLogSyncs + 100, stats.getLogSyncCount());
+        }
+    }
+
+    @Test
+    public void failedPeriodicSync() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).durability(Durability.PERIODIC)
+                .syncIntervalMillis(10);
+        BTree t = BTree.create(file, options);
+        Field log = BTree.class.getDeclaredField("log");
+        log.setAccessible(true);
+        BTreeTest.injectFailures(log.get(t), Integer.MAX_VALUE, false);
+        assertTrue(t.add(1));
+
+        // the periodic sync fails in the background
+        long deadline = System.currentTimeMillis() + 10000;
+        while (t.getSyncStats().getLogSyncFailureCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(1, t.getSyncStats().getLogSyncFailureCount());
+
+        // and every change after it fails instead of pretending to be durable
+        try {
+            t.add(2);
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            assertEquals("input/output error", e.getCause().getCause().getMessage());
+        }
+        try {
+            t.close();
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            // the checkpoint can't sync either
+        }
+
+        // opening the B-tree again recovers the changes that were written
+        t = BTree.open(file, options);
+        assertEquals(Arrays.asList(1), new ArrayList<Integer>(t));
+        t.close();
+    }
+
+    @Test
+    public void failedLogWrite() throws Exception {
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3);
+        BTree t = BTree.create(file, options);
+        for (int key = 0; key < 100; key++)
+            assertTrue(t.add(key));
+
+        // the next commit can't write its record
+        Field log = BTree.class.getDeclaredField("log");
+        log.setAccessible(true);
+        FileChannel channel = BTreeTest.injectFailures(log.get(t), 0, true);
+        try {
+            t.add(100);
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            assertEquals("no space left on device", e.getCause().getMessage());
+        }
+
+        // and even once the disk works again, no later commit claims to be on disk after the lost record
+        BTreeTest.setChannel(log.get(t), channel);
+        try {
+            t.add(101);
+            fail();
+        }
+        catch (UncheckedIOException e) {
+            assertEquals("no space left on device", e.getCause().getCause().getMessage());
+        }
+
+        // opening the B-tree again recovers the changes that were committed
+        t = BTree.open(file, options);
+        assertArrayEquals(IntStream.range(0, 100).toArray(), t.toIntArray());
+        assertTrue(t.add(100));
+        t.close();
+    }
+
+    @Test
+    public void instrumentation() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2).cacheSizeInBytes(0).instrumented(true));
+        for (int i = 0; i < 1000; i++)
+            t.add(i);
+        for (int i = 0; i < 900; i++)
+            t.remove(i);
+        assertTrue(t.contains(950));
+
+        BTreeStats stats = t.getStats();
+        assertEquals(1000, stats.getLatency(BTreeStats.Operation.ADD).getCount());
+        assertEquals(900, stats.getLatency(BTreeStats.Operation.REMOVE).getCount());
+        assertEquals(1, stats.getLatency(BTreeStats.Operation.CONTAINS).getCount());
+        LatencyStats adds = stats.getLatency(BTreeStats.Operation.ADD);
+        assertTrue(adds.getP50Nanos() <= adds.getP99Nanos() && adds.getP99Nanos() <= adds.getMaxNanos());
+        assertTrue(stats.getSplitCount() > 0 && stats.getMergeCount() > 0 && stats.getBorrowCount() > 0);
+        assertTrue(stats.getNodeReadCount() > 0 && stats.getNodeWriteCount() > 0);
+        assertTrue(stats.getHeight() > 1);
+        assertTrue(stats.getNodeCount() > 1);
+        assertTrue(stats.getAverageFillFactor() > 0 && stats.getAverageFillFactor() <= 1);
+
+        // the statistics are published over JMX until the B-tree is closed
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = t.registerMBean("instrumentation test");
+        assertEquals(100L, server.getAttribute(name, "Size"));
+        assertEquals(stats.getHeight(), server.getAttribute(name, "Height"));
+        assertEquals(stats.getSplitCount(), server.getAttribute(name, "SplitCount"));
+
+        // the counters are read without reading any node
+        long nodeReadCount = t.getStats().getNodeReadCount();
+        assertEquals(nodeReadCount, server.getAttribute(name, "NodeReadCount"));
+        server.getAttribute(name, "Latencies");
+        assertEquals(nodeReadCount, server.getAttribute(name, "NodeReadCount"));
+        t.close();
+        assertFalse(server.isRegistered(name));
+
+        // without instrumentation only the shape of the B-tree is measured
+        t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2));
+        for (int i = 0; i < 1000; i++)
+            t.add(i);
+        stats = t.getStats();
+        assertEquals(0, stats.getSplitCount());
+        assertEquals(0, stats.getLatency(BTreeStats.Operation.ADD).getCount());
+        assertTrue(stats.getHeight() > 1);
+        t.close();
+
+        // a poll of a B-tree in a data file is recorded as a poll only
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        t = BTree.create(file, new BTreeOptions().instrumented(true));
+        t.add(1);
+        t.add(2);
+        assertEquals(Integer.valueOf(1), t.pollFirst());
+        stats = t.getStats();
+        assertEquals(1, stats.getLatency(BTreeStats.Operation.POLL_FIRST).getCount());
+        assertEquals(0, stats.getLatency(BTreeStats.Operation.CEILING).getCount());
+        assertEquals(0, stats.getLatency(BTreeStats.Operation.REMOVE).getCount());
+        t.close();
+    }
+
+    @Test
+    public void bloomFilter() throws Exception {
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).bloomFilter(true));
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        BTreeTest.makeRandomChanges(t, expected, new Random(23), 20000, 40000, 75, 0);
+        assertEquals(expected.pollFirst(), t.pollFirst());
+        for (int key = 0; key < 40000; key++)
+            assertEquals(expected.contains(key), t.contains(key));
+
+        // the filter grew with the B-tree and turned most of the misses away
+        BloomFilterStats stats = t.getBloomFilterStats();
+        assertTrue(stats.getCapacity() >= t.size());
+        assertTrue(stats.getMemoryBytes() > 0);
+        assertTrue(stats.getDefiniteMissCount() > 0);
+        assertTrue(stats.getFalsePositiveRate() < 0.05);
+        assertTrue(stats.getExpectedFalsePositiveRate() < 0.05);
+
+        t.clear();
+        assertFalse(t.contains(expected.first()));
+        t.addAll(expected);
+        for (int key = 0; key < 40000; key++)
+            assertEquals(expected.contains(key), t.contains(key));
+        t.close();
+
+        // the filter is saved with a B-tree in a data file, and rebuilt if it wasn't closed
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).bloomFilter(true);
+        try (BTree created = BTree.create(file, options)) {
+            created.addAll(new ArrayList<Integer>(expected));
+        }
+        assertTrue(BloomFilter.fileFor(file.toFile()).exists());
+        t = BTree.open(file, options);
+        assertFalse(BloomFilter.fileFor(file.toFile()).exists());
+        assertTrue(t.add(-1));
+        BTree recovered = BTree.open(file, options);
+        expected.add(-1);
+        for (int key = -1; key < 40000; key++)
+            assertEquals(expected.contains(key), recovered.contains(key));
+        assertTrue(recovered.getBloomFilterStats().getDefiniteMissCount() > 0);
+        recovered.close();
+
+        try {
+            BTree.createNewBTree().getBloomFilterStats();
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void firstAndLastAreCached() {
+        for (boolean concurrent : new boolean[] {false, true}) {
+            BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(2).concurrent(concurrent));
+            TreeSet<Integer> expected = new TreeSet<Integer>();
+            Random random = new Random(31);
+            for (int i = 0; i < 5000; i++) {
+                BTreeTest.makeRandomChanges(t, expected, random, 1, 500, 50, 20);
+                if (expected.isEmpty())
+                    assertTrue(t.isEmpty());
+                else {
+                    assertEquals(expected.first(), t.first());
+                    assertEquals(expected.last(), t.last());
+                }
+            }
+
+            // once known, first and last don't read any nodes
+            if (! concurrent) {
+                t.first();
+                t.last();
+                CacheStats before = t.getCacheStats();
+                assertEquals(expected.first(), t.first());
+                assertEquals(expected.last(), t.last());
+                CacheStats after = t.getCacheStats();
+                assertEquals(before.getHitCount() + before.getMissCount(), after.getHitCount() + after.getMissCount());
+            }
+
+            t.clear();
+            try {
+                t.first();
+                fail();
+            }
+            catch (NoSuchElementException e) {
+                // expected
+            }
+            t.bulkLoad(new int[] {3, 5, 8});
+            assertEquals(3, (int) t.first());
+            assertEquals(8, (int) t.last());
+        }
+    }
+
+    @Test
+    public void clearFreesEveryPageAtOnce() throws Exception {
+        // clearing doesn't read any node and gives the whole data file back
+        BTree t = BTree.createNewBTree(new BTreeOptions().minNumberOfChildren(3).cacheSizeInBytes(0));
+        t.bulkLoad(IntStream.range(0, 20000).toArray());
+        long missCount = t.getCacheStats().getMissCount();
+        t.clear();
+        assertEquals(missCount, t.getCacheStats().getMissCount());
+        assertEquals(1, t.store.getLivePageCount());
+        assertTrue(t.store.file.length() <= 2L * t.store.pageSize);
+        for (int key = 0; key < 1000; key += 2)
+            assertTrue(t.add(key));
+        assertEquals(500, t.size());
+        assertEquals(IntStream.range(0, 500).map(i -> 2 * i).boxed().collect(Collectors.toList()),
+                new ArrayList<Integer>(t));
+        t.close();
+
+        // a B-tree in a data file keeps the pages of its last checkpoint until the next one
+        Path file = this.temporaryFolder.newFolder().toPath().resolve("tree.db");
+        BTreeOptions options = new BTreeOptions().minNumberOfChildren(3).cacheSizeInBytes(0);
+        try (BTree created = BTree.create(file, options)) {
+            created.addAll(IntStream.range(0, 5000).boxed().collect(Collectors.toList()));
+        }
+        long length = file.toFile().length();
+        t = BTree.open(file, options);
+        t.clear();
+        for (int key = 100; key < 200; key++)
+            assertTrue(t.add(key));
+
+        // opening the file without closing the B-tree first is like a crash
+        t = BTree.open(file, options);
+        assertEquals(100, t.size());
+        assertTrue(file.toFile().length() < length);
+        assertEquals(Integer.valueOf(100), t.first());
+        assertEquals(Integer.valueOf(199), t.last());
+        assertTrue(t.retainAll(Arrays.asList(150, 151)));
+        t.close();
+
+        t = BTree.open(file, options);
+        assertEquals(new ArrayList<Integer>(Arrays.asList(150, 151)), new ArrayList<Integer>(t));
+        for (int key = 0; key < 5000; key++)
+            t.add(key);
+        t.close();
+        assertTrue(file.toFile().length() <= length + 16L * t.store.pageSize);
+        t = BTree.open(file, options);
+        assertEquals(5000, t.size());
+        assertEquals(Integer.valueOf(4999), t.last());
+        t.close();
+    }
 
     @Test
     public void testMaxCapacity() {